@@ -0,0 +1,323 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+// Tabela chave/valor do servidor. Leituras devolvem valor e timestamp juntos
+// em uma entrada imutável; onde as entradas ficam guardadas é escolha do motor
+// (MotorMapa ou MotorCompacto, veja Configuracao.motor).
+//
+// Cada key guarda até kv.versoes versões, e obter(key, comoEm) lê a que valia em
+// um timestamp: várias keys lidas no mesmo timestamp formam um retrato consistente
+// sem bloquear escritas. A thread de coleta descarta periodicamente as versões
+// além do limite; ler antes delas devolve DESCARTADA.
+//
+// Grupos atômicos (MPUT) são aplicados com o lock de escrita de 'grupos'; obterTodos
+// lê de forma otimista e só usa o lock de leitura se um grupo foi aplicado no meio,
+// então nunca vê parte de um grupo. Escritas isoladas não usam o lock.
+//
+// Uma versão pode ter um prazo (expiraEm, em ms desde a época, fixado pelo líder e
+// replicado com a escrita). Depois dele a key deixa de aparecer nas leituras, e
+// quem primeiro a encontra vencida a remove; as que ninguém lê são removidas pela
+// RodaExpiracao, que roda junto com a coleta. Leituras "como em" comparam o prazo
+// com o timestamp pedido, e por isso dão o mesmo resultado em todas as réplicas.
+// A remoção leva a key com todo o histórico, sem deixar marca: depois dela, uma
+// leitura "como em" de um momento anterior ao prazo encontra a key ausente (null),
+// e não DESCARTADA, mesmo que ela existisse naquele momento. Um seguidor que volta
+// por transferência não vê a remoção; ele tira o que o líder não mandou (veja
+// ReplicadorSeguidor).
+//
+// Com o índice ordenado (kv.indiceOrdenado), as keys também ficam em um
+// ConcurrentSkipListSet, e percorrerEmOrdem varre um intervalo delas sem olhar o
+// resto. O índice pode ter por um instante uma key que acabou de ser removida
+// (percorrerEmOrdem a pula), mas nunca deixa de ter uma key que está no motor:
+// ela entra depois da escrita no motor e sai antes de uma remoção ser conferida.
+//
+// Os valores podem chegar comprimidos ou não (veja Compressao); todas as escritas
+// passam por Compressao.paraArmazenar, que os deixa na forma de kv.armazenarComprimido.
+class Armazenamento {
+    // Versão de uma chave; nunca é alterada depois de publicada. expiraEm 0 = nunca
+    record Entrada(String valor, long timestamp, long expiraEm) {
+        Entrada(String valor, long timestamp) {
+            this(valor, timestamp, 0L);
+        }
+
+        boolean expiradaEm(long milissegundos) {
+            return expiraEm != 0 && expiraEm <= milissegundos;
+        }
+    }
+
+    // Resposta de obter(key, comoEm) quando a versão daquele momento já foi descartada
+    static final Entrada DESCARTADA = new Entrada(null, -1L);
+
+    private final MotorArmazenamento motor;
+    private final StampedLock grupos = new StampedLock();
+    private final RodaExpiracao expiracoes = new RodaExpiracao(this::removerSeVencida);
+    // null sem o índice ordenado
+    private final ConcurrentSkipListSet<String> ordenadas;
+    private Thread coleta;
+
+    public Armazenamento() {
+        this(new MotorMapa(1));
+    }
+
+    public Armazenamento(MotorArmazenamento motor) {
+        this(motor, false);
+    }
+
+    public Armazenamento(MotorArmazenamento motor, boolean indiceOrdenado) {
+        this.motor = motor;
+        this.ordenadas = indiceOrdenado ? new ConcurrentSkipListSet<>() : null;
+    }
+
+    static MotorArmazenamento criarMotor(Configuracao.Motor tipo, int versoes, int cacheLeituras) {
+        return switch (tipo) {
+            case MAPA -> new MotorMapa(versoes);
+            case COMPACTO -> new MotorCompacto(versoes, cacheLeituras);
+        };
+    }
+
+    // Coleta as versões excedentes a cada intervalo e as keys expiradas a cada
+    // tick da roda, até pararColeta
+    public void iniciarColeta(long intervaloMs) {
+        expiracoes.iniciar();
+        coleta = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervaloMs);
+                    motor.coletar();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    Log.erro("Erro na coleta de versões: {}", e.getMessage());
+                }
+            }
+        }, "coleta-versoes");
+        coleta.setDaemon(true);
+        coleta.start();
+    }
+
+    public void pararColeta() {
+        expiracoes.parar();
+        if (coleta != null) {
+            coleta.interrupt();
+        }
+    }
+
+    // null se a key não existe ou expirou
+    public Entrada obter(String key) {
+        Entrada entrada = motor.obter(key);
+        if (entrada != null && entrada.expiraEm() != 0 && entrada.expiradaEm(System.currentTimeMillis())) {
+            removerSeVencida(key, entrada.timestamp(), entrada.expiraEm());
+            return null;
+        }
+        return entrada;
+    }
+
+    // Como obter, mas também devolve a versão atual já expirada: a FilaEspera decide
+    // pelo timestamp dela se a escrita que um GET espera já chegou
+    public Entrada obterMesmoExpirada(String key) {
+        return motor.obter(key);
+    }
+
+    // Versão que valia em 'comoEm': null se a key não existia (ou já tinha expirado),
+    // DESCARTADA se ela já foi coletada. Uma key vencida e já removida também dá
+    // null, inclusive para momentos em que ainda valia
+    public Entrada obter(String key, long comoEm) {
+        return vigenteEm(motor.obter(key, comoEm), comoEm);
+    }
+
+    private static Entrada vigenteEm(Entrada entrada, long comoEm) {
+        if (entrada != null && entrada.expiraEm() != 0
+                && entrada.expiradaEm(RelogioHibrido.milissegundosDe(comoEm))) {
+            return null;
+        }
+        return entrada;
+    }
+
+    public long timestampDe(String key) {
+        return motor.timestampDe(key);
+    }
+
+    // Grava a versão se ela for mais nova que a atual. Réplicas e PUTs
+    // concorrentes podem chegar fora de ordem; a mais nova sempre vence.
+    public boolean aplicar(String key, String valor, long timestamp) {
+        return aplicar(key, valor, timestamp, 0L);
+    }
+
+    public boolean aplicar(String key, String valor, long timestamp, long expiraEm) {
+        String guardado = Compressao.paraArmazenar(valor);
+        return aplicada(key, timestamp, expiraEm, motor.aplicar(key, guardado, timestamp, timestamp, expiraEm, false));
+    }
+
+    // Versão vinda de um snapshot, sem as anteriores: leituras de antes dela dão DESCARTADA
+    public boolean aplicarSemHistorico(String key, String valor, long timestamp, long expiraEm) {
+        String guardado = Compressao.paraArmazenar(valor);
+        return aplicada(key, timestamp, expiraEm, motor.aplicar(key, guardado, timestamp, timestamp, expiraEm, true));
+    }
+
+    public void aplicarAtomico(List<Mensagem.Registro> registros) {
+        // (Des)comprimir antes de pegar o lock, que barra as leituras de grupos
+        String[] guardados = new String[registros.size()];
+        for (int i = 0; i < guardados.length; i++) {
+            guardados[i] = Compressao.paraArmazenar(registros.get(i).getValue());
+        }
+        long marca = grupos.writeLock();
+        try {
+            // Em leituras "como em", o grupo inteiro aparece junto, no timestamp da última escrita
+            for (int i = 0; i < guardados.length; i++) {
+                Mensagem.Registro registro = registros.get(i);
+                long timestamp = registro.getTimestamp();
+                boolean atual = motor.aplicar(registro.getKey(), guardados[i], timestamp,
+                        Math.max(timestamp, registro.getGrupo()), registro.getExpiraEm(), false);
+                aplicada(registro.getKey(), timestamp, registro.getExpiraEm(), atual);
+            }
+        } finally {
+            grupos.unlockWrite(marca);
+        }
+    }
+
+    // Entradas das keys, na mesma ordem (null para as ausentes)
+    public List<Entrada> obterTodos(List<String> keys) {
+        long marca = grupos.tryOptimisticRead();
+        List<Entrada> resultado = lerTodos(keys);
+        if (grupos.validate(marca)) {
+            return resultado;
+        }
+        marca = grupos.readLock();
+        try {
+            return lerTodos(keys);
+        } finally {
+            grupos.unlockRead(marca);
+        }
+    }
+
+    // Todas no mesmo timestamp; versões antigas não mudam, então não precisa de lock
+    public List<Entrada> obterTodos(List<String> keys, long comoEm) {
+        List<Entrada> resultado = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            resultado.add(vigenteEm(motor.obter(key, comoEm), comoEm));
+        }
+        return resultado;
+    }
+
+    // As expiradas saem como null, mas a remoção fica para a roda: dentro do lock de
+    // leitura de 'grupos' não dá para esperar o lock do motor
+    private List<Entrada> lerTodos(List<String> keys) {
+        long agora = System.currentTimeMillis();
+        List<Entrada> resultado = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            Entrada entrada = motor.obter(key);
+            resultado.add(entrada != null && entrada.expiradaEm(agora) ? null : entrada);
+        }
+        return resultado;
+    }
+
+    // Percorre as entradas atuais, inclusive as expiradas que ainda não foram
+    // removidas; escritas concorrentes podem ou não aparecer
+    public void paraCada(BiConsumer<String, Entrada> acao) {
+        motor.paraCada(acao);
+    }
+
+    public int tamanho() {
+        return motor.tamanho();
+    }
+
+    public boolean temIndiceOrdenado() {
+        return ordenadas != null;
+    }
+
+    // Keys vivas em [inicio, fim) e depois de 'apos' (null = desde inicio; fim null =
+    // sem limite), em ordem, até a ação devolver false. Nada é copiado: a varredura
+    // anda pelo índice e lê cada key do motor, e escritas concorrentes podem ou não
+    // aparecer. Exige o índice ordenado.
+    public void percorrerEmOrdem(String inicio, String fim, String apos, BiPredicate<String, Entrada> acao) {
+        if (ordenadas == null) {
+            throw new IllegalStateException("armazenamento sem índice ordenado");
+        }
+        NavigableSet<String> intervalo = apos != null && apos.compareTo(inicio) >= 0
+                ? ordenadas.tailSet(apos, false) : ordenadas.tailSet(inicio, true);
+        if (fim != null) {
+            intervalo = intervalo.headSet(fim, false);
+        }
+        for (String key : intervalo) {
+            Entrada entrada = obter(key);
+            if (entrada != null && !acao.test(key, entrada)) {
+                return;
+            }
+        }
+    }
+
+    // Tira, com todo o histórico, as keys que passam no filtro (uma partição que a
+    // réplica vai receber inteira de novo); devolve quantas saíram. Uma key regravada
+    // enquanto isso não sai.
+    public int removerSe(Predicate<String> filtro) {
+        List<String> keys = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        motor.paraCada((key, entrada) -> {
+            if (filtro.test(key)) {
+                keys.add(key);
+                timestamps.add(entrada.timestamp());
+            }
+        });
+        int removidas = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            if (removerDoMotor(keys.get(i), timestamps.get(i))) {
+                removidas++;
+            }
+        }
+        return removidas;
+    }
+
+    // Keys removidas pela roda de expiração e agendamentos esperando por ela
+    public long expiradasRemovidas() {
+        return expiracoes.removidas();
+    }
+
+    public long expiracoesPendentes() {
+        return expiracoes.pendentes();
+    }
+
+    // Depois de cada escrita no motor; só uma versão que passou a ser a atual pode ter
+    // criado a key ou trazido um prazo novo
+    private boolean aplicada(String key, long timestamp, long expiraEm, boolean atual) {
+        if (atual) {
+            if (ordenadas != null) {
+                ordenadas.add(key);
+            }
+            if (expiraEm != 0) {
+                expiracoes.agendar(key, timestamp, expiraEm);
+            }
+        }
+        return atual;
+    }
+
+    // Só remove se a versão atual ainda é a que venceu: uma regravada depois continua.
+    // Se o relógio voltou e o prazo ainda não chegou, a key volta para a roda.
+    private boolean removerSeVencida(String key, long timestamp, long expiraEm) {
+        if (expiraEm > System.currentTimeMillis()) {
+            expiracoes.agendar(key, timestamp, expiraEm);
+            return false;
+        }
+        return removerDoMotor(key, timestamp);
+    }
+
+    private boolean removerDoMotor(String key, long timestamp) {
+        if (!motor.remover(key, timestamp)) {
+            return false;
+        }
+        if (ordenadas != null) {
+            // Uma escrita pode ter recriado a key entre a remoção e aqui: ela já está no
+            // motor, então confere de novo depois de tirá-la do índice
+            ordenadas.remove(key);
+            if (motor.timestampDe(key) != 0) {
+                ordenadas.add(key);
+            }
+        }
+        return true;
+    }
+}
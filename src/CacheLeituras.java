@@ -0,0 +1,211 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+// Cache das keys mais lidas, na frente de um motor em que cada leitura custa
+// decodificar a entrada (MotorCompacto). Acertos são um get no mapa, sem lock.
+//
+// Admissão e despejo no estilo W-TinyLFU: toda key nova entra em uma janela pequena
+// (JANELA da capacidade); quem sai da janela disputa a vaga com a vítima da área
+// principal, e fica a mais acessada segundo o Esboco de frequências, que conta os
+// acessos de todas as keys, cacheadas ou não. Assim uma rajada de keys lidas uma
+// vez só passa pela janela, sem expulsar as keys quentes. Em cada área a vítima é
+// escolhida pelo relógio (CLOCK), uma aproximação de LRU que não mexe em nada nos acertos
+// além de marcar o nó como referenciado.
+//
+// Quem usa o cache garante a coerência: inserir e atualizar são chamados com o lock
+// que protege a key no motor, então uma leitura nunca guarda uma versão que uma
+// escrita concorrente já substituiu.
+class CacheLeituras {
+    private static final double JANELA = 0.01;
+
+    private static final class No {
+        final String key;
+        volatile Armazenamento.Entrada entrada;
+        volatile boolean referenciado;
+
+        No(String key, Armazenamento.Entrada entrada) {
+            this.key = key;
+            this.entrada = entrada;
+        }
+    }
+
+    // Nós de uma área em um anel percorrido pelo ponteiro do relógio
+    private static final class Area {
+        final No[] nos;
+        int tamanho;
+        int ponteiro;
+
+        Area(int capacidade) {
+            nos = new No[capacidade];
+        }
+
+        boolean cheia() {
+            return tamanho == nos.length;
+        }
+
+        void colocar(No no, int posicao) {
+            nos[posicao] = no;
+        }
+
+        // Posição do primeiro nó não referenciado desde a última passagem do ponteiro
+        int vitima() {
+            while (true) {
+                No no = nos[ponteiro];
+                int posicao = ponteiro;
+                ponteiro = (ponteiro + 1) % nos.length;
+                if (!no.referenciado) {
+                    return posicao;
+                }
+                no.referenciado = false;
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, No> entradas;
+    private final Area janela;
+    private final Area principal;
+    private final Esboco esboco;
+
+    public CacheLeituras(int capacidade, Esboco esboco) {
+        int tamanhoJanela = Math.max(1, (int) (capacidade * JANELA));
+        this.janela = new Area(tamanhoJanela);
+        this.principal = new Area(Math.max(1, capacidade - tamanhoJanela));
+        this.entradas = new ConcurrentHashMap<>(capacidade * 4 / 3 + 1);
+        this.esboco = esboco;
+    }
+
+    // Entrada cacheada da key, ou null; conta o acesso de qualquer forma
+    public Armazenamento.Entrada obter(String key) {
+        esboco.contar(key);
+        No no = entradas.get(key);
+        if (no == null) {
+            return null;
+        }
+        if (!no.referenciado) {
+            no.referenciado = true;
+        }
+        return no.entrada;
+    }
+
+    // Depois de uma falta no cache: só vale inserir uma key que já foi lida antes,
+    // para que uma varredura de keys lidas uma vez só não passe nem pela janela
+    public boolean candidata(String key) {
+        return esboco.frequencia(key) > 1;
+    }
+
+    // A key entra na janela e pode expulsar outra (veja a classe)
+    public synchronized void inserir(String key, Armazenamento.Entrada entrada) {
+        No existente = entradas.get(key);
+        if (existente != null) {
+            existente.entrada = entrada;
+            return;
+        }
+        No novo = new No(key, entrada);
+        entradas.put(key, novo);
+        if (!janela.cheia()) {
+            janela.colocar(novo, janela.tamanho++);
+            return;
+        }
+        int posicao = janela.vitima();
+        No candidato = janela.nos[posicao];
+        janela.colocar(novo, posicao);
+        if (!principal.cheia()) {
+            principal.colocar(candidato, principal.tamanho++);
+            return;
+        }
+        int posicaoVitima = principal.vitima();
+        No vitima = principal.nos[posicaoVitima];
+        if (esboco.frequencia(candidato.key) > esboco.frequencia(vitima.key)) {
+            principal.colocar(candidato, posicaoVitima);
+            entradas.remove(vitima.key, vitima);
+        } else {
+            entradas.remove(candidato.key, candidato);
+        }
+    }
+
+    // Escrita aplicada: troca a entrada se a key estiver no cache (escritas não admitem keys)
+    public void atualizar(String key, String valor, long timestamp, long expiraEm) {
+        No no = entradas.get(key);
+        if (no != null) {
+            no.entrada = new Armazenamento.Entrada(valor, timestamp, expiraEm);
+        }
+    }
+
+    // Key removida do motor (expirou). O nó continua na área até o relógio passar
+    // por ele; se a key voltar ao cache antes disso, ganha um nó novo.
+    public void remover(String key) {
+        entradas.remove(key);
+    }
+
+    public int tamanho() {
+        return entradas.size();
+    }
+
+    // Frequência aproximada de acesso de cada key: count-min com quatro contadores de
+    // 4 bits por key, 16 por long. Os quatro de uma key ficam no mesmo long, um em cada
+    // quarto dele: contar um acesso (o que todo acerto no cache faz) é ler e gravar uma
+    // palavra só. A cada 'amostra' acessos todos os contadores caem pela metade, para
+    // que keys que esfriaram percam a vez. Compartilhado por vários caches; incrementos
+    // concorrentes podem se perder, o que só deixa a contagem um pouco mais baixa.
+    static final class Esboco {
+        private final long[] tabela;
+        private final int mascara;
+        private final int amostra;
+        private int acessos;
+
+        Esboco(int capacidade) {
+            int tamanho = Integer.highestOneBit(Math.max(16, capacidade - 1) * 4);
+            this.tabela = new long[tamanho];
+            this.mascara = tamanho - 1;
+            this.amostra = 10 * Math.max(16, capacidade);
+        }
+
+        void contar(String key) {
+            int hash = espalhar(key);
+            int indice = indice(hash);
+            long palavra = tabela[indice];
+            long nova = palavra;
+            for (int i = 0; i < 4; i++) {
+                int deslocamento = deslocamento(hash, i);
+                if (((palavra >>> deslocamento) & 0xF) < 15) {
+                    nova += 1L << deslocamento;
+                }
+            }
+            tabela[indice] = nova;
+            if (++acessos >= amostra) {
+                envelhecer();
+            }
+        }
+
+        int frequencia(String key) {
+            int hash = espalhar(key);
+            long palavra = tabela[indice(hash)];
+            int menor = 15;
+            for (int i = 0; i < 4; i++) {
+                menor = Math.min(menor, (int) ((palavra >>> deslocamento(hash, i)) & 0xF));
+            }
+            return menor;
+        }
+
+        private void envelhecer() {
+            acessos = 0;
+            for (int i = 0; i < tabela.length; i++) {
+                tabela[i] = (tabela[i] >>> 1) & 0x7777_7777_7777_7777L;
+            }
+        }
+
+        private int indice(int hash) {
+            int h = hash * 0x85EBCA6B;
+            return (h ^ (h >>> 15)) & mascara;
+        }
+
+        // Um contador em cada quarto da palavra, escolhido por bits diferentes do hash
+        private static int deslocamento(int hash, int i) {
+            return (((hash >>> (i * 8)) & 3) + i * 4) << 2;
+        }
+
+        private static int espalhar(String key) {
+            int h = key.hashCode() * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+import java.io.IOException;
+import java.util.List;
+
+// Ponto de onde chegou uma requisição e por onde sai a resposta.
+// Implementado pela Conexao bloqueante e pelos canais do ServidorNIO.
+interface Canal {
+    void enviar(Mensagem mensagem) throws IOException;
+
+    // Várias mensagens com uma única escrita no socket
+    void enviarTodas(List<Mensagem> mensagens) throws IOException;
+
+    boolean isAberta();
+
+    String getIPRemoto();
+
+    int getPortaRemota();
+}
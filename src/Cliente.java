@@ -1,120 +1,51 @@
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Random;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
+// Menu interativo sobre o ClienteKV
 class Cliente {
-    private String[] servidorIPs;
-    private int[] servidorPortas;
-    private Map<String, Long> timestamps;
-    private Random random;
-    private ExecutorService threadPool;
-    private ServerSocket callbackServer;
-    private int callbackPorta;
-
-    public Cliente() {
-        this.servidorIPs = new String[3];
-        this.servidorPortas = new int[3];
-        this.timestamps = new HashMap<>();
-        this.random = new Random();
-        this.threadPool = Executors.newCachedThreadPool();
-    }
+    // Conexões persistentes, timestamps por key e níveis de consistência ficam no ClienteKV
+    private ClienteKV clienteKV;
 
+    // Pergunta no terminal pelos servidores de um cluster de 3
     public void inicializar() {
         Scanner scanner = new Scanner(System.in);
 
         System.out.println("=== INICIALIZAÇÃO DO CLIENTE ===");
+        List<String> servidores = new ArrayList<>();
         for (int i = 0; i < 3; i++) {
             System.out.print("Digite o IP do servidor " + (i + 1) + " (padrão: 127.0.0.1): ");
             String ip = scanner.nextLine().trim();
             if (ip.isEmpty()) {
                 ip = "127.0.0.1";
             }
-            servidorIPs[i] = ip;
 
             System.out.print("Digite a porta do servidor " + (i + 1) + " (padrão: " + (10097 + i) + "): ");
             String portaStr = scanner.nextLine().trim();
-            if (portaStr.isEmpty()) {
-                servidorPortas[i] = 10097 + i;
-            } else {
-                servidorPortas[i] = Integer.parseInt(portaStr);
-            }
-        }
-
-        // Inicializar servidor de callback para respostas assíncronas
-        try {
-            callbackServer = new ServerSocket(0); // Porta automática
-            callbackPorta = callbackServer.getLocalPort();
-            System.out.println("Servidor de callback iniciado na porta: " + callbackPorta);
-            
-            // Iniciar thread para aceitar callbacks assíncronos
-            threadPool.submit(new CallbackListener());
-            
-        } catch (Exception e) {
-            System.err.println("Erro ao inicializar servidor de callback: " + e.getMessage());
-        }
-
-        System.out.println("Cliente inicializado com sucesso!");
-    }
-
-    private class CallbackListener implements Runnable {
-        @Override
-        public void run() {
-            while (!callbackServer.isClosed()) {
-                try {
-                    Socket clientSocket = callbackServer.accept();
-                    threadPool.submit(new CallbackHandler(clientSocket));
-                } catch (Exception e) {
-                    if (!callbackServer.isClosed()) {
-                        System.err.println("Erro ao aceitar callback: " + e.getMessage());
-                    }
-                    break;
-                }
-            }
+            int porta = portaStr.isEmpty() ? 10097 + i : Integer.parseInt(portaStr);
+            servidores.add(Topologia.endereco(ip, porta));
         }
+        inicializar(servidores);
     }
 
-    private class CallbackHandler implements Runnable {
-        private Socket socket;
-
-        public CallbackHandler(Socket socket) {
-            this.socket = socket;
+    // Servidores "ip:porta", em qualquer número; bastam alguns, o resto vem da topologia
+    public void inicializar(List<String> servidores) {
+        String[] servidorIPs = new String[servidores.size()];
+        int[] servidorPortas = new int[servidores.size()];
+        for (int i = 0; i < servidores.size(); i++) {
+            servidorIPs[i] = Topologia.ipDe(servidores.get(i));
+            servidorPortas[i] = Topologia.portaDe(servidores.get(i));
         }
 
-        @Override
-        public void run() {
-            try (ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-                Mensagem resposta = (Mensagem) in.readObject();
-                
-                if (resposta.getTipo() == Mensagem.TipoMensagem.GET_RESPONSE) {
-                    // Atualizar timestamp local
-                    timestamps.put(resposta.getKey(), resposta.getTimestamp());
-                    
-                    // Imprimir resposta assíncrona
-                    System.out.println("\n[RESPOSTA ASSÍNCRONA] GET key: " + resposta.getKey() + 
-                                     " value: " + resposta.getValue() +
-                                     " obtido do servidor de forma assíncrona" +
-                                     ", meu timestamp anterior era menor" +
-                                     " e do servidor " + resposta.getTimestamp());
-                    System.out.print("Digite uma opção: "); // Reexibir prompt
-                }
-                
-            } catch (Exception e) {
-                System.err.println("Erro ao processar callback: " + e.getMessage());
-            } finally {
-                try {
-                    socket.close();
-                } catch (Exception e) {
-                    // Ignorar erro de fechamento
-                }
-            }
+        if (clienteKV != null) {
+            clienteKV.close();
         }
+        clienteKV = new ClienteKV(servidorIPs, servidorPortas);
+        System.out.println("Cliente inicializado com sucesso!");
     }
 
     public void executarPUT() {
@@ -126,26 +57,13 @@ class Cliente {
         System.out.print("Digite o value: ");
         String value = scanner.nextLine();
 
-        int servidorEscolhido = random.nextInt(3);
-        String ip = servidorIPs[servidorEscolhido];
-        int porta = servidorPortas[servidorEscolhido];
-
-        try (Socket socket = new Socket(ip, porta);
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-            Mensagem putMsg = new Mensagem(Mensagem.TipoMensagem.PUT, key, value);
-            out.writeObject(putMsg);
-
-            Mensagem resposta = (Mensagem) in.readObject();
-
-            if (resposta.getTipo() == Mensagem.TipoMensagem.PUT_OK) {
-                timestamps.put(key, resposta.getTimestamp());
-                System.out.println("PUT_OK key: " + key + " value " + value +
-                        " timestamp " + resposta.getTimestamp() +
-                        " realizada no servidor " + ip + ":" + porta);
-            }
-
+        try {
+            ClienteKV.Escrita escrita = clienteKV.put(key, value).get();
+            System.out.println("PUT_OK key: " + key + " value " + value +
+                    " timestamp " + escrita.timestamp() +
+                    " realizada no servidor " + escrita.servidor());
+        } catch (ExecutionException e) {
+            System.err.println("Erro ao executar PUT: " + e.getCause().getMessage());
         } catch (Exception e) {
             System.err.println("Erro ao executar PUT: " + e.getMessage());
         }
@@ -157,42 +75,68 @@ class Cliente {
         System.out.print("Digite a key: ");
         String key = scanner.nextLine();
 
-        long timestampCliente = timestamps.getOrDefault(key, 0L);
-
-        int servidorEscolhido = random.nextInt(3);
-        String ip = servidorIPs[servidorEscolhido];
-        int porta = servidorPortas[servidorEscolhido];
-
-        try (Socket socket = new Socket(ip, porta);
-                ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-            // CORREÇÃO: Incluir informações de callback na mensagem GET
-            Mensagem getMsg = new Mensagem(Mensagem.TipoMensagem.GET, key, timestampCliente);
-            getMsg.setClienteIP("127.0.0.1"); // IP do cliente para callback
-            getMsg.setClientePorta(callbackPorta); // Porta do servidor de callback do cliente
-            out.writeObject(getMsg);
-
-            Mensagem resposta = (Mensagem) in.readObject();
-
-            if (resposta.getTipo() == Mensagem.TipoMensagem.WAIT_FOR_RESPONSE) {
-                System.out.println("GET key: " + key + 
-                                 " obtido do servidor " + ip + ":" + porta +
-                                 ", meu timestamp " + timestampCliente +
-                                 " e do servidor é menor, portanto devolvendo WAIT_FOR_RESPONSE");
-                System.out.println("Aguardando resposta assíncrona...");
-                
-            } else if (resposta.getTipo() == Mensagem.TipoMensagem.GET_RESPONSE) {
-                timestamps.put(key, resposta.getTimestamp());
-                System.out.println("GET key: " + key + " value: " + resposta.getValue() +
-                        " obtido do servidor " + ip + ":" + porta +
-                        ", meu timestamp " + timestampCliente +
-                        " e do servidor " + resposta.getTimestamp());
+        // Completado pelo WAIT_FOR_RESPONSE ou pela resposta, o que vier primeiro
+        CompletableFuture<Void> primeiraResposta = new CompletableFuture<>();
+        CompletableFuture<ClienteKV.Leitura> leitura = clienteKV.get(key, () -> primeiraResposta.complete(null));
+        try {
+            CompletableFuture.anyOf(leitura, primeiraResposta).join();
+        } catch (CompletionException e) {
+            // Tratado abaixo pelo próprio futuro da leitura
+        }
+
+        if (!leitura.isDone()) {
+            System.out.println("GET key: " + key + " devolveu WAIT_FOR_RESPONSE: o servidor ainda não tem " +
+                    "a versão que este cliente já viu");
+            System.out.println("Aguardando resposta assíncrona...");
+            leitura.whenComplete((resultado, erro) -> {
+                if (erro != null) {
+                    System.out.println("\n[RESPOSTA ASSÍNCRONA] GET key: " + key + " falhou: " + causa(erro));
+                } else {
+                    System.out.println("\n[RESPOSTA ASSÍNCRONA] GET key: " + key + " value: " + resultado.valor() +
+                            " obtido do servidor " + resultado.servidor() + " de forma assíncrona, timestamp " +
+                            resultado.timestamp());
+                }
+                System.out.print("Escolha uma opção: "); // Reexibir prompt
+            });
+            return;
+        }
+
+        try {
+            ClienteKV.Leitura resultado = leitura.join();
+            System.out.println("GET key: " + key + " value: " + resultado.valor() +
+                    " obtido do servidor " + resultado.servidor() +
+                    ", timestamp " + resultado.timestamp());
+        } catch (CompletionException e) {
+            System.err.println("Erro ao executar GET: " + causa(e));
+        }
+    }
+
+    // Lista as keys com o prefixo conforme os pedaços chegam
+    public void executarSCAN() {
+        Scanner scanner = new Scanner(System.in);
+
+        System.out.print("Digite o prefixo (vazio = todas): ");
+        String prefixo = scanner.nextLine();
+
+        long total = 0;
+        try {
+            ClienteKV.Varredura varredura = clienteKV.varrerPrefixo(prefixo);
+            while (varredura.hasNext()) {
+                ClienteKV.Item item = varredura.next();
+                System.out.println(item.key() + " = " + item.valor() + " (timestamp " + item.timestamp() + ")");
+                total++;
             }
+            System.out.println("SCAN prefixo: \"" + prefixo + "\" devolveu " + total + " keys");
+        } catch (RuntimeException e) {
+            System.err.println("Erro ao executar SCAN depois de " + total + " keys: " + causa(e));
+        }
+    }
 
-        } catch (Exception e) {
-            System.err.println("Erro ao executar GET: " + e.getMessage());
+    private static String causa(Throwable erro) {
+        while (erro instanceof CompletionException && erro.getCause() != null) {
+            erro = erro.getCause();
         }
+        return erro.getMessage();
     }
 
     public void executar() {
@@ -204,6 +148,7 @@ class Cliente {
             System.out.println("2. PUT");
             System.out.println("3. GET");
             System.out.println("4. SAIR");
+            System.out.println("5. SCAN (prefixo)");
             System.out.print("Escolha uma opção: ");
 
             String opcao = scanner.nextLine();
@@ -213,32 +158,30 @@ class Cliente {
                     inicializar();
                     break;
                 case "2":
-                    if (servidorIPs[0] == null) {
+                    if (clienteKV == null) {
                         System.out.println("Execute INIT primeiro!");
                         break;
                     }
                     executarPUT();
                     break;
                 case "3":
-                    if (servidorIPs[0] == null) {
+                    if (clienteKV == null) {
                         System.out.println("Execute INIT primeiro!");
                         break;
                     }
-                    if (callbackServer == null) {
-                        System.out.println("Execute INIT primeiro para configurar callback!");
+                    executarGET();
+                    break;
+                case "5":
+                    if (clienteKV == null) {
+                        System.out.println("Execute INIT primeiro!");
                         break;
                     }
-                    executarGET();
+                    executarSCAN();
                     break;
                 case "4":
                     System.out.println("Saindo...");
-                    try {
-                        if (callbackServer != null && !callbackServer.isClosed()) {
-                            callbackServer.close();
-                        }
-                        threadPool.shutdown();
-                    } catch (Exception e) {
-                        // Ignorar erro de fechamento
+                    if (clienteKV != null) {
+                        clienteKV.close();
                     }
                     return;
                 default:
@@ -247,8 +190,23 @@ class Cliente {
         }
     }
 
+    // Com --servidores ip:porta,... (ou --config arquivo com servidores=...), o
+    // cliente já começa inicializado; o INIT do menu continua perguntando no terminal.
+    // As demais opções valem como parâmetros (veja Configuracao.carregar).
     public static void main(String[] args) {
         Cliente cliente = new Cliente();
+        if (args.length > 0) {
+            try {
+                List<String> servidores = Configuracao.enderecos(Configuracao.carregar(args).getOrDefault("servidores", ""));
+                if (servidores.isEmpty()) {
+                    throw new IllegalArgumentException("Opção obrigatória: --servidores");
+                }
+                cliente.inicializar(servidores);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Configuração inválida: " + e.getMessage());
+                System.exit(2);
+            }
+        }
         cliente.executar();
     }
-}
\ No newline at end of file
+}
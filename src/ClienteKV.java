@@ -0,0 +1,751 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Cliente programático do KV. put e get não bloqueiam: devolvem um CompletableFuture
+// completado quando a resposta chega. Usa uma conexão persistente por servidor,
+// compartilhada por todas as requisições, com quantas estiverem em voo.
+//
+// Um GET que recebe WAIT_FOR_RESPONSE continua no mesmo futuro até a resposta
+// definitiva. O cliente guarda o maior timestamp visto de cada key e o envia nos
+// GETs, para sempre ler as próprias escritas em qualquer réplica.
+//
+// Os servidores informados são só o ponto de partida: o cliente pede a topologia
+// (TOPOLOGIA) a um deles e, com ela, manda escritas direto ao líder da partição da
+// key e leituras espalhadas entre as réplicas que já têm o timestamp pedido. Lotes
+// são divididos por partição. Um servidor que não atende a requisição responde
+// REDIRECT; o cliente repete nele e atualiza a topologia.
+//
+// getComoEm e Retrato leem as versões que valiam em um timestamp, que os
+// servidores guardam por um tempo depois de sobrescritas.
+//
+// varrer e varrerPrefixo percorrem keys em ordem, pedaço por pedaço (SCAN; os
+// servidores precisam de kv.indiceOrdenado).
+//
+// Com kv.compressao, valores a partir de kv.limiarCompressao são comprimidos aqui
+// antes de sair e só descomprimidos ao serem devolvidos (veja Compressao).
+//
+// Se o servidor cai ou a partição está sem líder (eleição em andamento), a
+// requisição é repetida em outra réplica até kv.tempoFailoverMs; o mesmo vale para
+// uma escrita que o líder recusou sem aplicar por falta de réplicas em dia (um líder
+// recém-eleito ainda alcançando os seguidores, ou uma réplica fora do ar). Um PUT cuja
+// conexão caiu antes da resposta pode então ser aplicado duas vezes, e o mesmo
+// vale para uma tentativa sem resposta em kv.prazoRequisicaoMs.
+class ClienteKV implements AutoCloseable {
+    // Quantos REDIRECT seguidos uma requisição segue antes de falhar
+    private static final int MAX_REDIRECIONAMENTOS = 3;
+    // Peso de cada nova medida na média de latência de um servidor
+    private static final double PESO_LATENCIA = 0.2;
+    // Depois de um WAIT_FOR_RESPONSE, o servidor fica fora das leituras que exigem
+    // mais do que ele já mostrou ter por este tempo
+    private static final long PENALIDADE_ATRASO_NS = 200_000_000L;
+    // Pausa antes de repetir uma requisição que não encontrou líder
+    private static final long PAUSA_FAILOVER_MS = 100;
+    private static final long PRAZO_REQUISICAO_MS = Configuracao.prazoRequisicaoMs();
+
+    // Resultado de um PUT confirmado
+    record Escrita(long timestamp, String servidor) {
+    }
+
+    // Resultado de um GET; valor null quando a key não existe
+    record Leitura(String valor, long timestamp, String servidor) {
+    }
+
+    // Uma entrada de uma varredura
+    record Item(String key, String valor, long timestamp) {
+    }
+
+    // Resposta ERRO do servidor (quorum indisponível, prazo de espera esgotado...)
+    static class ErroServidor extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ErroServidor(String mensagem) {
+            super(mensagem);
+        }
+    }
+
+    // Resposta final de uma requisição e o servidor que a deu, depois dos redirecionamentos
+    private record Resposta(Mensagem mensagem, String servidor) {
+    }
+
+    // O que o cliente sabe de cada servidor: latência média das respostas e, por
+    // partição, até que timestamp ele já mostrou ter aplicado. Um seguidor aplica
+    // a partição em ordem, então devolver uma key com timestamp T prova que ele tem
+    // tudo da partição até T.
+    private static class EstadoServidor {
+        // Média móvel exponencial; 0 enquanto não há medida, para que ele seja experimentado
+        private volatile double latenciaNs;
+        // Requisições enviadas a ele ainda sem resposta
+        private final AtomicInteger emVoo = new AtomicInteger();
+        private final Map<Integer, Long> aplicadoAte = new ConcurrentHashMap<>();
+        private final Map<Integer, Long> atrasadoAte = new ConcurrentHashMap<>();
+
+        void medir(long ns) {
+            double atual = latenciaNs;
+            latenciaNs = atual == 0 ? ns : atual + (ns - atual) * PESO_LATENCIA;
+        }
+
+        // Quanto custa mandar mais uma requisição para ele agora
+        double custo() {
+            return latenciaNs * (emVoo.get() + 1);
+        }
+
+        void aplicou(int particao, long timestamp) {
+            aplicadoAte.merge(particao, timestamp, Math::max);
+        }
+
+        void atrasou(int particao) {
+            atrasadoAte.put(particao, System.nanoTime() + PENALIDADE_ATRASO_NS);
+        }
+
+        boolean podeServir(int particao, long requerido) {
+            if (requerido <= aplicadoAte.getOrDefault(particao, 0L)) {
+                return true;
+            }
+            Long ate = atrasadoAte.get(particao);
+            return ate == null || System.nanoTime() - ate > 0;
+        }
+    }
+
+    private final List<String> sementes;
+    private final ExecutorService executor;
+    private final PoolConexoes poolConexoes;
+    private final Map<String, Long> timestamps;
+    private final Map<String, EstadoServidor> servidores;
+    // Última topologia obtida (ou sendo obtida); trocada a cada REDIRECT
+    private volatile CompletableFuture<Topologia> topologia;
+    // Pedido de topologia em andamento, compartilhado por quem precisar atualizá-la
+    private CompletableFuture<Topologia> atualizacao;
+    private volatile Mensagem.NivelEscrita nivelEscrita;
+    private volatile Mensagem.NivelLeitura nivelLeitura;
+    // Até quando uma requisição é repetida durante uma troca de líder (kv.tempoFailoverMs)
+    private final long tempoFailoverNs;
+
+    public ClienteKV(String[] servidorIPs, int[] servidorPortas) {
+        this.sementes = new ArrayList<>(servidorIPs.length);
+        for (int i = 0; i < servidorIPs.length; i++) {
+            sementes.add(Topologia.endereco(servidorIPs[i], servidorPortas[i]));
+        }
+        this.executor = Executors.newCachedThreadPool(tarefa -> {
+            Thread thread = new Thread(tarefa, "cliente-kv");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.poolConexoes = new PoolConexoes(null, executor);
+        this.timestamps = new ConcurrentHashMap<>();
+        this.servidores = new ConcurrentHashMap<>();
+        this.nivelEscrita = Configuracao.nivelEscrita(null);
+        this.nivelLeitura = Configuracao.nivelLeitura(null);
+        this.tempoFailoverNs = TimeUnit.MILLISECONDS.toNanos(Configuracao.tempoFailoverMs());
+    }
+
+    // Níveis usados por put/get sem nível explícito; null usa o padrão do servidor
+    public void setNivelEscrita(Mensagem.NivelEscrita nivelEscrita) { this.nivelEscrita = nivelEscrita; }
+    public void setNivelLeitura(Mensagem.NivelLeitura nivelLeitura) { this.nivelLeitura = nivelLeitura; }
+
+    public CompletableFuture<Escrita> put(String key, String value) {
+        return put(key, value, nivelEscrita);
+    }
+
+    public CompletableFuture<Escrita> put(String key, String value, Mensagem.NivelEscrita nivel) {
+        return put(key, value, nivel, 0);
+    }
+
+    // A key expira ttlMs depois da escrita, em todas as réplicas; 0 = nunca
+    public CompletableFuture<Escrita> put(String key, String value, long ttlMs) {
+        return put(key, value, nivelEscrita, ttlMs);
+    }
+
+    public CompletableFuture<Escrita> put(String key, String value, Mensagem.NivelEscrita nivel, long ttlMs) {
+        return topologia().thenCompose(t -> {
+            Mensagem put = new Mensagem(Mensagem.TipoMensagem.PUT, key, paraEnvio(value));
+            put.setNivelEscrita(nivel);
+            put.setTtlMs(ttlMs);
+            int particao = t.particaoDe(key);
+            return enviar(t.liderDe(particao), put, particao, false, null);
+        }).thenApply(resposta -> paraEscrita(key, resposta));
+    }
+
+    public CompletableFuture<Leitura> get(String key) {
+        return get(key, nivelLeitura, null);
+    }
+
+    // aoAguardar (opcional) é chamado se o servidor responder WAIT_FOR_RESPONSE;
+    // o futuro só completa com a resposta definitiva
+    public CompletableFuture<Leitura> get(String key, Runnable aoAguardar) {
+        return get(key, nivelLeitura, aoAguardar);
+    }
+
+    public CompletableFuture<Leitura> get(String key, Mensagem.NivelLeitura nivel, Runnable aoAguardar) {
+        return topologia().thenCompose(t -> {
+            int particao = t.particaoDe(key);
+            Mensagem get = new Mensagem(Mensagem.TipoMensagem.GET, key, timestamps.getOrDefault(key, 0L));
+            get.setNivelLeitura(nivel);
+            String servidor = servidorLeitura(t, particao, get.getTimestamp(), nivel);
+            return enviar(servidor, get, particao, true, aoAguardar)
+                    .thenApply(resposta -> paraLeitura(key, particao, resposta));
+        });
+    }
+
+    // Várias keys em um único MPUT por partição: um round trip, um intervalo de
+    // timestamps e uma confirmação para cada parte. Com 'atomica', nenhuma réplica
+    // expõe só parte do lote, que então precisa caber em uma partição.
+    public CompletableFuture<Map<String, Escrita>> putTodos(Map<String, String> valores, boolean atomica) {
+        return putTodos(valores, atomica, 0);
+    }
+
+    // Todas as keys do lote com o mesmo tempo de vida
+    public CompletableFuture<Map<String, Escrita>> putTodos(Map<String, String> valores, boolean atomica,
+            long ttlMs) {
+        return topologia().thenCompose(t -> {
+            Map<Integer, List<String>> grupos = porParticao(t, valores.keySet());
+            if (atomica && grupos.size() > 1) {
+                throw new ErroServidor("MPUT atômico com keys de " + grupos.size() + " partições");
+            }
+            List<CompletableFuture<Map<String, Escrita>>> partes = new ArrayList<>(grupos.size());
+            for (Map.Entry<Integer, List<String>> grupo : grupos.entrySet()) {
+                List<Mensagem.Registro> registros = new ArrayList<>(grupo.getValue().size());
+                for (String key : grupo.getValue()) {
+                    registros.add(new Mensagem.Registro(key, paraEnvio(valores.get(key)), 0));
+                }
+                partes.add(putParticao(t.liderDe(grupo.getKey()), grupo.getKey(), registros, atomica, ttlMs));
+            }
+            return juntar(partes);
+        });
+    }
+
+    private CompletableFuture<Map<String, Escrita>> putParticao(String servidor, int particao,
+            List<Mensagem.Registro> registros, boolean atomica, long ttlMs) {
+        Mensagem mput = new Mensagem(Mensagem.TipoMensagem.MPUT);
+        mput.setRegistros(registros);
+        mput.setAtomica(atomica);
+        mput.setTtlMs(ttlMs);
+        mput.setNivelEscrita(nivelEscrita);
+        return enviar(servidor, mput, particao, false, null).thenApply(resposta -> {
+            verificar(resposta.mensagem(), Mensagem.TipoMensagem.MPUT_OK);
+            Map<String, Escrita> resultado = new HashMap<>();
+            for (Mensagem.Registro registro : resposta.mensagem().getRegistros()) {
+                timestamps.merge(registro.getKey(), registro.getTimestamp(), Math::max);
+                resultado.put(registro.getKey(), new Escrita(registro.getTimestamp(), resposta.servidor()));
+            }
+            return resultado;
+        });
+    }
+
+    // Várias keys em um único MGET por partição, com valor e timestamp de cada uma
+    public CompletableFuture<Map<String, Leitura>> getTodos(Collection<String> keys) {
+        return topologia().thenCompose(t -> {
+            Map<Integer, List<String>> grupos = porParticao(t, keys);
+            List<CompletableFuture<Map<String, Leitura>>> partes = new ArrayList<>(grupos.size());
+            for (Map.Entry<Integer, List<String>> grupo : grupos.entrySet()) {
+                partes.add(getParticao(t, grupo.getKey(), grupo.getValue()));
+            }
+            return juntar(partes);
+        });
+    }
+
+    private CompletableFuture<Map<String, Leitura>> getParticao(Topologia t, int particao, List<String> keys) {
+        return mget(t, particao, keys, 0).thenApply(resposta -> paraLeituras(particao, resposta));
+    }
+
+    // Valor da key como era no timestamp 'comoEm'. Os servidores guardam algumas
+    // versões de cada key (kv.versoes); pedir uma já descartada falha com ErroServidor.
+    // Exceção: uma key com prazo (put com ttlMs) que já venceu e foi removida vem
+    // como ausente em qualquer momento, mesmo em um anterior ao prazo.
+    public CompletableFuture<Leitura> getComoEm(String key, long comoEm) {
+        return topologia().thenCompose(t -> {
+            int particao = t.particaoDe(key);
+            Mensagem get = new Mensagem(Mensagem.TipoMensagem.GET, key, 0);
+            get.setComoEm(comoEm);
+            get.setNivelLeitura(nivelLeitura);
+            String servidor = servidorLeitura(t, particao, comoEm, nivelLeitura);
+            return enviar(servidor, get, particao, true, null)
+                    .thenApply(resposta -> paraLeitura(key, particao, resposta));
+        });
+    }
+
+    // Várias keys como eram no mesmo timestamp; timestamps são por partição, então
+    // normalmente as keys são de uma partição só (ou o timestamp veio de um Retrato)
+    public CompletableFuture<Map<String, Leitura>> getTodosComoEm(Collection<String> keys, long comoEm) {
+        return topologia().thenCompose(t -> {
+            Map<Integer, List<String>> grupos = porParticao(t, keys);
+            List<CompletableFuture<Map<String, Leitura>>> partes = new ArrayList<>(grupos.size());
+            for (Map.Entry<Integer, List<String>> grupo : grupos.entrySet()) {
+                partes.add(mget(t, grupo.getKey(), grupo.getValue(), comoEm)
+                        .thenApply(resposta -> paraLeituras(grupo.getKey(), resposta)));
+            }
+            return juntar(partes);
+        });
+    }
+
+    // Métricas de um servidor ("ip:porta"), por nome; veja Metricas
+    public CompletableFuture<Map<String, String>> estatisticas(String servidor) {
+        CompletableFuture<Mensagem> futuro;
+        try {
+            futuro = conexao(servidor).requisitar(new Mensagem(Mensagem.TipoMensagem.STATS), null, PRAZO_REQUISICAO_MS);
+        } catch (IOException e) {
+            futuro = CompletableFuture.failedFuture(e);
+        }
+        return futuro.thenApply(resposta -> {
+            verificar(resposta, Mensagem.TipoMensagem.STATS);
+            Map<String, String> valores = new LinkedHashMap<>();
+            for (Mensagem.Registro registro : resposta.getRegistros()) {
+                valores.put(registro.getKey(), registro.getValue());
+            }
+            return valores;
+        });
+    }
+
+    // Keys em [inicio, fim), em ordem; fim null vai até a última
+    public Varredura varrer(String inicio, String fim) {
+        return varrer(inicio, fim, null, 0);
+    }
+
+    // Keys que começam com 'prefixo', em ordem
+    public Varredura varrerPrefixo(String prefixo) {
+        return varrer(prefixo, fimDoPrefixo(prefixo), null, 0);
+    }
+
+    // Continua depois de 'cursor' (Varredura.cursor() de uma varredura anterior, ou
+    // null para começar do início); tamanhoPedaco 0 usa o padrão do servidor
+    public Varredura varrer(String inicio, String fim, String cursor, int tamanhoPedaco) {
+        return new Varredura(inicio, fim, cursor, tamanhoPedaco);
+    }
+
+    // Menor string maior que todas as que começam com 'prefixo' (null se não houver)
+    static String fimDoPrefixo(String prefixo) {
+        int fim = prefixo.length();
+        while (fim > 0 && prefixo.charAt(fim - 1) == Character.MAX_VALUE) {
+            fim--;
+        }
+        return fim == 0 ? null : prefixo.substring(0, fim - 1) + (char) (prefixo.charAt(fim - 1) + 1);
+    }
+
+    // Iterador de uma varredura. Cada partição é varrida à parte, pedaço por pedaço,
+    // e os pedaços são juntados aqui em ordem de key. De cada partição só o pedaço
+    // sendo percorrido e o seguinte, pedido assim que o anterior chega, ficam na
+    // memória; quem percorre devagar segura os próximos pedidos, não os servidores.
+    // Cada pedaço pode vir de uma réplica diferente (failover, ou leituras
+    // espalhadas), mas nunca de uma mais atrasada que a do pedaço anterior da mesma
+    // partição; fora isso, o que cada uma devolve é o que ela tem, sem as garantias
+    // de ler as próprias escritas dos GETs.
+    //
+    // cursor() é a última key devolvida por next: guardado, retoma a varredura depois
+    // com varrer(inicio, fim, cursor, ...). Falhas saem de hasNext e next como exceções
+    // não verificadas (ErroServidor para um ERRO do servidor).
+    public final class Varredura implements Iterator<Item> {
+        private final String inicio;
+        private final String fim;
+        private final int limite;
+        private final CompletableFuture<Topologia> topologia;
+        // Partições com keys ainda não devolvidas, pela próxima key de cada uma;
+        // null até o primeiro hasNext
+        private PriorityQueue<Fonte> fontes;
+        private String cursor;
+
+        private Varredura(String inicio, String fim, String cursor, int limite) {
+            this.inicio = inicio;
+            this.fim = fim;
+            this.limite = limite;
+            this.cursor = cursor;
+            this.topologia = topologia();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (fontes == null) {
+                Topologia t = topologia.join();
+                List<Fonte> todas = new ArrayList<>(t.numParticoes());
+                for (int particao = 0; particao < t.numParticoes(); particao++) {
+                    todas.add(new Fonte(t, particao));
+                }
+                fontes = new PriorityQueue<>(Math.max(1, todas.size()),
+                        Comparator.comparing((Fonte fonte) -> fonte.atual.getKey()));
+                for (Fonte fonte : todas) {
+                    if (fonte.avancar()) {
+                        fontes.add(fonte);
+                    }
+                }
+            }
+            return !fontes.isEmpty();
+        }
+
+        @Override
+        public Item next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Fonte fonte = fontes.poll();
+            Mensagem.Registro registro = fonte.atual;
+            if (fonte.avancar()) {
+                fontes.add(fonte);
+            }
+            cursor = registro.getKey();
+            return new Item(registro.getKey(), Compressao.descomprimir(registro.getValue()), registro.getTimestamp());
+        }
+
+        public String cursor() {
+            return cursor;
+        }
+
+        // Os pedaços de uma partição, em ordem
+        private final class Fonte {
+            private final Topologia topologia;
+            private final int particao;
+            private Iterator<Mensagem.Registro> pedaco = Collections.emptyIterator();
+            // null depois do último pedaço
+            private CompletableFuture<Mensagem> proximo;
+            // Maior timestamp de réplica visto nesta partição
+            private long visto;
+            private Mensagem.Registro atual;
+
+            Fonte(Topologia topologia, int particao) {
+                this.topologia = topologia;
+                this.particao = particao;
+                this.proximo = pedir(cursor);
+            }
+
+            // Põe em 'atual' a próxima key da partição; false se não houver mais
+            boolean avancar() {
+                while (!pedaco.hasNext()) {
+                    if (proximo == null) {
+                        atual = null;
+                        return false;
+                    }
+                    Mensagem resposta = proximo.join();
+                    verificar(resposta, Mensagem.TipoMensagem.SCAN_RESPONSE);
+                    visto = Math.max(visto, resposta.getTimestamp());
+                    proximo = resposta.getCursor() == null ? null : pedir(resposta.getCursor());
+                    pedaco = resposta.getRegistros().iterator();
+                }
+                atual = pedaco.next();
+                return true;
+            }
+
+            private CompletableFuture<Mensagem> pedir(String apos) {
+                Mensagem scan = new Mensagem(Mensagem.TipoMensagem.SCAN, inicio, fim);
+                scan.setCursor(apos);
+                scan.setLimite(limite);
+                scan.setParticao(particao);
+                scan.setTimestamp(visto);
+                return enviar(servidorLeitura(topologia, particao, visto, nivelLeitura), scan, particao, true, null)
+                        .thenApply(Resposta::mensagem);
+            }
+        }
+    }
+
+    // Leituras consistentes entre si, sem bloquear escritas: veja Retrato
+    public Retrato retrato() {
+        return new Retrato();
+    }
+
+    // Retrato das keys em um momento. A primeira leitura de cada partição fixa o
+    // timestamp dela (o mais recente que o servidor tem) e as seguintes leem nele,
+    // então escritas posteriores não aparecem e um MPUT atômico aparece inteiro ou
+    // não aparece. Um retrato antigo pode falhar com ErroServidor quando as versões
+    // que ele lê forem descartadas.
+    class Retrato {
+        private final Map<Integer, CompletableFuture<Long>> momentos = new ConcurrentHashMap<>();
+
+        private Retrato() {
+        }
+
+        public CompletableFuture<Leitura> get(String key) {
+            return getTodos(List.of(key)).thenApply(leituras -> leituras.get(key));
+        }
+
+        public CompletableFuture<Map<String, Leitura>> getTodos(Collection<String> keys) {
+            return topologia().thenCompose(t -> {
+                Map<Integer, List<String>> grupos = porParticao(t, keys);
+                List<CompletableFuture<Map<String, Leitura>>> partes = new ArrayList<>(grupos.size());
+                for (Map.Entry<Integer, List<String>> grupo : grupos.entrySet()) {
+                    partes.add(ler(t, grupo.getKey(), grupo.getValue()));
+                }
+                return juntar(partes);
+            });
+        }
+
+        // Leitura das keys de uma partição no momento dela, fixado na primeira
+        private CompletableFuture<Map<String, Leitura>> ler(Topologia t, int particao, List<String> keys) {
+            CompletableFuture<Long> novo = new CompletableFuture<>();
+            CompletableFuture<Long> momento = momentos.putIfAbsent(particao, novo);
+            if (momento != null) {
+                return momento.thenCompose(comoEm -> mget(t, particao, keys, comoEm))
+                        .thenApply(resposta -> paraLeituras(particao, resposta));
+            }
+            // Primeira leitura da partição: o servidor escolhe o momento e o devolve
+            return mget(t, particao, keys, Mensagem.AGORA).thenApply(resposta -> {
+                Map<String, Leitura> leituras = paraLeituras(particao, resposta);
+                novo.complete(resposta.mensagem().getComoEm());
+                return leituras;
+            }).whenComplete((leituras, erro) -> {
+                if (erro != null) {
+                    momentos.remove(particao, novo);
+                    novo.completeExceptionally(erro);
+                }
+            });
+        }
+    }
+
+    // Um MGET para as keys de uma partição; comoEm 0 lê as versões atuais
+    private CompletableFuture<Resposta> mget(Topologia t, int particao, List<String> keys, long comoEm) {
+        List<Mensagem.Registro> pedidos = new ArrayList<>(keys.size());
+        long requerido = 0;
+        for (String key : keys) {
+            long timestamp = timestamps.getOrDefault(key, 0L);
+            pedidos.add(new Mensagem.Registro(key, "", timestamp));
+            requerido = Math.max(requerido, timestamp);
+        }
+        Mensagem mget = new Mensagem(Mensagem.TipoMensagem.MGET);
+        mget.setRegistros(pedidos);
+        mget.setNivelLeitura(nivelLeitura);
+        mget.setComoEm(comoEm);
+        if (comoEm != 0 && comoEm != Mensagem.AGORA) {
+            requerido = comoEm;
+        }
+        String servidor = servidorLeitura(t, particao, requerido, nivelLeitura);
+        return enviar(servidor, mget, particao, true, null);
+    }
+
+    private Map<String, Leitura> paraLeituras(int particao, Resposta resposta) {
+        verificar(resposta.mensagem(), Mensagem.TipoMensagem.MGET_RESPONSE);
+        Map<String, Leitura> resultado = new HashMap<>();
+        for (Mensagem.Registro registro : resposta.mensagem().getRegistros()) {
+            resultado.put(registro.getKey(), paraLeitura(registro.getKey(), particao, registro.getValue(),
+                    registro.getTimestamp(), resposta.servidor()));
+        }
+        return resultado;
+    }
+
+    @Override
+    public void close() {
+        poolConexoes.fecharTodas();
+        executor.shutdown();
+    }
+
+    // Envia a requisição e segue os REDIRECT. As respostas alimentam a latência do
+    // servidor; um WAIT_FOR_RESPONSE de uma leitura o marca como atrasado.
+    private CompletableFuture<Resposta> enviar(String servidor, Mensagem mensagem, int particao, boolean leitura,
+            Runnable aoAguardar) {
+        return tentar(servidor, mensagem, particao, leitura, aoAguardar, MAX_REDIRECIONAMENTOS,
+                System.nanoTime() + tempoFailoverNs);
+    }
+
+    private CompletableFuture<Resposta> tentar(String servidor, Mensagem mensagem, int particao, boolean leitura,
+            Runnable aoAguardar, int redirecionamentos, long prazoNs) {
+        EstadoServidor estado = estado(servidor);
+        boolean[] aguardou = new boolean[1];
+        Runnable aviso = !leitura ? null : () -> {
+            aguardou[0] = true;
+            estado.atrasou(particao);
+            if (aoAguardar != null) {
+                aoAguardar.run();
+            }
+        };
+        long inicio = System.nanoTime();
+        CompletableFuture<Mensagem> futuro;
+        estado.emVoo.incrementAndGet();
+        try {
+            futuro = conexao(servidor).requisitar(mensagem, aviso, PRAZO_REQUISICAO_MS);
+        } catch (IOException e) {
+            futuro = CompletableFuture.failedFuture(e);
+        }
+        return futuro.handle((resposta, erro) -> {
+            estado.emVoo.decrementAndGet();
+            boolean semLider = erro != null
+                    || (resposta.getTipo() == Mensagem.TipoMensagem.REDIRECT && resposta.getValue().isEmpty())
+                    || (!leitura && resposta.getTipo() == Mensagem.TipoMensagem.ERRO && resposta.getValue() != null
+                            && resposta.getValue().startsWith(Mensagem.QUORUM_INDISPONIVEL));
+            if (semLider && System.nanoTime() - prazoNs < 0) {
+                // Servidor fora do ar, eleição em andamento ou líder sem réplicas em dia:
+                // tentar de novo em outra réplica (ou no mesmo líder, pela topologia)
+                return CompletableFuture.runAsync(() -> { },
+                        CompletableFuture.delayedExecutor(PAUSA_FAILOVER_MS, TimeUnit.MILLISECONDS, executor))
+                        .thenCompose(nada -> atualizarTopologia())
+                        .handle((t, erroTopologia) -> outroServidor(t, particao, leitura, servidor))
+                        .thenCompose(proximo -> tentar(proximo, mensagem, particao, leitura, aoAguardar,
+                                MAX_REDIRECIONAMENTOS, prazoNs));
+            }
+            if (erro != null) {
+                return CompletableFuture.<Resposta>failedFuture(erro);
+            }
+            if (!aguardou[0]) {
+                estado.medir(System.nanoTime() - inicio);
+            }
+            if (resposta.getTipo() == Mensagem.TipoMensagem.REDIRECT && redirecionamentos > 0) {
+                atualizarTopologia();
+                return tentar(resposta.getValue(), mensagem, particao, leitura, aoAguardar, redirecionamentos - 1,
+                        prazoNs);
+            }
+            return CompletableFuture.completedFuture(new Resposta(resposta, servidor));
+        }).thenCompose(resposta -> resposta);
+    }
+
+    // Próxima tentativa depois de uma falha: o líder da topologia atualizada, se for
+    // outro, senão qualquer outra réplica da partição
+    private String outroServidor(Topologia t, int particao, boolean leitura, String falhou) {
+        List<String> candidatos = new ArrayList<>(t != null ? t.replicasDe(particao) : sementes);
+        if (t != null && !leitura && !t.liderDe(particao).equals(falhou)) {
+            return t.liderDe(particao);
+        }
+        if (candidatos.size() > 1) {
+            candidatos.remove(falhou);
+        }
+        return candidatos.get(ThreadLocalRandom.current().nextInt(candidatos.size()));
+    }
+
+    private CompletableFuture<Topologia> topologia() {
+        CompletableFuture<Topologia> atual = topologia;
+        if (atual == null || atual.isCompletedExceptionally()) {
+            atual = atualizarTopologia();
+        }
+        return atual;
+    }
+
+    // Pede a topologia aos servidores conhecidos, um de cada vez, até um responder.
+    // Enquanto a nova não chega, as requisições continuam usando a anterior.
+    private synchronized CompletableFuture<Topologia> atualizarTopologia() {
+        if (atualizacao != null && !atualizacao.isDone()) {
+            return atualizacao;
+        }
+        CompletableFuture<Topologia> nova = pedirTopologia(0);
+        atualizacao = nova;
+        CompletableFuture<Topologia> anterior = topologia;
+        if (anterior == null || !anterior.isDone() || anterior.isCompletedExceptionally()) {
+            topologia = nova;
+        } else {
+            nova.thenAccept(t -> topologia = nova);
+        }
+        return nova;
+    }
+
+    private CompletableFuture<Topologia> pedirTopologia(int indice) {
+        String servidor = sementes.get(indice);
+        CompletableFuture<Mensagem> futuro;
+        try {
+            futuro = conexao(servidor).requisitar(new Mensagem(Mensagem.TipoMensagem.TOPOLOGIA), null,
+                    PRAZO_REQUISICAO_MS);
+        } catch (IOException e) {
+            futuro = CompletableFuture.failedFuture(e);
+        }
+        return futuro.thenApply(resposta -> {
+            verificar(resposta, Mensagem.TipoMensagem.TOPOLOGIA);
+            return Topologia.deRegistros(resposta.getRegistros());
+        }).exceptionallyCompose(erro -> indice + 1 < sementes.size() ? pedirTopologia(indice + 1)
+                : CompletableFuture.failedFuture(erro));
+    }
+
+    // O líder sempre pode servir; um seguidor só entra se não estiver sabidamente
+    // atrás do timestamp pedido. Entre os que podem, sorteia dois e fica o de menor
+    // custo (latência vezes requisições em andamento): as leituras se espalham por
+    // todas as réplicas em dia, em vez de irem todas para a mais rápida até saturá-la.
+    private String servidorLeitura(Topologia t, int particao, long requerido, Mensagem.NivelLeitura nivel) {
+        List<String> replicas = t.replicasDe(particao);
+        if (nivel == Mensagem.NivelLeitura.LIDER || replicas.size() == 1) {
+            return replicas.get(0);
+        }
+        List<String> candidatas = new ArrayList<>(replicas.size());
+        candidatas.add(replicas.get(0));
+        for (int i = 1; i < replicas.size(); i++) {
+            if (estado(replicas.get(i)).podeServir(particao, requerido)) {
+                candidatas.add(replicas.get(i));
+            }
+        }
+        if (candidatas.size() == 1) {
+            return candidatas.get(0);
+        }
+        ThreadLocalRandom aleatorio = ThreadLocalRandom.current();
+        int a = aleatorio.nextInt(candidatas.size());
+        int b = aleatorio.nextInt(candidatas.size() - 1);
+        if (b >= a) {
+            b++;
+        }
+        String primeira = candidatas.get(a);
+        String segunda = candidatas.get(b);
+        return estado(primeira).custo() <= estado(segunda).custo() ? primeira : segunda;
+    }
+
+    // Keys agrupadas por partição, na ordem em que aparecem
+    private static Map<Integer, List<String>> porParticao(Topologia t, Collection<String> keys) {
+        Map<Integer, List<String>> grupos = new LinkedHashMap<>();
+        for (String key : keys) {
+            grupos.computeIfAbsent(t.particaoDe(key), particao -> new ArrayList<>()).add(key);
+        }
+        return grupos;
+    }
+
+    // Resultado de um lote dividido por partição
+    private static <V> CompletableFuture<Map<String, V>> juntar(List<CompletableFuture<Map<String, V>>> partes) {
+        if (partes.size() == 1) {
+            return partes.get(0);
+        }
+        return CompletableFuture.allOf(partes.toArray(new CompletableFuture<?>[0])).thenApply(nada -> {
+            Map<String, V> resultado = new HashMap<>();
+            for (CompletableFuture<Map<String, V>> parte : partes) {
+                resultado.putAll(parte.join());
+            }
+            return resultado;
+        });
+    }
+
+    private EstadoServidor estado(String servidor) {
+        return servidores.computeIfAbsent(servidor, s -> new EstadoServidor());
+    }
+
+    private Conexao conexao(String servidor) throws IOException {
+        return poolConexoes.obter(Topologia.ipDe(servidor), Topologia.portaDe(servidor));
+    }
+
+    private Escrita paraEscrita(String key, Resposta resposta) {
+        verificar(resposta.mensagem(), Mensagem.TipoMensagem.PUT_OK);
+        timestamps.merge(key, resposta.mensagem().getTimestamp(), Math::max);
+        return new Escrita(resposta.mensagem().getTimestamp(), resposta.servidor());
+    }
+
+    private Leitura paraLeitura(String key, int particao, Resposta resposta) {
+        verificar(resposta.mensagem(), Mensagem.TipoMensagem.GET_RESPONSE);
+        return paraLeitura(key, particao, resposta.mensagem().getValue(), resposta.mensagem().getTimestamp(),
+                resposta.servidor());
+    }
+
+    private Leitura paraLeitura(String key, int particao, String valor, long timestamp, String servidor) {
+        if (timestamp == 0) {
+            return new Leitura(null, 0, servidor);
+        }
+        timestamps.merge(key, timestamp, Math::max);
+        estado(servidor).aplicou(particao, timestamp);
+        return new Leitura(Compressao.descomprimir(valor), timestamp, servidor);
+    }
+
+    // Forma em que um valor do usuário vai para o servidor
+    private static String paraEnvio(String valor) {
+        String texto = Compressao.deTexto(valor);
+        return Compressao.ATIVA ? Compressao.comprimirSeValer(texto) : texto;
+    }
+
+    private static void verificar(Mensagem resposta, Mensagem.TipoMensagem esperado) {
+        if (resposta.getTipo() == Mensagem.TipoMensagem.ERRO) {
+            throw new ErroServidor(resposta.getValue());
+        }
+        if (resposta.getTipo() != esperado) {
+            throw new CompletionException(new IOException("Resposta inesperada: " + resposta.getTipo()));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Cluster de N servidores dentro desta JVM, para testes e benchmarks. Os servidores
+// são os mesmos de um cluster de processos, com sockets de verdade no localhost,
+// mas sobem sem terminal, sem persistência e sem esperar um ao outro: todos abrem
+// a porta antes de o líder procurar os seguidores, e iniciar só volta quando os
+// líderes estão em dia com eles (ou depois de alguns segundos), então o cluster
+// atende assim que iniciar volta, em qualquer nível de escrita.
+//
+//   try (ClusterEmbutido cluster = ClusterEmbutido.iniciar(3);
+//        ClienteKV cliente = cluster.cliente()) {
+//       cliente.put("a", "1").join();
+//   }
+//
+// As propriedades -Dkv.* valem para todos os servidores (motor, partições, níveis...).
+class ClusterEmbutido implements AutoCloseable {
+    private static final long ESPERA_SEGUIDORES_MS = 5000;
+
+    private final List<Servidor> servidores;
+    private final List<String> enderecos;
+
+    private ClusterEmbutido(List<Servidor> servidores, List<String> enderecos) {
+        this.servidores = servidores;
+        this.enderecos = Collections.unmodifiableList(enderecos);
+    }
+
+    // N servidores em portas livres do localhost; o primeiro é o líder inicial
+    public static ClusterEmbutido iniciar(int n) throws IOException {
+        return iniciar(portasLivres(n));
+    }
+
+    public static ClusterEmbutido iniciar(int... portas) throws IOException {
+        if (portas.length == 0) {
+            throw new IllegalArgumentException("O cluster precisa de ao menos um servidor");
+        }
+        List<String> enderecos = new ArrayList<>(portas.length);
+        for (int porta : portas) {
+            enderecos.add(Topologia.endereco("127.0.0.1", porta));
+        }
+        List<Servidor> servidores = new ArrayList<>(portas.length);
+        try {
+            for (int porta : portas) {
+                Servidor servidor = new Servidor();
+                servidores.add(servidor);
+                servidor.configurar("127.0.0.1", porta, enderecos.get(0), enderecos, "");
+                servidor.abrir();
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Servidor servidor : servidores) {
+                servidor.encerrar();
+            }
+            throw e;
+        }
+        for (Servidor servidor : servidores) {
+            servidor.iniciarEmSegundoPlano();
+        }
+        // Esperar os líderes alcançarem os seguidores: sem isso, uma escrita MAIORIA ou
+        // TODOS logo depois de iniciar seria recusada por falta de réplicas em dia
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ESPERA_SEGUIDORES_MS);
+        while (!servidores.stream().allMatch(Servidor::seguidoresEmDia) && System.nanoTime() < limite) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        return new ClusterEmbutido(servidores, enderecos);
+    }
+
+    // "ip:porta" de cada servidor, na ordem em que foram criados
+    public List<String> enderecos() {
+        return enderecos;
+    }
+
+    // Cliente novo apontando para todos os servidores; quem chama fecha
+    public ClienteKV cliente() {
+        String[] ips = new String[enderecos.size()];
+        int[] portas = new int[enderecos.size()];
+        for (int i = 0; i < enderecos.size(); i++) {
+            ips[i] = Topologia.ipDe(enderecos.get(i));
+            portas[i] = Topologia.portaDe(enderecos.get(i));
+        }
+        return new ClienteKV(ips, portas);
+    }
+
+    // Derruba um servidor, como a queda de um processo, para testar failover
+    public void parar(int indice) {
+        servidores.get(indice).encerrar();
+    }
+
+    @Override
+    public void close() {
+        for (Servidor servidor : servidores) {
+            servidor.encerrar();
+        }
+    }
+
+    // Portas que o sistema acabou de dar como livres; outro processo pode pegar
+    // uma delas antes de o servidor abri-la, o que iniciar informa como IOException
+    private static int[] portasLivres(int n) throws IOException {
+        int[] portas = new int[n];
+        List<ServerSocket> reservas = new ArrayList<>(n);
+        try {
+            for (int i = 0; i < n; i++) {
+                ServerSocket reserva = new ServerSocket(0);
+                reservas.add(reserva);
+                portas[i] = reserva.getLocalPort();
+            }
+        } finally {
+            for (ServerSocket reserva : reservas) {
+                reserva.close();
+            }
+        }
+        return portas;
+    }
+}
@@ -0,0 +1,381 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Formato binário das mensagens trocadas entre clientes e servidores.
+//
+// Cada quadro é: [tamanho int32][versão byte][tipo byte][flags varint][id varint][timestamp varint]
+// seguido dos campos opcionais indicados nas flags, nesta ordem:
+//   key        -> [tamanho varint][bytes UTF-8]
+//   value      -> [tamanho varint][bytes UTF-8]
+//   callback   -> [ip: tamanho varint + bytes UTF-8][porta varint]
+//   registros  -> [quantidade varint] e, para cada um, [key][value][timestamp varint], mais
+//                 [grupo varint] se a flag de grupos estiver presente e [expira em varint]
+//                 se a de expirações estiver
+//   níveis     -> [escrita byte][leitura byte][atraso máximo ms varint]; 0 = padrão do servidor,
+//                 senão ordinal + 1
+//   partição   -> [partição varint]
+//   termo      -> [termo varint]
+//   como em    -> [timestamp varint]
+//   ttl        -> [ms varint]
+//   cursor     -> [tamanho varint][bytes UTF-8]
+//   limite     -> [limite varint]
+// A flag de atômica não tem conteúdo.
+//
+// Valores comprimidos (veja Compressao): quem está com a compressão ligada põe a flag
+// de aceita comprimidos em todos os quadros, e cada conexão lembra se o outro lado a
+// mandou. Só então os quadros para ele levam a flag de comprimidos; com ela, um
+// value (o da mensagem ou o de um registro) que comece com o byte 0 é a forma
+// comprimida em bytes crus, não UTF-8. Sem ela, os valores vão descomprimidos.
+// O tamanho no início não inclui os próprios 4 bytes.
+class CodecMensagem {
+    public static final byte VERSAO = 1;
+    // Quadros maiores que isso são tratados como entrada inválida
+    public static final int TAMANHO_MAXIMO_QUADRO = 64 * 1024 * 1024;
+
+    private static final int FLAG_KEY = 1;
+    private static final int FLAG_VALUE = 1 << 1;
+    private static final int FLAG_CALLBACK = 1 << 2;
+    private static final int FLAG_REGISTROS = 1 << 3;
+    private static final int FLAG_NIVEIS = 1 << 4;
+    private static final int FLAG_ATOMICA = 1 << 5;
+    private static final int FLAG_GRUPOS = 1 << 6;
+    private static final int FLAG_PARTICAO = 1 << 7;
+    private static final int FLAG_TERMO = 1 << 8;
+    private static final int FLAG_COMO_EM = 1 << 9;
+    private static final int FLAG_TTL = 1 << 10;
+    private static final int FLAG_EXPIRACOES = 1 << 11;
+    private static final int FLAG_CURSOR = 1 << 12;
+    private static final int FLAG_LIMITE = 1 << 13;
+    private static final int FLAG_COMPRIMIDOS = 1 << 14;
+    private static final int FLAG_ACEITA_COMPRIMIDOS = 1 << 15;
+
+    private static final Mensagem.TipoMensagem[] TIPOS = Mensagem.TipoMensagem.values();
+    private static final Mensagem.NivelEscrita[] NIVEIS_ESCRITA = Mensagem.NivelEscrita.values();
+    private static final Mensagem.NivelLeitura[] NIVEIS_LEITURA = Mensagem.NivelLeitura.values();
+
+    private CodecMensagem() {
+    }
+
+    // Devolve o quadro completo, já com o prefixo de tamanho
+    public static byte[] codificar(Mensagem mensagem) {
+        return codificar(mensagem, false);
+    }
+
+    // 'comprimidos': o destino aceita valores comprimidos; senão eles vão descomprimidos
+    public static byte[] codificar(Mensagem mensagem, boolean comprimidos) {
+        Escritor escritor = new Escritor(64);
+        escritor.escreverInt(0); // reservado para o tamanho
+        escritor.escreverByte(VERSAO);
+        // O tipo vai como o ordinal do enum: novos tipos devem ser acrescentados no final
+        escritor.escreverByte(mensagem.getTipo().ordinal());
+
+        int flags = 0;
+        if (mensagem.getKey() != null) flags |= FLAG_KEY;
+        if (mensagem.getValue() != null) flags |= FLAG_VALUE;
+        if (mensagem.getClienteIP() != null) flags |= FLAG_CALLBACK;
+        if (mensagem.getRegistros() != null) flags |= FLAG_REGISTROS;
+        boolean niveis = mensagem.getNivelEscrita() != null || mensagem.getNivelLeitura() != null
+                || mensagem.getAtrasoMaximoMs() > 0;
+        if (niveis) flags |= FLAG_NIVEIS;
+        if (mensagem.isAtomica()) flags |= FLAG_ATOMICA;
+        boolean grupos = temGrupos(mensagem.getRegistros());
+        if (grupos) flags |= FLAG_GRUPOS;
+        if (mensagem.getParticao() != 0) flags |= FLAG_PARTICAO;
+        if (mensagem.getTermo() != 0) flags |= FLAG_TERMO;
+        if (mensagem.getComoEm() != 0) flags |= FLAG_COMO_EM;
+        if (mensagem.getTtlMs() != 0) flags |= FLAG_TTL;
+        boolean expiracoes = temExpiracoes(mensagem.getRegistros());
+        if (expiracoes) flags |= FLAG_EXPIRACOES;
+        if (mensagem.getCursor() != null) flags |= FLAG_CURSOR;
+        if (mensagem.getLimite() != 0) flags |= FLAG_LIMITE;
+        if (comprimidos) flags |= FLAG_COMPRIMIDOS;
+        if (Compressao.ATIVA) flags |= FLAG_ACEITA_COMPRIMIDOS;
+        escritor.escreverVarLong(flags);
+
+        escritor.escreverVarLong(mensagem.getIdRequisicao());
+        escritor.escreverVarLong(mensagem.getTimestamp());
+        if (mensagem.getKey() != null) escritor.escreverString(mensagem.getKey());
+        if (mensagem.getValue() != null) escritor.escreverValor(mensagem.getValue(), comprimidos);
+        if (mensagem.getClienteIP() != null) {
+            escritor.escreverString(mensagem.getClienteIP());
+            escritor.escreverVarLong(mensagem.getClientePorta());
+        }
+        if (mensagem.getRegistros() != null) {
+            escritor.escreverVarLong(mensagem.getRegistros().size());
+            for (Mensagem.Registro registro : mensagem.getRegistros()) {
+                escritor.escreverString(registro.getKey());
+                escritor.escreverValor(registro.getValue(), comprimidos);
+                escritor.escreverVarLong(registro.getTimestamp());
+                if (grupos) escritor.escreverVarLong(registro.getGrupo());
+                if (expiracoes) escritor.escreverVarLong(registro.getExpiraEm());
+            }
+        }
+        if (niveis) {
+            escritor.escreverByte(mensagem.getNivelEscrita() == null ? 0 : mensagem.getNivelEscrita().ordinal() + 1);
+            escritor.escreverByte(mensagem.getNivelLeitura() == null ? 0 : mensagem.getNivelLeitura().ordinal() + 1);
+            escritor.escreverVarLong(mensagem.getAtrasoMaximoMs());
+        }
+        if (mensagem.getParticao() != 0) escritor.escreverVarLong(mensagem.getParticao());
+        if (mensagem.getTermo() != 0) escritor.escreverVarLong(mensagem.getTermo());
+        if (mensagem.getComoEm() != 0) escritor.escreverVarLong(mensagem.getComoEm());
+        if (mensagem.getTtlMs() != 0) escritor.escreverVarLong(mensagem.getTtlMs());
+        if (mensagem.getCursor() != null) escritor.escreverString(mensagem.getCursor());
+        if (mensagem.getLimite() != 0) escritor.escreverVarLong(mensagem.getLimite());
+
+        byte[] quadro = escritor.toByteArray();
+        int tamanho = quadro.length - 4;
+        quadro[0] = (byte) (tamanho >>> 24);
+        quadro[1] = (byte) (tamanho >>> 16);
+        quadro[2] = (byte) (tamanho >>> 8);
+        quadro[3] = (byte) tamanho;
+        return quadro;
+    }
+
+    // Quadros de várias mensagens, um depois do outro, em um único array
+    public static byte[] codificarTodas(List<Mensagem> mensagens) {
+        return codificarTodas(mensagens, false);
+    }
+
+    public static byte[] codificarTodas(List<Mensagem> mensagens, boolean comprimidos) {
+        Escritor escritor = new Escritor(64 * mensagens.size());
+        for (Mensagem mensagem : mensagens) {
+            escritor.escreverBytesCrus(codificar(mensagem, comprimidos));
+        }
+        return escritor.toByteArray();
+    }
+
+    // Decodifica o corpo de um quadro (sem o prefixo de tamanho)
+    public static Mensagem decodificar(byte[] corpo, int inicio, int tamanho) throws IOException {
+        Leitor leitor = new Leitor(corpo, inicio, inicio + tamanho);
+        int versao = leitor.lerByte();
+        if (versao != VERSAO) {
+            throw new IOException("Versão de protocolo não suportada: " + versao);
+        }
+        int tipo = leitor.lerByte();
+        if (tipo >= TIPOS.length) {
+            throw new IOException("Tipo de mensagem desconhecido: " + tipo);
+        }
+        long flags = leitor.lerVarLong();
+        boolean comprimidos = (flags & FLAG_COMPRIMIDOS) != 0;
+
+        Mensagem mensagem = new Mensagem(TIPOS[tipo]);
+        mensagem.setIdRequisicao(leitor.lerVarLong());
+        mensagem.setTimestamp(leitor.lerVarLong());
+        if ((flags & FLAG_KEY) != 0) mensagem.setKey(leitor.lerString());
+        if ((flags & FLAG_VALUE) != 0) mensagem.setValue(leitor.lerValor(comprimidos));
+        if ((flags & FLAG_CALLBACK) != 0) {
+            mensagem.setClienteIP(leitor.lerString());
+            mensagem.setClientePorta((int) leitor.lerVarLong());
+        }
+        if ((flags & FLAG_REGISTROS) != 0) {
+            long quantidade = leitor.lerVarLong();
+            // Cada registro ocupa ao menos 3 bytes; evita alocar listas enormes com quadros forjados
+            if (quantidade < 0 || quantidade > tamanho / 3) {
+                throw new IOException("Quantidade de registros inválida: " + quantidade);
+            }
+            List<Mensagem.Registro> registros = new ArrayList<>((int) quantidade);
+            boolean grupos = (flags & FLAG_GRUPOS) != 0;
+            boolean expiracoes = (flags & FLAG_EXPIRACOES) != 0;
+            for (long i = 0; i < quantidade; i++) {
+                String key = leitor.lerString();
+                String value = leitor.lerValor(comprimidos);
+                long timestamp = leitor.lerVarLong();
+                long grupo = grupos ? leitor.lerVarLong() : 0;
+                long expiraEm = expiracoes ? leitor.lerVarLong() : 0;
+                registros.add(new Mensagem.Registro(key, value, timestamp, grupo, expiraEm));
+            }
+            mensagem.setRegistros(registros);
+        }
+        mensagem.setAtomica((flags & FLAG_ATOMICA) != 0);
+        if ((flags & FLAG_NIVEIS) != 0) {
+            int escrita = leitor.lerByte();
+            int leitura = leitor.lerByte();
+            if (escrita > NIVEIS_ESCRITA.length || leitura > NIVEIS_LEITURA.length) {
+                throw new IOException("Nível de consistência desconhecido");
+            }
+            mensagem.setNivelEscrita(escrita == 0 ? null : NIVEIS_ESCRITA[escrita - 1]);
+            mensagem.setNivelLeitura(leitura == 0 ? null : NIVEIS_LEITURA[leitura - 1]);
+            mensagem.setAtrasoMaximoMs(leitor.lerVarLong());
+        }
+        if ((flags & FLAG_PARTICAO) != 0) mensagem.setParticao((int) leitor.lerVarLong());
+        if ((flags & FLAG_TERMO) != 0) mensagem.setTermo(leitor.lerVarLong());
+        if ((flags & FLAG_COMO_EM) != 0) mensagem.setComoEm(leitor.lerVarLong());
+        if ((flags & FLAG_TTL) != 0) mensagem.setTtlMs(leitor.lerVarLong());
+        if ((flags & FLAG_CURSOR) != 0) mensagem.setCursor(leitor.lerString());
+        if ((flags & FLAG_LIMITE) != 0) mensagem.setLimite((int) leitor.lerVarLong());
+        mensagem.setAceitaComprimidos((flags & FLAG_ACEITA_COMPRIMIDOS) != 0);
+        return mensagem;
+    }
+
+    private static boolean temGrupos(List<Mensagem.Registro> registros) {
+        if (registros != null) {
+            for (Mensagem.Registro registro : registros) {
+                if (registro.getGrupo() != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean temExpiracoes(List<Mensagem.Registro> registros) {
+        if (registros != null) {
+            for (Mensagem.Registro registro : registros) {
+                if (registro.getExpiraEm() != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Valida o prefixo de tamanho lido da rede
+    public static int validarTamanho(int tamanho) throws IOException {
+        if (tamanho < 3 || tamanho > TAMANHO_MAXIMO_QUADRO) {
+            throw new IOException("Tamanho de quadro inválido: " + tamanho);
+        }
+        return tamanho;
+    }
+
+    // Buffer de escrita que cresce conforme a necessidade
+    static class Escritor {
+        private byte[] dados;
+        private int posicao;
+
+        Escritor(int capacidadeInicial) {
+            this.dados = new byte[capacidadeInicial];
+        }
+
+        private void garantir(int extra) {
+            if (posicao + extra > dados.length) {
+                dados = Arrays.copyOf(dados, Math.max(dados.length * 2, posicao + extra));
+            }
+        }
+
+        void escreverByte(int valor) {
+            garantir(1);
+            dados[posicao++] = (byte) valor;
+        }
+
+        void escreverInt(int valor) {
+            garantir(4);
+            dados[posicao++] = (byte) (valor >>> 24);
+            dados[posicao++] = (byte) (valor >>> 16);
+            dados[posicao++] = (byte) (valor >>> 8);
+            dados[posicao++] = (byte) valor;
+        }
+
+        // Varint sem sinal (7 bits por byte, bit mais alto indica continuação)
+        void escreverVarLong(long valor) {
+            garantir(10);
+            while ((valor & ~0x7FL) != 0) {
+                dados[posicao++] = (byte) ((valor & 0x7F) | 0x80);
+                valor >>>= 7;
+            }
+            dados[posicao++] = (byte) valor;
+        }
+
+        void escreverBytes(byte[] bytes) {
+            escreverVarLong(bytes.length);
+            garantir(bytes.length);
+            System.arraycopy(bytes, 0, dados, posicao, bytes.length);
+            posicao += bytes.length;
+        }
+
+        void escreverString(String valor) {
+            escreverBytes(valor.getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Valor comprimido em bytes crus; o resto em UTF-8 (veja Compressao.paraBytes)
+        void escreverValor(String valor) {
+            escreverBytes(Compressao.paraBytes(valor));
+        }
+
+        void escreverValor(String valor, boolean comprimidos) {
+            if (comprimidos) {
+                escreverValor(valor);
+            } else {
+                escreverString(Compressao.descomprimir(valor));
+            }
+        }
+
+        // Bytes sem prefixo de tamanho
+        void escreverBytesCrus(byte[] bytes) {
+            garantir(bytes.length);
+            System.arraycopy(bytes, 0, dados, posicao, bytes.length);
+            posicao += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(dados, posicao);
+        }
+    }
+
+    // Leitura sequencial de um quadro, sempre verificando os limites
+    static class Leitor {
+        private final byte[] dados;
+        private int posicao;
+        private final int fim;
+
+        Leitor(byte[] dados, int inicio, int fim) {
+            this.dados = dados;
+            this.posicao = inicio;
+            this.fim = fim;
+        }
+
+        private void exigir(int quantidade) throws IOException {
+            if (quantidade < 0 || posicao + quantidade > fim) {
+                throw new IOException("Quadro truncado");
+            }
+        }
+
+        int lerByte() throws IOException {
+            exigir(1);
+            return dados[posicao++] & 0xFF;
+        }
+
+        long lerVarLong() throws IOException {
+            long resultado = 0;
+            for (int deslocamento = 0; deslocamento < 64; deslocamento += 7) {
+                int b = lerByte();
+                resultado |= (long) (b & 0x7F) << deslocamento;
+                if ((b & 0x80) == 0) {
+                    return resultado;
+                }
+            }
+            throw new IOException("Varint malformado");
+        }
+
+        boolean temMais() {
+            return posicao < fim;
+        }
+
+        String lerString() throws IOException {
+            long tamanho = lerVarLong();
+            if (tamanho < 0 || tamanho > fim - posicao) {
+                throw new IOException("Quadro truncado");
+            }
+            String valor = new String(dados, posicao, (int) tamanho, StandardCharsets.UTF_8);
+            posicao += (int) tamanho;
+            return valor;
+        }
+
+        String lerValor() throws IOException {
+            long tamanho = lerVarLong();
+            if (tamanho < 0 || tamanho > fim - posicao) {
+                throw new IOException("Quadro truncado");
+            }
+            String valor = Compressao.deBytes(dados, posicao, (int) tamanho);
+            posicao += (int) tamanho;
+            return valor;
+        }
+
+        // Um valor em texto que pareça comprimido é comprimido de fato (veja Compressao)
+        String lerValor(boolean comprimidos) throws IOException {
+            return comprimidos ? lerValor() : Compressao.deTexto(lerString());
+        }
+    }
+}
@@ -0,0 +1,183 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Compressão de valores grandes com Deflate (java.util.zip).
+//
+// Um valor comprimido continua sendo uma String, para passar sem mudanças por
+// Mensagem, motores, WAL e replicação: MARCA, 4 chars com o tamanho original em
+// bytes UTF-8 e depois os bytes do Deflate, um por char. Como todos os chars são
+// Latin-1, a JVM guarda a String com um byte por char, e paraBytes a converte de
+// volta nos mesmos bytes com uma cópia, sem recodificar. O que começa com MARCA
+// é sempre um valor comprimido: um valor do usuário que comece com '\u0000' é
+// comprimido à força na entrada (deTexto), e assim nunca há ambiguidade. Um valor
+// que chega já comprimido de um cliente é conferido pelo líder (valido) antes de
+// ser gravado.
+//
+// Com kv.compressao, quem comprime é quem recebe o valor do usuário (ClienteKV)
+// e, se o cliente não o fez, o líder antes de gravar e replicar; o armazenamento guarda o valor
+// comprimido ou não conforme kv.armazenarComprimido. O codec só envia valores
+// comprimidos para quem anunciou que os aceita (veja CodecMensagem) e descomprime
+// para os demais; o ClienteKV descomprime ao devolver o valor para a aplicação.
+final class Compressao {
+    static final char MARCA = '\u0000';
+    // Liga a compressão neste processo: anunciar, aceitar e produzir valores comprimidos
+    static final boolean ATIVA = Configuracao.compressao();
+    // Valores menores que isso (em chars) não compensam o custo
+    static final int LIMIAR = Configuracao.limiarCompressao();
+    static final boolean ARMAZENAR = Configuracao.armazenarComprimido();
+    private static final int CABECALHO = 5;
+    // O Deflate não expande mais que ~1032 vezes: um cabeçalho que promete mais que
+    // isso para o tamanho comprimido é corrompido (ou malicioso) e nem é alocado
+    private static final long RAZAO_MAXIMA = 1032;
+
+    // Valores comprimidos neste processo e quantos bytes eles deixaram de ocupar
+    private static final LongAdder VALORES = new LongAdder();
+    private static final LongAdder ECONOMIZADOS = new LongAdder();
+
+    private Compressao() {
+    }
+
+    static boolean comprimido(String valor) {
+        return valor != null && !valor.isEmpty() && valor.charAt(0) == MARCA;
+    }
+
+    // A forma comprimida se o valor passar do limiar e ficar menor; senão o próprio valor
+    static String comprimirSeValer(String valor) {
+        if (valor == null || valor.length() < LIMIAR || comprimido(valor)) {
+            return valor;
+        }
+        byte[] original = valor.getBytes(StandardCharsets.UTF_8);
+        String comprimido = comprimir(original, false);
+        if (comprimido == null) {
+            return valor;
+        }
+        VALORES.increment();
+        ECONOMIZADOS.add(original.length - comprimido.length());
+        return comprimido;
+    }
+
+    // Valor do usuário recebido como texto: só muda se começar com MARCA
+    static String deTexto(String valor) {
+        return comprimido(valor) ? comprimir(valor.getBytes(StandardCharsets.UTF_8), true) : valor;
+    }
+
+    // Forma em que o armazenamento guarda o valor (kv.armazenarComprimido)
+    static String paraArmazenar(String valor) {
+        if (!comprimido(valor)) {
+            return ARMAZENAR ? comprimirSeValer(valor) : valor;
+        }
+        if (ARMAZENAR) {
+            return valor;
+        }
+        String original = descomprimir(valor);
+        // Sem comprimir ele seria confundido com um valor comprimido
+        return comprimido(original) ? valor : original;
+    }
+
+    // Valor recebido de um cliente: se vier comprimido, o cabeçalho e o Deflate
+    // precisam estar inteiros, senão ele quebraria toda leitura depois de gravado
+    static boolean valido(String valor) {
+        try {
+            descomprimir(valor);
+            return true;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    // O valor como o usuário o gravou
+    static String descomprimir(String valor) {
+        if (!comprimido(valor)) {
+            return valor;
+        }
+        byte[] entrada = valor.getBytes(StandardCharsets.ISO_8859_1);
+        if (entrada.length < CABECALHO) {
+            throw new IllegalStateException("Valor comprimido corrompido");
+        }
+        int tamanho = ((entrada[1] & 0xFF) << 24) | ((entrada[2] & 0xFF) << 16)
+                | ((entrada[3] & 0xFF) << 8) | (entrada[4] & 0xFF);
+        long comprimidos = entrada.length - CABECALHO;
+        if (tamanho < 0 || tamanho > CodecMensagem.TAMANHO_MAXIMO_QUADRO
+                || tamanho > comprimidos * RAZAO_MAXIMA + 64) {
+            throw new IllegalStateException("Valor comprimido corrompido");
+        }
+        // Cresce conforme o Deflate produz, em vez de confiar no cabeçalho para alocar tudo
+        byte[] saida = new byte[(int) Math.min(tamanho, Math.max(64, comprimidos * 4))];
+        // Um por chamada, e end() em seguida: a memória nativa do zlib não depende
+        // do coletor de lixo nem fica presa a threads (virtuais, às milhares)
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(entrada, CABECALHO, entrada.length - CABECALHO);
+        try {
+            int lidos = 0;
+            while (lidos < tamanho) {
+                if (lidos == saida.length) {
+                    saida = Arrays.copyOf(saida, (int) Math.min(tamanho, saida.length * 2L));
+                }
+                int n = inflater.inflate(saida, lidos, saida.length - lidos);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                lidos += n;
+            }
+            if (lidos != tamanho) {
+                throw new IllegalStateException("Valor comprimido corrompido");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Valor comprimido corrompido", e);
+        } finally {
+            inflater.end();
+        }
+        return new String(saida, StandardCharsets.UTF_8);
+    }
+
+    public static long valoresComprimidos() {
+        return VALORES.sum();
+    }
+
+    public static long bytesEconomizados() {
+        return ECONOMIZADOS.sum();
+    }
+
+    // Bytes para disco, motor e rede: os do Deflate (com a marca) ou o texto em UTF-8
+    static byte[] paraBytes(String valor) {
+        return valor.getBytes(comprimido(valor) ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    static String deBytes(byte[] bytes, int inicio, int tamanho) {
+        boolean comprimido = tamanho > 0 && bytes[inicio] == 0;
+        return new String(bytes, inicio, tamanho, comprimido ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    // null se não ficar menor, a não ser com 'forcar'
+    private static String comprimir(byte[] original, boolean forcar) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(original);
+            deflater.finish();
+            // Deflate pode crescer um pouco em dados que não comprimem
+            byte[] saida = new byte[CABECALHO + original.length + original.length / 1000 + 64];
+            int escritos = CABECALHO;
+            while (!deflater.finished()) {
+                if (escritos == saida.length) {
+                    saida = Arrays.copyOf(saida, saida.length * 2);
+                }
+                escritos += deflater.deflate(saida, escritos, saida.length - escritos);
+                if (!forcar && escritos >= original.length) {
+                    return null;
+                }
+            }
+            saida[0] = (byte) MARCA;
+            saida[1] = (byte) (original.length >>> 24);
+            saida[2] = (byte) (original.length >>> 16);
+            saida[3] = (byte) (original.length >>> 8);
+            saida[4] = (byte) original.length;
+            return new String(saida, 0, escritos, StandardCharsets.ISO_8859_1);
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Conexão TCP persistente que transporta várias mensagens nos dois sentidos.
+// Cada requisição recebe um id; a resposta com o mesmo id completa o futuro
+// correspondente. Mensagens que não respondem a nenhuma requisição pendente
+// (requisições recebidas, respostas assíncronas) vão para o tratador.
+// Um WAIT_FOR_RESPONSE só completa o futuro se a requisição não pediu para
+// esperar a resposta definitiva (ver requisitar com aoAguardar).
+// As mensagens trafegam no formato binário de CodecMensagem.
+class Conexao implements Canal {
+    // Quanto esperar o aceite de um servidor que não responde (máquina fora da rede)
+    private static final int TEMPO_CONEXAO_MS = Configuracao.inteiro("tempoConexaoMs", 3000);
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final DataInputStream in;
+    private final Map<Long, CompletableFuture<Mensagem>> pendentes;
+    // Requisições cujo WAIT_FOR_RESPONSE é só um aviso; o futuro espera a resposta seguinte
+    private final Map<Long, Runnable> avisosEspera;
+    private final AtomicLong proximoId;
+    private final String ipRemoto;
+    private final int portaRemota;
+    private Consumer<Mensagem> tratador;
+    private Runnable aoFechar;
+    private volatile boolean fechada;
+    // O outro lado anunciou que aceita valores comprimidos
+    private volatile boolean remotoAceitaComprimidos;
+
+    public Conexao(Socket socket) throws IOException {
+        this.socket = socket;
+        this.socket.setTcpNoDelay(true);
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.pendentes = new ConcurrentHashMap<>();
+        this.avisosEspera = new ConcurrentHashMap<>();
+        this.proximoId = new AtomicLong(1);
+        this.ipRemoto = socket.getInetAddress().getHostAddress();
+        this.portaRemota = socket.getPort();
+    }
+
+    public static Conexao conectar(String ip, int porta) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ip, porta), TEMPO_CONEXAO_MS);
+            return new Conexao(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    // Inicia a thread de leitura; o tratador recebe as mensagens não solicitadas
+    public void iniciar(Consumer<Mensagem> tratador, ExecutorService executor) {
+        iniciar(tratador, executor, null);
+    }
+
+    // Variante que avisa quando a thread de leitura termina
+    public void iniciar(Consumer<Mensagem> tratador, ExecutorService executor, Runnable aoFechar) {
+        this.tratador = tratador;
+        this.aoFechar = aoFechar;
+        executor.submit(this::lerMensagens);
+    }
+
+    private void lerMensagens() {
+        try {
+            while (!fechada) {
+                int tamanho = CodecMensagem.validarTamanho(in.readInt());
+                byte[] corpo = new byte[tamanho];
+                in.readFully(corpo);
+                Mensagem mensagem = CodecMensagem.decodificar(corpo, 0, tamanho);
+                if (mensagem.isAceitaComprimidos()) {
+                    remotoAceitaComprimidos = true;
+                }
+                long id = mensagem.getIdRequisicao();
+                if (mensagem.getTipo() == Mensagem.TipoMensagem.WAIT_FOR_RESPONSE) {
+                    Runnable aviso = avisosEspera.get(id);
+                    if (aviso != null) {
+                        aviso.run();
+                        continue;
+                    }
+                }
+                CompletableFuture<Mensagem> futuro = pendentes.remove(id);
+                if (futuro != null) {
+                    avisosEspera.remove(id);
+                    futuro.complete(mensagem);
+                } else if (tratador != null) {
+                    tratador.accept(mensagem);
+                }
+            }
+        } catch (Exception e) {
+            // Fim do stream ou erro de leitura: a conexão não pode mais ser usada
+        } finally {
+            fechar();
+            if (aoFechar != null) {
+                aoFechar.run();
+            }
+        }
+    }
+
+    // Envia uma requisição com um novo id e devolve o futuro da resposta
+    public CompletableFuture<Mensagem> requisitar(Mensagem mensagem) {
+        return requisitar(mensagem, null);
+    }
+
+    // Se aoAguardar não for null, um WAIT_FOR_RESPONSE só o chama, e o futuro
+    // é completado pela resposta definitiva que chega depois com o mesmo id
+    public CompletableFuture<Mensagem> requisitar(Mensagem mensagem, Runnable aoAguardar) {
+        CompletableFuture<Mensagem> futuro = registrar(mensagem, aoAguardar);
+        try {
+            enviar(mensagem);
+        } catch (IOException e) {
+            descartar(mensagem.getIdRequisicao(), e);
+        }
+        return futuro;
+    }
+
+    // Com prazo: sem resposta em prazoMs o futuro falha com TimeoutException e o id
+    // é esquecido (uma resposta atrasada vai para o tratador); 0 não tem prazo
+    public CompletableFuture<Mensagem> requisitar(Mensagem mensagem, Runnable aoAguardar, long prazoMs) {
+        CompletableFuture<Mensagem> futuro = requisitar(mensagem, aoAguardar);
+        if (prazoMs <= 0) {
+            return futuro;
+        }
+        long id = mensagem.getIdRequisicao();
+        return futuro.orTimeout(prazoMs, TimeUnit.MILLISECONDS).whenComplete((resposta, erro) -> {
+            if (erro instanceof TimeoutException) {
+                avisosEspera.remove(id);
+                pendentes.remove(id, futuro);
+            }
+        });
+    }
+
+    private CompletableFuture<Mensagem> registrar(Mensagem mensagem, Runnable aoAguardar) {
+        long id = proximoId.getAndIncrement();
+        mensagem.setIdRequisicao(id);
+        CompletableFuture<Mensagem> futuro = new CompletableFuture<>();
+        if (aoAguardar != null) {
+            avisosEspera.put(id, aoAguardar);
+        }
+        pendentes.put(id, futuro);
+        return futuro;
+    }
+
+    private void descartar(long id, IOException erro) {
+        avisosEspera.remove(id);
+        CompletableFuture<Mensagem> futuro = pendentes.remove(id);
+        if (futuro != null) {
+            futuro.completeExceptionally(erro);
+        }
+    }
+
+    // Envia uma mensagem sem esperar resposta (respostas, notificações)
+    @Override
+    public void enviar(Mensagem mensagem) throws IOException {
+        enviarQuadros(CodecMensagem.codificar(mensagem, remotoAceitaComprimidos));
+    }
+
+    @Override
+    public void enviarTodas(List<Mensagem> mensagens) throws IOException {
+        enviarQuadros(CodecMensagem.codificarTodas(mensagens, remotoAceitaComprimidos));
+    }
+
+    private void enviarQuadros(byte[] quadro) throws IOException {
+        if (fechada) {
+            throw new IOException("Conexão com " + getEnderecoRemoto() + " está fechada");
+        }
+        try {
+            synchronized (out) {
+                out.write(quadro);
+                out.flush();
+            }
+        } catch (IOException e) {
+            fechar();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean isAberta() {
+        return !fechada;
+    }
+
+    @Override
+    public String getIPRemoto() {
+        return ipRemoto;
+    }
+
+    @Override
+    public int getPortaRemota() {
+        return portaRemota;
+    }
+
+    public String getEnderecoRemoto() {
+        return ipRemoto + ":" + portaRemota;
+    }
+
+    public void fechar() {
+        if (fechada) {
+            return;
+        }
+        fechada = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignorar erro de fechamento
+        }
+        IOException erro = new IOException("Conexão com " + getEnderecoRemoto() + " encerrada");
+        for (Long id : pendentes.keySet()) {
+            descartar(id, erro);
+        }
+    }
+}
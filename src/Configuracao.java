@@ -0,0 +1,251 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+// Parâmetros de execução e opções de inicialização de servidores e clientes. Cada
+// parâmetro vem das opções carregadas na inicialização (linha de comando e arquivo
+// de --config, veja carregar) ou, se não estiver nelas, das propriedades do sistema
+// (-Dkv.<nome>=valor). Alguns são lidos uma vez, quando a classe que os usa é
+// carregada: por isso o main carrega as opções antes de criar qualquer coisa.
+class Configuracao {
+    // NIO: um seletor não bloqueante e poucas threads de trabalho.
+    // THREADS: uma thread por conexão (virtual, se a JVM suportar), com limite de conexões.
+    public enum ModoIO {
+        NIO, THREADS
+    }
+
+    // Opções de carregar; vazio até lá (clusters embutidos e verificações só usam -Dkv.)
+    private static volatile Map<String, String> carregadas = Map.of();
+
+    private Configuracao() {
+    }
+
+    public static ModoIO modoIO() {
+        return ModoIO.valueOf(texto("modoIO", "NIO").toUpperCase());
+    }
+
+    public static int threadsTrabalho() {
+        return inteiro("threadsTrabalho", Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public static int maxConexoes() {
+        return inteiro("maxConexoes", 10000);
+    }
+
+    // Quando o WAL é sincronizado com o disco: a cada grupo de escritas (SEMPRE),
+    // periodicamente (INTERVALO) ou só quando o sistema operacional decidir (NUNCA)
+    public enum PoliticaFsync {
+        SEMPRE, INTERVALO, NUNCA
+    }
+
+    // Diretório do WAL e dos snapshots; vazio desativa a persistência
+    public static String diretorioDados(String padrao) {
+        return texto("dir", padrao);
+    }
+
+    public static PoliticaFsync politicaFsync() {
+        return PoliticaFsync.valueOf(texto("fsync", "SEMPRE").toUpperCase());
+    }
+
+    public static long intervaloFsyncMs() {
+        return longo("intervaloFsyncMs", 10);
+    }
+
+    public static long intervaloSnapshotMs() {
+        return longo("intervaloSnapshotMs", 60_000);
+    }
+
+    // Níveis de consistência usados quando a requisição não pede um. No cliente,
+    // 'padrao' null deixa a decisão para o servidor.
+    public static Mensagem.NivelEscrita nivelEscrita(Mensagem.NivelEscrita padrao) {
+        String valor = texto("nivelEscrita", null);
+        return valor == null ? padrao : Mensagem.NivelEscrita.valueOf(valor.trim().toUpperCase());
+    }
+
+    public static Mensagem.NivelLeitura nivelLeitura(Mensagem.NivelLeitura padrao) {
+        String valor = texto("nivelLeitura", null);
+        return valor == null ? padrao : Mensagem.NivelLeitura.valueOf(valor.trim().toUpperCase());
+    }
+
+    // Nível mínimo dos eventos escritos pelo Log
+    public static Log.Nivel nivelLog() {
+        return Log.Nivel.valueOf(texto("log", "INFO").trim().toUpperCase());
+    }
+
+    // Um a cada quantos eventos de DEBUG é escrito; 1 escreve todos
+    public static int amostraLog() {
+        return inteiro("amostraLog", 1);
+    }
+
+    // Atraso máximo aceito por uma leitura LIMITADA em um seguidor
+    public static long atrasoMaximoMs() {
+        return longo("atrasoMaximoMs", 1000);
+    }
+
+    // Com o log parado, o líder manda um lote vazio a cada intervalo para que os
+    // seguidores saibam que continuam em dia
+    public static long intervaloHeartbeatMs() {
+        return longo("intervaloHeartbeatMs", 50);
+    }
+
+    // Quanto um GET em WAIT_FOR_RESPONSE espera antes de receber ERRO; 0 espera sem limite
+    public static long esperaMaximaMs() {
+        return longo("esperaMaximaMs", 30_000);
+    }
+
+    // Quanto o ClienteKV espera a resposta de cada tentativa antes de desistir do
+    // servidor (e tentar outro, dentro de tempoFailoverMs); acima de esperaMaximaMs,
+    // que é o que um GET pode esperar no servidor. 0 espera sem limite
+    public static long prazoRequisicaoMs() {
+        return longo("prazoRequisicaoMs", 60_000);
+    }
+
+    // Sem notícias do líder por um tempo entre este e o dobro dele, um seguidor se candidata
+    public static long prazoEleicaoMs() {
+        return longo("prazoEleicaoMs", 500);
+    }
+
+    // Por quanto tempo o ClienteKV tenta de novo uma requisição enquanto o líder é trocado
+    public static long tempoFailoverMs() {
+        return longo("tempoFailoverMs", 10_000);
+    }
+
+    // Onde o armazenamento guarda as entradas: MAPA usa um objeto por key em um
+    // ConcurrentHashMap; COMPACTO guarda keys, valores e timestamps em blocos de
+    // bytes, com bem menos memória e trabalho do coletor de lixo por key
+    public enum Motor {
+        MAPA, COMPACTO
+    }
+
+    public static Motor motor() {
+        return Motor.valueOf(texto("motor", "MAPA").trim().toUpperCase());
+    }
+
+    // Keys mais lidas que o motor COMPACTO mantém decodificadas (veja CacheLeituras); 0 desliga
+    public static int cacheLeituras() {
+        return inteiro("cacheLeituras", 10_000);
+    }
+
+    // Versões guardadas por key para leituras "como em" um timestamp; 1 guarda só a atual
+    public static int versoes() {
+        return inteiro("versoes", 4);
+    }
+
+    // Índice das keys em ordem, ao lado do motor, para SCAN; custa um nó e a String
+    // da key por key (no MotorCompacto, justamente o que ele evita), por isso é opcional
+    public static boolean indiceOrdenado() {
+        return Boolean.parseBoolean(texto("indiceOrdenado", "false"));
+    }
+
+    // Valores grandes comprimidos na rede e na replicação (veja Compressao); cada
+    // conexão só os usa se os dois lados estiverem com a compressão ligada. Desligada
+    // por padrão: custa CPU em quem comprime e em todo cliente que lê
+    public static boolean compressao() {
+        return Boolean.parseBoolean(texto("compressao", "false"));
+    }
+
+    // Tamanho mínimo, em caracteres, de um valor comprimido
+    public static int limiarCompressao() {
+        return inteiro("limiarCompressao", 1024);
+    }
+
+    // Guardar os valores comprimidos no armazenamento; sem isso (o padrão) eles são
+    // descomprimidos ao gravar, e as leituras os devolvem sem compressão
+    public static boolean armazenarComprimido() {
+        return Boolean.parseBoolean(texto("armazenarComprimido", "false"));
+    }
+
+    // De quanto em quanto tempo as versões além do limite são descartadas
+    public static long intervaloColetaMs() {
+        return longo("intervaloColetaMs", 1000);
+    }
+
+    // Quanto um timestamp pedido por um cliente pode estar à frente do relógio do líder
+    public static long desvioMaximoRelogioMs() {
+        return longo("desvioMaximoRelogioMs", 1000);
+    }
+
+    // Em quantas partições as keys são divididas (veja Topologia); 1 mantém um único líder
+    public static int particoes() {
+        return inteiro("particoes", 1);
+    }
+
+    // Réplicas de cada partição, contando o líder
+    public static int fatorReplicacao(int padrao) {
+        return inteiro("fatorReplicacao", padrao);
+    }
+
+    static String texto(String nome, String padrao) {
+        String valor = carregadas.get(nome);
+        return valor != null ? valor : System.getProperty("kv." + nome, padrao);
+    }
+
+    static int inteiro(String nome, int padrao) {
+        String valor = texto(nome, null);
+        return valor == null ? padrao : Integer.parseInt(valor.trim());
+    }
+
+    static long longo(String nome, long padrao) {
+        String valor = texto(nome, null);
+        return valor == null ? padrao : Long.parseLong(valor.trim());
+    }
+
+    // Lê as opções (veja opcoes) e as torna a fonte de todos os parâmetros acima
+    static Map<String, String> carregar(String[] args) throws IOException {
+        Map<String, String> opcoes = opcoes(args);
+        carregadas = Map.copyOf(opcoes);
+        return opcoes;
+    }
+
+    // Opções de inicialização: pares "--nome valor" da linha de comando, por cima das
+    // do arquivo indicado em "--config" (formato .properties, "nome=valor"). Além da
+    // topologia (porta, servidores, ...), valem os nomes dos parâmetros acima, sem o
+    // "kv.": "--particoes 8", ou "fatorReplicacao=3" no arquivo.
+    static Map<String, String> opcoes(String[] args) throws IOException {
+        Map<String, String> opcoes = new HashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Opção inválida: " + args[i] + " (esperado --nome valor)");
+            }
+            opcoes.put(args[i].substring(2), args[i + 1]);
+        }
+        String arquivo = opcoes.remove("config");
+        if (arquivo != null) {
+            Properties propriedades = new Properties();
+            try (Reader leitor = Files.newBufferedReader(Path.of(arquivo), StandardCharsets.UTF_8)) {
+                propriedades.load(leitor);
+            }
+            for (String nome : propriedades.stringPropertyNames()) {
+                opcoes.putIfAbsent(nome, propriedades.getProperty(nome).trim());
+            }
+        }
+        return opcoes;
+    }
+
+    // Lista "ip:porta,ip:porta,..." de endereços; só a porta vale 127.0.0.1:porta
+    static List<String> enderecos(String lista) {
+        List<String> enderecos = new ArrayList<>();
+        for (String item : lista.split(",")) {
+            String endereco = item.trim();
+            if (endereco.isEmpty()) {
+                continue;
+            }
+            int separador = endereco.lastIndexOf(':');
+            String ip = separador < 0 ? "127.0.0.1" : endereco.substring(0, separador);
+            try {
+                int porta = Integer.parseInt(endereco.substring(separador + 1));
+                enderecos.add(Topologia.endereco(ip.isEmpty() ? "127.0.0.1" : ip, porta));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Endereço inválido: " + endereco + " (esperado ip:porta)");
+            }
+        }
+        return enderecos;
+    }
+}
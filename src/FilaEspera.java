@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// GETs que receberam WAIT_FOR_RESPONSE e esperam a key alcançar o timestamp do cliente.
+// Cada key tem a sua fila, ordenada pelo timestamp requerido: uma escrita só
+// percorre as esperas que ela satisfaz. As respostas liberadas por uma escrita saem
+// agrupadas por conexão, em uma única escrita no socket. Uma espera que passa do
+// prazo recebe ERRO.
+//
+// Se a conexão do GET caiu, a resposta só vai para um endereço de callback que o
+// cliente informou, e a conexão com ele é aberta em outra thread: quem libera (a
+// thread que aplicou a escrita) ou expira as esperas nunca espera um connect. As
+// esperas de uma conexão que caiu sem callback são descartadas periodicamente.
+class FilaEspera {
+    static final String VALOR_AUSENTE = "NULL";
+    private static final long INTERVALO_DESCARTE_MS = 1000;
+
+    private static class Espera {
+        final String key;
+        final long timestampRequerido;
+        final long sequencia;
+        final Canal conexao;
+        final long idRequisicao;
+        final String callbackIP;
+        final int callbackPorta;
+        final long inicioNs = System.nanoTime();
+        // Protegido pelo monitor da fila
+        ScheduledFuture<?> prazo;
+
+        Espera(String key, long timestampRequerido, long sequencia, Canal conexao, long idRequisicao,
+                String callbackIP, int callbackPorta) {
+            this.key = key;
+            this.timestampRequerido = timestampRequerido;
+            this.sequencia = sequencia;
+            this.conexao = conexao;
+            this.idRequisicao = idRequisicao;
+            this.callbackIP = callbackIP;
+            this.callbackPorta = callbackPorta;
+        }
+    }
+
+    private static final Comparator<Espera> ORDEM = Comparator.comparingLong((Espera e) -> e.timestampRequerido)
+            .thenComparingLong(e -> e.sequencia);
+
+    // Esperas de uma key; uma fila vazia sai do mapa e não é mais usada
+    private static class Fila {
+        final TreeSet<Espera> esperas = new TreeSet<>(ORDEM);
+        boolean removida;
+    }
+
+    private final ConcurrentHashMap<String, Fila> filas;
+    private final AtomicLong sequencia;
+    private final Armazenamento armazenamento;
+    private final PoolConexoes poolConexoes;
+    // Envios para endereços de callback (abrem conexões)
+    private final ExecutorService envios;
+    private final ScheduledThreadPoolExecutor temporizador;
+    private final long esperaMaximaMs;
+    private final AtomicInteger aguardando = new AtomicInteger();
+    // Do WAIT_FOR_RESPONSE até a resposta definitiva
+    private final Metricas.Histograma espera;
+    private final LongAdder expiradas;
+
+    public FilaEspera(Armazenamento armazenamento, PoolConexoes poolConexoes, ExecutorService envios,
+            long esperaMaximaMs, Metricas metricas) {
+        this.filas = new ConcurrentHashMap<>();
+        this.sequencia = new AtomicLong();
+        this.armazenamento = armazenamento;
+        this.poolConexoes = poolConexoes;
+        this.envios = envios;
+        this.esperaMaximaMs = esperaMaximaMs;
+        this.espera = metricas.histograma("get.espera");
+        this.expiradas = metricas.contador("get.esperasExpiradas");
+        this.temporizador = new ScheduledThreadPoolExecutor(1, tarefa -> {
+            Thread thread = new Thread(tarefa, "prazo-get");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Esperas respondidas cancelam o prazo; sem isso ele ficaria na fila do temporizador
+        this.temporizador.setRemoveOnCancelPolicy(true);
+        this.temporizador.scheduleWithFixedDelay(this::descartarSemDestino, INTERVALO_DESCARTE_MS,
+                INTERVALO_DESCARTE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Registra a espera e confere o armazenamento de novo: uma escrita que terminou
+    // antes do registro já não vai liberar esta espera
+    public void aguardar(String key, long timestampRequerido, Canal conexao, long idRequisicao,
+            String callbackIP, int callbackPorta) {
+        Espera espera = new Espera(key, timestampRequerido, sequencia.incrementAndGet(), conexao, idRequisicao,
+                callbackIP, callbackPorta);
+        while (true) {
+            Fila fila = filas.computeIfAbsent(key, k -> new Fila());
+            synchronized (fila) {
+                if (fila.removida) {
+                    continue;
+                }
+                fila.esperas.add(espera);
+                aguardando.incrementAndGet();
+                if (esperaMaximaMs > 0) {
+                    espera.prazo = temporizador.schedule(() -> expirar(fila, espera), esperaMaximaMs,
+                            TimeUnit.MILLISECONDS);
+                }
+                break;
+            }
+        }
+        liberar(key);
+    }
+
+    // Chamado depois de cada escrita aplicada: responde as esperas que o
+    // timestamp atual da key satisfaz
+    public void liberar(String key) {
+        Fila fila = filas.get(key);
+        if (fila == null) {
+            return;
+        }
+        Armazenamento.Entrada entrada;
+        List<Espera> prontas = new ArrayList<>();
+        synchronized (fila) {
+            // Uma escrita que chegou já expirada também libera quem a esperava: a resposta é NULL
+            entrada = armazenamento.obterMesmoExpirada(key);
+            long timestampAtual = entrada == null ? 0L : entrada.timestamp();
+            if (entrada != null && entrada.expiradaEm(System.currentTimeMillis())) {
+                entrada = null;
+            }
+            while (!fila.esperas.isEmpty() && fila.esperas.first().timestampRequerido <= timestampAtual) {
+                Espera pronta = fila.esperas.pollFirst();
+                if (pronta.prazo != null) {
+                    pronta.prazo.cancel(false);
+                }
+                aguardando.decrementAndGet();
+                espera.registrarDesde(pronta.inicioNs);
+                prontas.add(pronta);
+            }
+            removerSeVazia(key, fila);
+        }
+        if (prontas.isEmpty()) {
+            return;
+        }
+
+        // Agrupar por conexão: vários GETs do mesmo cliente saem juntos
+        Map<Canal, List<Mensagem>> porDestino = new LinkedHashMap<>();
+        for (Espera espera : prontas) {
+            Mensagem resposta = respostaGet(espera.idRequisicao, key, entrada);
+            if (espera.conexao.isAberta()) {
+                porDestino.computeIfAbsent(espera.conexao, c -> new ArrayList<>()).add(resposta);
+            } else {
+                enviarAoCallback(espera, resposta);
+            }
+        }
+        for (Map.Entry<Canal, List<Mensagem>> item : porDestino.entrySet()) {
+            try {
+                item.getKey().enviarTodas(item.getValue());
+            } catch (IOException e) {
+                Log.erro("Erro ao enviar resposta assíncrona para cliente {}:{} - {}", item.getKey().getIPRemoto(),
+                        item.getKey().getPortaRemota(), e.getMessage());
+            }
+        }
+    }
+
+    private void expirar(Fila fila, Espera espera) {
+        synchronized (fila) {
+            if (!fila.esperas.remove(espera)) {
+                return;
+            }
+            removerSeVazia(espera.key, fila);
+        }
+        aguardando.decrementAndGet();
+        expiradas.increment();
+        Mensagem erro = new Mensagem(Mensagem.TipoMensagem.ERRO, espera.key,
+                "tempo de espera esgotado aguardando ts " + espera.timestampRequerido);
+        erro.setIdRequisicao(espera.idRequisicao);
+        if (!espera.conexao.isAberta()) {
+            enviarAoCallback(espera, erro);
+            return;
+        }
+        try {
+            espera.conexao.enviar(erro);
+        } catch (IOException e) {
+            Log.erro("Erro ao avisar fim do prazo para cliente {}:{} - {}", espera.conexao.getIPRemoto(),
+                    espera.conexao.getPortaRemota(), e.getMessage());
+        }
+    }
+
+    // Esperas de conexões que caíram sem endereço de callback não têm quem as receba
+    private void descartarSemDestino() {
+        for (Map.Entry<String, Fila> item : filas.entrySet()) {
+            Fila fila = item.getValue();
+            synchronized (fila) {
+                Iterator<Espera> esperas = fila.esperas.iterator();
+                while (esperas.hasNext()) {
+                    Espera espera = esperas.next();
+                    if (!espera.conexao.isAberta() && espera.callbackIP == null) {
+                        esperas.remove();
+                        if (espera.prazo != null) {
+                            espera.prazo.cancel(false);
+                        }
+                        aguardando.decrementAndGet();
+                    }
+                }
+                removerSeVazia(item.getKey(), fila);
+            }
+        }
+    }
+
+    // Para os prazos; as esperas restantes ficam sem resposta (o servidor está encerrando)
+    public void encerrar() {
+        temporizador.shutdownNow();
+    }
+
+    // GETs esperando agora, em todas as keys
+    public int aguardando() {
+        return aguardando.get();
+    }
+
+    // Deve ser chamado com o monitor da fila adquirido
+    private void removerSeVazia(String key, Fila fila) {
+        if (fila.esperas.isEmpty()) {
+            fila.removida = true;
+            filas.remove(key, fila);
+        }
+    }
+
+    // A conexão do GET caiu: a mensagem vai pela conexão persistente com o endereço
+    // de callback, se o cliente informou um, aberta fora da thread que chamou
+    private void enviarAoCallback(Espera espera, Mensagem mensagem) {
+        if (espera.callbackIP == null) {
+            return;
+        }
+        envios.execute(() -> {
+            try {
+                poolConexoes.obter(espera.callbackIP, espera.callbackPorta).enviar(mensagem);
+            } catch (IOException e) {
+                Log.erro("Erro ao enviar {} ao callback {}:{} - {}", mensagem.getTipo(), espera.callbackIP,
+                        espera.callbackPorta, e.getMessage());
+            }
+        });
+    }
+
+    static String valorDe(Armazenamento.Entrada entrada) {
+        return entrada == null ? VALOR_AUSENTE : entrada.valor();
+    }
+
+    static Mensagem respostaGet(long idRequisicao, String key, Armazenamento.Entrada entrada) {
+        long timestamp = entrada == null ? 0L : entrada.timestamp();
+        Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.GET_RESPONSE, key, valorDe(entrada), timestamp);
+        resposta.setIdRequisicao(idRequisicao);
+        return resposta;
+    }
+}
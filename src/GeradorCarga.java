@@ -0,0 +1,357 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Carga de ponta a ponta, sem interação: sobe um cluster nesta máquina (ou usa
+// um já rodando), carrega as keys e mantém um número fixo de
+// requisições em voo pelo ClienteKV, cada uma disparando a próxima ao terminar
+// (laço fechado). Escreve a vazão a cada segundo e, no fim, vazão média e
+// latências p50/p99/p999 de GETs, PUTs e do total.
+//
+// Uso: java GeradorCarga [opções]
+//   --servidores ip:porta,...   cluster já rodando (padrão: sobe servidores locais)
+//   --nos 3                     servidores locais
+//   --porta 10097               primeira porta dos servidores locais
+//   --embutido nao              sim: os servidores sobem nesta JVM (ClusterEmbutido),
+//                               em vez de um processo cada
+//   --clientes 4                instâncias de ClienteKV, cada uma com as suas conexões
+//   --concorrencia 64           requisições em voo, divididas entre os clientes
+//   --duracao 30                segundos medidos, depois de --aquecimento 5
+//   --leituras 0.9              fração de GETs; o resto são PUTs
+//   --keys 100000               keys distintas, todas carregadas antes da medição
+//   --distribuicao uniforme     ou zipf, com --zipf 0.99 de expoente
+//   --valor 100                 bytes de cada valor
+//
+// Os servidores locais recebem as propriedades -Dkv.* passadas ao gerador (motor,
+// níveis, partições...) e, em processos, escrevem a saída em servidor-<porta>.log.
+// Sem -Dkv.dir eles rodam sem persistência, para que uma execução não herde as keys
+// da anterior; os embutidos nunca têm persistência.
+class GeradorCarga {
+    private static final long PAUSA_ERRO_MS = 10;
+
+    private final Map<String, String> opcoes;
+    private final List<Process> processos = new ArrayList<>();
+    private ClusterEmbutido embutido;
+    private final Metricas.Histograma latenciaGet = new Metricas.Histograma();
+    private final Metricas.Histograma latenciaPut = new Metricas.Histograma();
+    private final Metricas.Histograma latenciaTotal = new Metricas.Histograma();
+    private final LongAdder concluidas = new LongAdder();
+    private final LongAdder erros = new LongAdder();
+    private volatile boolean medindo;
+    private volatile boolean parar;
+
+    private GeradorCarga(Map<String, String> opcoes) {
+        this.opcoes = opcoes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opcoes = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                System.err.println("Opção inválida: " + args[i] + " (veja o comentário de GeradorCarga)");
+                System.exit(2);
+            }
+            opcoes.put(args[i].substring(2), args[++i]);
+        }
+        GeradorCarga gerador = new GeradorCarga(opcoes);
+        Runtime.getRuntime().addShutdownHook(new Thread(gerador::encerrarServidores));
+        try {
+            gerador.executar();
+        } finally {
+            gerador.encerrarServidores();
+        }
+        System.exit(0);
+    }
+
+    private String opcao(String nome, String padrao) {
+        return opcoes.getOrDefault(nome, padrao);
+    }
+
+    private int inteiro(String nome, int padrao) {
+        return Integer.parseInt(opcao(nome, Integer.toString(padrao)));
+    }
+
+    private void executar() throws Exception {
+        List<String> servidores;
+        if (opcoes.containsKey("servidores")) {
+            servidores = Configuracao.enderecos(opcoes.get("servidores"));
+        } else if (opcao("embutido", "nao").equals("sim")) {
+            long inicio = System.nanoTime();
+            embutido = ClusterEmbutido.iniciar(inteiro("nos", 3));
+            servidores = embutido.enderecos();
+            System.out.printf("Servidores embutidos: %s, iniciados em %d ms%n", servidores,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio));
+        } else {
+            servidores = subirServidores(inteiro("nos", 3), inteiro("porta", 10097));
+        }
+        String[] ips = new String[servidores.size()];
+        int[] portas = new int[servidores.size()];
+        for (int i = 0; i < servidores.size(); i++) {
+            ips[i] = Topologia.ipDe(servidores.get(i));
+            portas[i] = Topologia.portaDe(servidores.get(i));
+        }
+
+        int keys = inteiro("keys", 100_000);
+        double leituras = Double.parseDouble(opcao("leituras", "0.9"));
+        String valor = "v".repeat(inteiro("valor", 100));
+        Distribuicao distribuicao = switch (opcao("distribuicao", "uniforme")) {
+            case "uniforme" -> Distribuicao.uniforme(keys);
+            case "zipf" -> Distribuicao.zipf(keys, Double.parseDouble(opcao("zipf", "0.99")));
+            default -> throw new IllegalArgumentException("distribuição desconhecida: " + opcao("distribuicao", ""));
+        };
+
+        List<ClienteKV> clientes = new ArrayList<>();
+        for (int i = 0; i < inteiro("clientes", 4); i++) {
+            clientes.add(new ClienteKV(ips, portas));
+        }
+        aguardarCluster(clientes.get(0));
+        carregar(clientes.get(0), keys, valor);
+
+        int concorrencia = inteiro("concorrencia", 64);
+        System.out.printf("%d requisições em voo em %d clientes, %.0f%% leituras, %d keys %s%n", concorrencia,
+                clientes.size(), leituras * 100, keys, distribuicao);
+        for (int i = 0; i < concorrencia; i++) {
+            proxima(clientes.get(i % clientes.size()), distribuicao, leituras, valor);
+        }
+
+        int aquecimento = inteiro("aquecimento", 5);
+        int duracao = inteiro("duracao", 30);
+        long anterior = 0;
+        for (int segundo = 1 - aquecimento; segundo <= duracao; segundo++) {
+            if (segundo == 1) {
+                medindo = true;
+            }
+            Thread.sleep(1000);
+            long total = concluidas.sum();
+            System.out.printf("%s %4ds %10d ops/s  erros=%d%n", segundo <= 0 ? "aquecimento" : "medição    ",
+                    segundo <= 0 ? segundo - 1 : segundo, total - anterior, erros.sum());
+            anterior = total;
+        }
+        medindo = false;
+        parar = true;
+
+        System.out.printf("%nVazão: %.0f ops/s em %d s, %d erros%n", latenciaTotal.quantidade() / (double) duracao,
+                duracao, erros.sum());
+        System.out.printf("%-6s %10s %10s %10s %10s %10s%n", "", "n", "p50 us", "p99 us", "p999 us", "max us");
+        resumo("GET", latenciaGet);
+        resumo("PUT", latenciaPut);
+        resumo("total", latenciaTotal);
+        for (ClienteKV cliente : clientes) {
+            cliente.close();
+        }
+    }
+
+    // Uma requisição; ao terminar, registra a latência e dispara a seguinte
+    private void proxima(ClienteKV cliente, Distribuicao distribuicao, double leituras, String valor) {
+        if (parar) {
+            return;
+        }
+        ThreadLocalRandom aleatorio = ThreadLocalRandom.current();
+        String key = "key-" + distribuicao.proxima(aleatorio);
+        boolean leitura = aleatorio.nextDouble() < leituras;
+        long inicio = System.nanoTime();
+        CompletableFuture<?> futuro = leitura ? cliente.get(key) : cliente.put(key, valor);
+        futuro.whenComplete((resultado, falha) -> {
+            long duracao = System.nanoTime() - inicio;
+            if (falha != null) {
+                // Uma pausa antes de repetir: sem ela, um cluster fora do ar vira um laço
+                // de falhas imediatas
+                erros.increment();
+                CompletableFuture.delayedExecutor(PAUSA_ERRO_MS, TimeUnit.MILLISECONDS)
+                        .execute(() -> proxima(cliente, distribuicao, leituras, valor));
+                return;
+            }
+            if (medindo) {
+                (leitura ? latenciaGet : latenciaPut).registrar(duracao);
+                latenciaTotal.registrar(duracao);
+            }
+            concluidas.increment();
+            proxima(cliente, distribuicao, leituras, valor);
+        });
+    }
+
+    private static void resumo(String nome, Metricas.Histograma histograma) {
+        System.out.printf("%-6s %10d %10d %10d %10d %10d%n", nome, histograma.quantidade(),
+                micros(histograma.percentil(0.5)), micros(histograma.percentil(0.99)),
+                micros(histograma.percentil(0.999)), micros(histograma.maximo()));
+    }
+
+    private static long micros(long ns) {
+        return TimeUnit.NANOSECONDS.toMicros(ns);
+    }
+
+    // 'nos' servidores nas portas a partir de 'porta', o primeiro como líder inicial
+    private List<String> subirServidores(int nos, int porta) throws IOException {
+        List<String> servidores = new ArrayList<>();
+        for (int i = 0; i < nos; i++) {
+            servidores.add(Topologia.endereco("127.0.0.1", porta + i));
+        }
+        List<String> comando = new ArrayList<>();
+        comando.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        comando.add("-cp");
+        comando.add(System.getProperty("java.class.path"));
+        if (System.getProperty("kv.dir") == null) {
+            comando.add("-Dkv.dir=");
+        }
+        for (String nome : System.getProperties().stringPropertyNames()) {
+            if (nome.startsWith("kv.")) {
+                comando.add("-D" + nome + "=" + System.getProperty(nome));
+            }
+        }
+        comando.add("Servidor");
+        comando.add("--servidores");
+        comando.add(String.join(",", servidores));
+        comando.add("--porta");
+
+        for (int i = 0; i < nos; i++) {
+            List<String> comandoServidor = new ArrayList<>(comando);
+            comandoServidor.add(Integer.toString(porta + i));
+            processos.add(new ProcessBuilder(comandoServidor)
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File("servidor-" + (porta + i) + ".log"))
+                    .start());
+        }
+        System.out.println("Servidores locais: " + servidores);
+        return servidores;
+    }
+
+    private synchronized void encerrarServidores() {
+        for (Process processo : processos) {
+            processo.destroy();
+        }
+        processos.clear();
+        if (embutido != null) {
+            embutido.close();
+            embutido = null;
+        }
+    }
+
+    // Repete uma escrita até o cluster aceitá-la (servidores subindo, eleição...)
+    private static void aguardarCluster(ClienteKV cliente) throws InterruptedException {
+        long prazo = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (true) {
+            try {
+                cliente.put("gerador-pronto", "1").get(2, TimeUnit.SECONDS);
+                return;
+            } catch (Exception e) {
+                if (System.nanoTime() - prazo > 0) {
+                    throw new IllegalStateException("cluster não respondeu em 30 s", e);
+                }
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    // Todas as keys em lotes, para que os GETs da medição encontrem valores
+    private static void carregar(ClienteKV cliente, int keys, String valor) throws Exception {
+        long inicio = System.nanoTime();
+        List<CompletableFuture<?>> lotes = new ArrayList<>();
+        for (int primeira = 0; primeira < keys; primeira += 500) {
+            Map<String, String> lote = new LinkedHashMap<>();
+            for (int i = primeira; i < Math.min(keys, primeira + 500); i++) {
+                lote.put("key-" + i, valor);
+            }
+            lotes.add(cliente.putTodos(lote, false));
+            if (lotes.size() == 16) {
+                CompletableFuture.allOf(lotes.toArray(new CompletableFuture<?>[0])).get();
+                lotes.clear();
+            }
+        }
+        CompletableFuture.allOf(lotes.toArray(new CompletableFuture<?>[0])).get();
+        System.out.printf("%d keys carregadas em %d ms%n", keys,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inicio));
+    }
+
+    // Índice da próxima key, em [0, n)
+    abstract static class Distribuicao {
+        abstract long proxima(ThreadLocalRandom aleatorio);
+
+        static Distribuicao uniforme(long n) {
+            return new Distribuicao() {
+                @Override
+                long proxima(ThreadLocalRandom aleatorio) {
+                    return aleatorio.nextLong(n);
+                }
+
+                @Override
+                public String toString() {
+                    return "uniforme";
+                }
+            };
+        }
+
+        static Distribuicao zipf(long n, double expoente) {
+            return new Zipf(n, expoente);
+        }
+    }
+
+    // Zipf pelo método de Gray et al. ("Quickly generating billion-record synthetic
+    // databases"), o mesmo do YCSB: a posição 0 é a mais sorteada. As posições passam
+    // por um hash antes de virar key, para que as keys quentes não sejam vizinhas
+    // (nem caiam todas na mesma partição).
+    static final class Zipf extends Distribuicao {
+        private final long n;
+        private final double expoente;
+        private final double alfa;
+        private final double zetaN;
+        private final double eta;
+
+        Zipf(long n, double expoente) {
+            if (expoente <= 0 || expoente == 1) {
+                throw new IllegalArgumentException("expoente do zipf deve ser positivo e diferente de 1");
+            }
+            this.n = n;
+            this.expoente = expoente;
+            this.alfa = 1 / (1 - expoente);
+            this.zetaN = zeta(n, expoente);
+            double zeta2 = zeta(2, expoente);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - expoente)) / (1 - zeta2 / zetaN);
+        }
+
+        private static double zeta(long n, double expoente) {
+            double soma = 0;
+            for (long i = 1; i <= n; i++) {
+                soma += 1 / Math.pow(i, expoente);
+            }
+            return soma;
+        }
+
+        @Override
+        long proxima(ThreadLocalRandom aleatorio) {
+            double u = aleatorio.nextDouble();
+            double uz = u * zetaN;
+            long posicao;
+            if (uz < 1) {
+                posicao = 0;
+            } else if (uz < 1 + Math.pow(0.5, expoente)) {
+                posicao = 1;
+            } else {
+                posicao = Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alfa)));
+            }
+            return Math.floorMod(espalhar(posicao), n);
+        }
+
+        // FNV-1a dos 8 bytes da posição
+        private static long espalhar(long valor) {
+            long hash = 0xCBF29CE484222325L;
+            for (int i = 0; i < 8; i++) {
+                hash ^= (valor >>> (i * 8)) & 0xFF;
+                hash *= 0x100000001B3L;
+            }
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "zipf(" + expoente + ")";
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Log do servidor. Quem registra um evento só o coloca em um buffer circular, sem
+// lock e sem formatar nada; uma thread de fundo monta as linhas e escreve em lotes.
+// Um console lento (ou um terminal pausado) não segura mais as threads que atendem
+// requisições, nem as que estão com um monitor.
+//
+// Níveis, do mais detalhado ao mais grave: DEBUG (um evento por requisição ou
+// registro replicado), INFO (eleições, sincronização de réplicas, recuperação),
+// AVISO e ERRO. -Dkv.log escolhe o nível mínimo (padrão INFO); -Dkv.amostraLog=N
+// registra um a cada N eventos de DEBUG, para acompanhar uma carga real sem
+// escrever tudo.
+//
+// Mensagens são modelos com {} trocados pelos argumentos na thread de fundo; um
+// Throwable sobrando no fim dos argumentos tem a pilha escrita depois da linha.
+// Com o buffer cheio o evento é descartado e contado: o log nunca bloqueia.
+final class Log {
+    enum Nivel {
+        DEBUG, INFO, AVISO, ERRO
+    }
+
+    private static final int CAPACIDADE = 1 << 16;
+    private static final int MASCARA = CAPACIDADE - 1;
+    private static final long ESPERA_NS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final DateTimeFormatter HORARIO = DateTimeFormatter.ofPattern("HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    private static final Nivel MINIMO = Configuracao.nivelLog();
+    private static final int AMOSTRA = Math.max(1, Configuracao.amostraLog());
+
+    // Evento em uma posição do buffer; os objetos são reaproveitados a cada volta
+    private static final class Evento {
+        Nivel nivel;
+        long instanteMs;
+        String thread;
+        String modelo;
+        Object[] argumentos;
+    }
+
+    private static final Evento[] eventos = new Evento[CAPACIDADE];
+    // Sequência do evento publicado em cada posição; o escritor só lê a posição
+    // depois de ver nela a sequência que espera
+    private static final AtomicLongArray publicados = new AtomicLongArray(CAPACIDADE);
+    // Próxima sequência a reservar e próxima a escrever
+    private static final AtomicLong cabeca = new AtomicLong();
+    private static volatile long cauda;
+    private static final AtomicLong descartados = new AtomicLong();
+
+    static {
+        for (int i = 0; i < CAPACIDADE; i++) {
+            eventos[i] = new Evento();
+            publicados.set(i, -1);
+        }
+        Thread escritor = new Thread(Log::escrever, "log");
+        escritor.setDaemon(true);
+        escritor.start();
+        // Dá ao escritor a chance de esvaziar o buffer antes de a JVM sair
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            long prazo = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+            while (cauda < cabeca.get() && System.nanoTime() - prazo < 0) {
+                LockSupport.parkNanos(ESPERA_NS);
+            }
+        }, "log-saida"));
+    }
+
+    private Log() {
+    }
+
+    // Para quem monta argumentos caros (ou registra em um laço) só quando vão ser usados
+    static boolean depurando() {
+        return MINIMO == Nivel.DEBUG;
+    }
+
+    static void debug(String modelo, Object... argumentos) {
+        if (MINIMO == Nivel.DEBUG && (AMOSTRA == 1 || ThreadLocalRandom.current().nextInt(AMOSTRA) == 0)) {
+            publicar(Nivel.DEBUG, modelo, argumentos);
+        }
+    }
+
+    static void info(String modelo, Object... argumentos) {
+        if (MINIMO.compareTo(Nivel.INFO) <= 0) {
+            publicar(Nivel.INFO, modelo, argumentos);
+        }
+    }
+
+    static void aviso(String modelo, Object... argumentos) {
+        if (MINIMO.compareTo(Nivel.AVISO) <= 0) {
+            publicar(Nivel.AVISO, modelo, argumentos);
+        }
+    }
+
+    static void erro(String modelo, Object... argumentos) {
+        publicar(Nivel.ERRO, modelo, argumentos);
+    }
+
+    private static void publicar(Nivel nivel, String modelo, Object[] argumentos) {
+        long sequencia;
+        do {
+            sequencia = cabeca.get();
+            if (sequencia - cauda >= CAPACIDADE) {
+                descartados.incrementAndGet();
+                return;
+            }
+        } while (!cabeca.compareAndSet(sequencia, sequencia + 1));
+        int posicao = (int) (sequencia & MASCARA);
+        Evento evento = eventos[posicao];
+        evento.nivel = nivel;
+        evento.instanteMs = System.currentTimeMillis();
+        evento.thread = Thread.currentThread().getName();
+        evento.modelo = modelo;
+        evento.argumentos = argumentos;
+        publicados.set(posicao, sequencia);
+    }
+
+    // Thread de fundo: escreve os eventos na ordem das sequências e só descarrega a
+    // saída quando o buffer esvazia, uma vez por lote em vez de uma por linha
+    private static void escrever() {
+        PrintStream saida = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16));
+        PrintStream saidaErro = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 1 << 14));
+        StringBuilder linha = new StringBuilder(256);
+        long proxima = 0;
+        boolean pendente = false;
+        while (true) {
+            int posicao = (int) (proxima & MASCARA);
+            if (publicados.get(posicao) != proxima) {
+                if (pendente) {
+                    saida.flush();
+                    saidaErro.flush();
+                    pendente = false;
+                }
+                long perdidos = descartados.getAndSet(0);
+                if (perdidos > 0) {
+                    saidaErro.println(HORARIO.format(Instant.now()) + " AVISO [log] " + perdidos
+                            + " eventos descartados com o buffer do log cheio");
+                    pendente = true;
+                    continue;
+                }
+                LockSupport.parkNanos(ESPERA_NS);
+                continue;
+            }
+            Evento evento = eventos[posicao];
+            Throwable causa = formatar(linha, evento);
+            PrintStream destino = evento.nivel.compareTo(Nivel.AVISO) >= 0 ? saidaErro : saida;
+            destino.append(linha).println();
+            if (causa != null) {
+                causa.printStackTrace(destino);
+            }
+            linha.setLength(0);
+            evento.argumentos = null;
+            evento.modelo = null;
+            cauda = ++proxima;
+            pendente = true;
+        }
+    }
+
+    // Monta a linha do evento e devolve o Throwable que sobrou nos argumentos, se houver
+    private static Throwable formatar(StringBuilder linha, Evento evento) {
+        linha.append(HORARIO.format(Instant.ofEpochMilli(evento.instanteMs))).append(' ')
+                .append(evento.nivel).append(" [").append(evento.thread).append("] ");
+        String modelo = evento.modelo;
+        Object[] argumentos = evento.argumentos;
+        int usado = 0;
+        int inicio = 0;
+        int marca;
+        while ((marca = modelo.indexOf("{}", inicio)) >= 0 && usado < argumentos.length) {
+            linha.append(modelo, inicio, marca).append(argumentos[usado++]);
+            inicio = marca + 2;
+        }
+        linha.append(modelo, inicio, modelo.length());
+        if (usado < argumentos.length && argumentos[argumentos.length - 1] instanceof Throwable causa) {
+            return causa;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Log ordenado das escritas do líder que ainda podem precisar chegar aos seguidores.
+// Cada seguidor lê o log a partir do seu próprio cursor (ReplicadorSeguidor).
+// As escritas devem ser anexadas em ordem de timestamp, com o monitor do log
+// adquirido, para que um seguidor nunca veja um timestamp antes de um menor.
+//
+// Além do que falta confirmar, o log guarda os últimos 'retencao' registros, para
+// que um seguidor que ficou fora por pouco tempo se recupere só com o trecho perdido.
+//
+// O líder aplica as escritas no armazenamento fora do monitor, depois de anexá-las;
+// o log também guarda quais delas ainda estão sendo aplicadas, para quem precisa do
+// armazenamento completo até um timestamp (esperarAplicadas).
+class LogReplicacao {
+    private final ConcurrentSkipListMap<Long, Mensagem.Registro> registros;
+    private final AtomicInteger quantidade;
+    private final int retencao;
+    private final Object descarte = new Object();
+    private volatile long ultimoAnexado;
+    // Maior timestamp que já saiu do log (ou que nunca esteve nele)
+    private volatile long descartadoAte;
+    // Primeiro timestamp de cada escrita que já tem timestamp mas ainda não chegou
+    // ao armazenamento; entram com o monitor do log adquirido
+    private final ConcurrentSkipListSet<Long> aplicando = new ConcurrentSkipListSet<>();
+
+    public LogReplicacao(int retencao) {
+        this.registros = new ConcurrentSkipListMap<>();
+        this.quantidade = new AtomicInteger();
+        this.retencao = retencao;
+    }
+
+    // Depois da recuperação do disco: tudo até 'timestamp' está no armazenamento, não no log
+    public void reiniciar(long timestamp) {
+        ultimoAnexado = timestamp;
+        descartadoAte = timestamp;
+    }
+
+    public void anexar(Mensagem.Registro registro) {
+        registros.put(registro.getTimestamp(), registro);
+        quantidade.incrementAndGet();
+        ultimoAnexado = registro.getTimestamp();
+    }
+
+    // Até 'maximo' registros com timestamp maior que 'apos', em ordem. Um grupo
+    // atômico nunca é dividido entre dois lotes, mesmo que passe do máximo.
+    public List<Mensagem.Registro> lerApos(long apos, int maximo) {
+        List<Mensagem.Registro> lote = new ArrayList<>(Math.min(maximo, 64));
+        for (Mensagem.Registro registro : registros.tailMap(apos, false).values()) {
+            lote.add(registro);
+            if (lote.size() >= maximo && !registro.continuaGrupo()) {
+                break;
+            }
+        }
+        // Grupo ainda sendo anexado: fica inteiro para o próximo lote
+        if (!lote.isEmpty() && lote.get(lote.size() - 1).continuaGrupo()) {
+            long grupo = lote.get(lote.size() - 1).getGrupo();
+            while (!lote.isEmpty() && lote.get(lote.size() - 1).getGrupo() == grupo) {
+                lote.remove(lote.size() - 1);
+            }
+        }
+        return lote;
+    }
+
+    // A escrita que começa em 'inicio' recebeu timestamps e vai ser aplicada
+    public void aplicando(long inicio) {
+        aplicando.add(inicio);
+    }
+
+    public void aplicada(long inicio) {
+        aplicando.remove(inicio);
+    }
+
+    // Volta quando todas as escritas com timestamp até 'timestamp' estiverem no
+    // armazenamento. Cada uma leva microssegundos, e quem espera é raro (leituras
+    // "como em", transferências): girar sai mais barato que avisar a cada escrita.
+    public void esperarAplicadas(long timestamp) {
+        for (int voltas = 0; aplicando.floor(timestamp) != null; voltas++) {
+            if (voltas < 100) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(50_000);
+            }
+        }
+    }
+
+    public long ultimoTimestamp() {
+        return ultimoAnexado;
+    }
+
+    // Verdadeiro se todos os registros depois de 'timestamp' ainda estão no log
+    public boolean contemApos(long timestamp) {
+        return timestamp >= descartadoAte;
+    }
+
+    // Remove registros até 'timestamp', preservando os últimos 'retencao'
+    public void descartarAte(long timestamp) {
+        synchronized (descarte) {
+            while (quantidade.get() > retencao) {
+                Map.Entry<Long, Mensagem.Registro> primeiro = registros.firstEntry();
+                if (primeiro == null || primeiro.getKey() > timestamp) {
+                    break;
+                }
+                descartadoAte = primeiro.getKey();
+                registros.remove(primeiro.getKey());
+                quantidade.decrementAndGet();
+            }
+        }
+    }
+
+    public int tamanho() {
+        return quantidade.get();
+    }
+}
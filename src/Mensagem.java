@@ -1,18 +1,103 @@
-import java.io.Serializable;
+import java.util.List;
 
-class Mensagem implements Serializable {
-    private static final long serialVersionUID = 1L;
+// Mensagem do protocolo; vai para a rede pelo formato binário de CodecMensagem
+class Mensagem {
     
+    // Novos tipos devem ser acrescentados no final: o ordinal é o código no protocolo
     public enum TipoMensagem {
-        PUT, GET, PUT_OK, REPLICATION, REPLICATION_OK, WAIT_FOR_RESPONSE, GET_RESPONSE
+        PUT, GET, PUT_OK, REPLICATION, REPLICATION_OK, WAIT_FOR_RESPONSE, GET_RESPONSE,
+        SYNC, SYNC_OK, SNAPSHOT_CHUNK, SNAPSHOT_END, ERRO, MPUT, MPUT_OK, MGET, MGET_RESPONSE,
+        TOPOLOGIA, REDIRECT, PEDIDO_VOTO, VOTO, STATS, SCAN, SCAN_RESPONSE, PEDIDO_PRE_VOTO
     }
     
+    // Quando o PUT_OK sai: gravado só no líder, na maioria das réplicas ou em
+    // todas as réplicas configuradas da partição (com uma fora do ar, TODOS dá ERRO)
+    public enum NivelEscrita {
+        LIDER, MAIORIA, TODOS
+    }
+    
+    // De onde um GET pode ser lido: qualquer réplica (respeitando o timestamp do
+    // cliente), uma réplica atrasada no máximo atrasoMaximoMs em relação ao líder,
+    // ou só o líder
+    public enum NivelLeitura {
+        QUALQUER, LIMITADA, LIDER
+    }
+
+    // Começo do ERRO de uma escrita que o líder recusou antes de aplicar, por falta de
+    // réplicas em dia para o nível pedido; pode ser repetida (veja ClienteKV)
+    public static final String QUORUM_INDISPONIVEL = "quorum indisponível";
+
+    // comoEm de um GET/MGET que quer o retrato mais recente que o servidor já tem
+    public static final long AGORA = Long.MAX_VALUE;
+    
     private TipoMensagem tipo;
     private String key;
     private String value;
     private long timestamp;
     private String clienteIP;
     private int clientePorta;
+    // Identifica a requisição dentro de uma conexão persistente; a resposta repete o mesmo id
+    private long idRequisicao;
+    // Lote de escritas (REPLICATION, MPUT) ou de keys (MGET); null quando a mensagem é de uma única key
+    private List<Registro> registros;
+    // MPUT: aplicar o lote inteiro de uma vez em todas as réplicas
+    private boolean atomica;
+    // Partição a que se referem as mensagens de replicação (REPLICATION, SYNC, ...)
+    private int particao;
+    // Termo do líder (ou candidato) que envia as mensagens de replicação e eleição
+    private long termo;
+    // GET/MGET "como em": lê as versões que valiam neste timestamp (0 = as atuais;
+    // AGORA = o último timestamp do servidor, devolvido na resposta)
+    private long comoEm;
+    // Níveis pedidos pelo cliente; null usa o padrão do servidor
+    private NivelEscrita nivelEscrita;
+    private NivelLeitura nivelLeitura;
+    private long atrasoMaximoMs;
+    // PUT/MPUT: tempo de vida das keys gravadas, em ms a partir da escrita (0 = para sempre)
+    private long ttlMs;
+    // SCAN: a varredura continua depois desta key (null = do início do intervalo); na
+    // resposta, de onde pedir o próximo pedaço (null = acabou). 'limite' é o máximo de
+    // entradas por pedaço (0 = padrão do servidor).
+    private String cursor;
+    private int limite;
+    // Quem enviou aceita valores comprimidos (veja CodecMensagem); preenchido só na leitura
+    private boolean aceitaComprimidos;
+    
+    // Uma escrita dentro de um lote. Escritas de um MPUT atômico levam em 'grupo' o
+    // timestamp da última escrita do MPUT; as outras têm grupo 0. 'expiraEm' é o
+    // instante (ms desde a época) em que a key expira, fixado pelo líder; 0 = nunca.
+    public static class Registro {
+        private final String key;
+        private final String value;
+        private final long timestamp;
+        private final long grupo;
+        private final long expiraEm;
+        
+        public Registro(String key, String value, long timestamp) {
+            this(key, value, timestamp, 0);
+        }
+        
+        public Registro(String key, String value, long timestamp, long grupo) {
+            this(key, value, timestamp, grupo, 0);
+        }
+        
+        public Registro(String key, String value, long timestamp, long grupo, long expiraEm) {
+            this.key = key;
+            this.value = value;
+            this.timestamp = timestamp;
+            this.grupo = grupo;
+            this.expiraEm = expiraEm;
+        }
+        
+        public String getKey() { return key; }
+        public String getValue() { return value; }
+        public long getTimestamp() { return timestamp; }
+        public long getGrupo() { return grupo; }
+        public long getExpiraEm() { return expiraEm; }
+        
+        // Verdadeiro se esta escrita faz parte de um grupo atômico e não é a última dele
+        public boolean continuaGrupo() { return grupo != 0 && timestamp < grupo; }
+    }
     
     public Mensagem(TipoMensagem tipo, String key, String value, long timestamp) {
         this.tipo = tipo;
@@ -51,4 +136,43 @@ class Mensagem implements Serializable {
     
     public int getClientePorta() { return clientePorta; }
     public void setClientePorta(int clientePorta) { this.clientePorta = clientePorta; }
+    
+    public long getIdRequisicao() { return idRequisicao; }
+    public void setIdRequisicao(long idRequisicao) { this.idRequisicao = idRequisicao; }
+    
+    public List<Registro> getRegistros() { return registros; }
+    public void setRegistros(List<Registro> registros) { this.registros = registros; }
+    
+    public boolean isAtomica() { return atomica; }
+    public void setAtomica(boolean atomica) { this.atomica = atomica; }
+    
+    public int getParticao() { return particao; }
+    public void setParticao(int particao) { this.particao = particao; }
+
+    public long getTermo() { return termo; }
+    public void setTermo(long termo) { this.termo = termo; }
+
+    public long getComoEm() { return comoEm; }
+    public void setComoEm(long comoEm) { this.comoEm = comoEm; }
+    
+    public NivelEscrita getNivelEscrita() { return nivelEscrita; }
+    public void setNivelEscrita(NivelEscrita nivelEscrita) { this.nivelEscrita = nivelEscrita; }
+    
+    public NivelLeitura getNivelLeitura() { return nivelLeitura; }
+    public void setNivelLeitura(NivelLeitura nivelLeitura) { this.nivelLeitura = nivelLeitura; }
+    
+    public long getAtrasoMaximoMs() { return atrasoMaximoMs; }
+    public void setAtrasoMaximoMs(long atrasoMaximoMs) { this.atrasoMaximoMs = atrasoMaximoMs; }
+
+    public long getTtlMs() { return ttlMs; }
+    public void setTtlMs(long ttlMs) { this.ttlMs = ttlMs; }
+
+    public String getCursor() { return cursor; }
+    public void setCursor(String cursor) { this.cursor = cursor; }
+
+    public int getLimite() { return limite; }
+    public void setLimite(int limite) { this.limite = limite; }
+
+    public boolean isAceitaComprimidos() { return aceitaComprimidos; }
+    public void setAceitaComprimidos(boolean aceitaComprimidos) { this.aceitaComprimidos = aceitaComprimidos; }
 }
\ No newline at end of file
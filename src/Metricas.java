@@ -0,0 +1,230 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+// Métricas de um servidor: histogramas de latência, contadores e medidores (valores
+// lidos na hora da consulta, como o número de PUTs pendentes). Registrar é barato e
+// sem lock, para poder ficar no caminho das requisições.
+//
+// Os valores saem de duas formas: pelo JMX, como atributos do MBean
+// kv:type=Metricas,servidor=<porta> (jconsole, VisualVM...), e pela requisição STATS,
+// que devolve um registro por métrica.
+class Metricas {
+    private final Map<String, Histograma> histogramas = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> contadores = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> medidores = new ConcurrentHashMap<>();
+    // Nome no JMX, enquanto registrado
+    private ObjectName nomeJmx;
+    private boolean removido;
+
+    // Histograma com o nome, criado no primeiro uso; quem registra com frequência
+    // deve guardar a referência em vez de procurar pelo nome a cada vez
+    public Histograma histograma(String nome) {
+        return histogramas.computeIfAbsent(nome, n -> new Histograma());
+    }
+
+    public LongAdder contador(String nome) {
+        return contadores.computeIfAbsent(nome, n -> new LongAdder());
+    }
+
+    public void medidor(String nome, LongSupplier fonte) {
+        medidores.put(nome, fonte);
+    }
+
+    // Todas as métricas como texto, em ordem de nome; histogramas em microssegundos
+    public Map<String, String> valores() {
+        Map<String, String> valores = new TreeMap<>();
+        contadores.forEach((nome, contador) -> valores.put(nome, Long.toString(contador.sum())));
+        medidores.forEach((nome, fonte) -> valores.put(nome, Long.toString(fonte.getAsLong())));
+        histogramas.forEach((nome, histograma) -> valores.put(nome, histograma.resumo()));
+        return valores;
+    }
+
+    public List<Mensagem.Registro> paraRegistros() {
+        List<Mensagem.Registro> registros = new ArrayList<>();
+        valores().forEach((nome, valor) -> registros.add(new Mensagem.Registro(nome, valor, 0)));
+        return registros;
+    }
+
+    public synchronized void registrarJmx(String servidor) {
+        if (removido) {
+            return;
+        }
+        try {
+            ObjectName nome = new ObjectName("kv:type=Metricas,servidor=" + ObjectName.quote(servidor));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), nome);
+            nomeJmx = nome;
+        } catch (Exception e) {
+            Log.aviso("Métricas não registradas no JMX: {}", e.getMessage());
+        }
+    }
+
+    // Para um servidor encerrado sem sair da JVM, que pode subir outro na mesma porta
+    public synchronized void removerJmx() {
+        removido = true;
+        if (nomeJmx == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(nomeJmx);
+        } catch (Exception e) {
+            Log.aviso("Métricas não removidas do JMX: {}", e.getMessage());
+        }
+        nomeJmx = null;
+    }
+
+    // Distribuição de durações em nanossegundos, no estilo do HdrHistogram: valores
+    // até 64 têm um balde cada; acima disso cada potência de 2 é dividida em 32 baldes
+    // iguais, então o valor de um balde erra no máximo 1/32 (3%) do valor real, do
+    // nanossegundo às horas, com menos de 2 mil baldes fixos. Registrar é um
+    // incremento atômico no balde.
+    static final class Histograma {
+        private static final int BITS_SUB = 5;
+        private static final int SUB = 1 << BITS_SUB;
+        private static final int DIRETOS = 2 * SUB;
+        private static final int BALDES = DIRETOS + (63 - BITS_SUB - 1) * SUB;
+
+        private final AtomicLongArray baldes = new AtomicLongArray(BALDES);
+        private final LongAdder quantidade = new LongAdder();
+        private final LongAdder soma = new LongAdder();
+        private final AtomicLong maximo = new AtomicLong();
+
+        public void registrar(long ns) {
+            if (ns < 0) {
+                ns = 0;
+            }
+            baldes.incrementAndGet(balde(ns));
+            quantidade.increment();
+            soma.add(ns);
+            if (ns > maximo.get()) {
+                maximo.accumulateAndGet(ns, Math::max);
+            }
+        }
+
+        // Registra o tempo desde 'inicioNs' (System.nanoTime)
+        public void registrarDesde(long inicioNs) {
+            registrar(System.nanoTime() - inicioNs);
+        }
+
+        public long quantidade() {
+            return quantidade.sum();
+        }
+
+        public long maximo() {
+            return maximo.get();
+        }
+
+        public long media() {
+            long n = quantidade.sum();
+            return n == 0 ? 0 : soma.sum() / n;
+        }
+
+        // Menor valor (pelo limite superior do balde) com ao menos 'fracao' dos registros até ele
+        public long percentil(double fracao) {
+            long total = quantidade.sum();
+            if (total == 0) {
+                return 0;
+            }
+            long alvo = Math.max(1, (long) Math.ceil(total * fracao));
+            long acumulado = 0;
+            for (int i = 0; i < BALDES; i++) {
+                acumulado += baldes.get(i);
+                if (acumulado >= alvo) {
+                    return Math.min(limiteSuperior(i), maximo.get());
+                }
+            }
+            return maximo.get();
+        }
+
+        public String resumo() {
+            return "n=" + quantidade() + " media=" + micros(media()) + " p50=" + micros(percentil(0.5))
+                    + " p99=" + micros(percentil(0.99)) + " p999=" + micros(percentil(0.999))
+                    + " max=" + micros(maximo()) + " us";
+        }
+
+        private static String micros(long ns) {
+            return Long.toString(TimeUnit.NANOSECONDS.toMicros(ns));
+        }
+
+        private static int balde(long valor) {
+            if (valor < DIRETOS) {
+                return (int) valor;
+            }
+            int expoente = 63 - Long.numberOfLeadingZeros(valor);
+            int deslocamento = expoente - BITS_SUB;
+            // Os BITS_SUB bits abaixo do mais alto escolhem o balde dentro da potência de 2
+            int dentro = (int) (valor >>> deslocamento) - SUB;
+            return DIRETOS + (expoente - BITS_SUB - 1) * SUB + dentro;
+        }
+
+        private static long limiteSuperior(int balde) {
+            if (balde < DIRETOS) {
+                return balde;
+            }
+            int expoente = (balde - DIRETOS) / SUB + BITS_SUB + 1;
+            int deslocamento = expoente - BITS_SUB;
+            long dentro = (balde - DIRETOS) % SUB + SUB;
+            return ((dentro + 1) << deslocamento) - 1;
+        }
+    }
+
+    // Um atributo por métrica; os histogramas aparecem como texto (veja resumo)
+    private final class Bean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String nome) {
+            return valores().get(nome);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] nomes) {
+            Map<String, String> valores = valores();
+            AttributeList lista = new AttributeList();
+            for (String nome : nomes) {
+                if (valores.containsKey(nome)) {
+                    lista.add(new Attribute(nome, valores.get(nome)));
+                }
+            }
+            return lista;
+        }
+
+        @Override
+        public void setAttribute(Attribute atributo) {
+            throw new UnsupportedOperationException("métricas são somente leitura");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList atributos) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String acao, Object[] parametros, String[] assinatura) {
+            throw new UnsupportedOperationException(acao);
+        }
+
+        // Refeito a cada consulta: métricas novas aparecem conforme são usadas
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> atributos = new ArrayList<>();
+            for (String nome : valores().keySet()) {
+                atributos.add(new MBeanAttributeInfo(nome, String.class.getName(), nome, true, false, false));
+            }
+            return new MBeanInfo(Metricas.class.getName(), "Métricas do servidor KV",
+                    atributos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
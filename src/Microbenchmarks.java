@@ -0,0 +1,266 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+// Microbenchmarks dos caminhos quentes do servidor, no molde do JMH: cada caso roda
+// algumas iterações de aquecimento (para o JIT compilar o caminho medido), depois
+// iterações cronometradas, e o resultado é a média de operações por segundo com o
+// desvio entre iterações. Casos com várias threads medem o total de todas elas,
+// todas rodando ao mesmo tempo. O que cada operação devolve vai para um sumidouro,
+// para que o JIT não elimine o trabalho como código morto.
+//
+// Uso: java Microbenchmarks [trecho do nome...]   (sem argumentos roda todos)
+//   -Dkv.bench.aquecimento=3 -Dkv.bench.iteracoes=5 -Dkv.bench.segundos=1
+//   -Dkv.bench.threads=N     threads dos casos concorrentes (padrão: processadores)
+//   -Dkv.bench.keys=100000   keys carregadas no armazenamento antes de medir
+//
+// Casos:
+//   codec.*        codificar/decodificar um PUT e um MPUT de 100 registros
+//   motor.*        aplicar/obter no Armazenamento, MAPA e COMPACTO, com todas as
+//                  threads em keys aleatórias (leituras, escritas e 90/10)
+//   fila.*         liberar esperas de GET (o que notificarClientesAguardando faz a
+//                  cada escrita): cada operação registra N esperas em uma key, aplica
+//                  uma escrita e as libera; as respostas vão para um canal que só conta
+class Microbenchmarks {
+    private static final int AQUECIMENTO = Configuracao.inteiro("bench.aquecimento", 3);
+    private static final int ITERACOES = Configuracao.inteiro("bench.iteracoes", 5);
+    private static final long SEGUNDOS = Configuracao.inteiro("bench.segundos", 1);
+    private static final int THREADS = Configuracao.inteiro("bench.threads", Runtime.getRuntime().availableProcessors());
+    private static final int KEYS = Configuracao.inteiro("bench.keys", 100_000);
+
+    // Uma operação medida; 'thread' é o índice da thread no caso
+    interface Operacao {
+        long executar(int thread) throws Exception;
+    }
+
+    // 'preparar' roda fora da medição, uma vez por caso
+    private record Caso(String nome, int threads, IntFunction<Operacao> preparar) {
+    }
+
+    private static volatile long sumidouro;
+    private static volatile boolean parar;
+
+    public static void main(String[] args) throws Exception {
+        List<Caso> casos = new ArrayList<>();
+        casosCodec(casos);
+        casosMotor(casos, Configuracao.Motor.MAPA);
+        casosMotor(casos, Configuracao.Motor.COMPACTO);
+        casosFila(casos);
+
+        System.out.printf("%-40s %8s %16s %14s%n", "caso", "threads", "ops/s", "± desvio");
+        for (Caso caso : casos) {
+            if (selecionado(caso.nome(), args)) {
+                medir(caso);
+            }
+        }
+    }
+
+    private static boolean selecionado(String nome, String[] filtros) {
+        if (filtros.length == 0) {
+            return true;
+        }
+        for (String filtro : filtros) {
+            if (nome.contains(filtro)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void casosCodec(List<Caso> casos) throws IOException {
+        Mensagem put = new Mensagem(Mensagem.TipoMensagem.PUT, "chave-123456", "valor-".repeat(16), 1L << 40);
+        put.setIdRequisicao(42);
+        Mensagem mput = new Mensagem(Mensagem.TipoMensagem.MPUT);
+        List<Mensagem.Registro> registros = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            registros.add(new Mensagem.Registro("chave-" + i, "valor-".repeat(16), (1L << 40) + i));
+        }
+        mput.setRegistros(registros);
+        mput.setIdRequisicao(43);
+
+        for (Mensagem mensagem : List.of(put, mput)) {
+            String tipo = mensagem == put ? "PUT" : "MPUT100";
+            byte[] quadro = CodecMensagem.codificar(mensagem);
+            casos.add(new Caso("codec.codificar." + tipo, 1,
+                    n -> t -> CodecMensagem.codificar(mensagem).length));
+            casos.add(new Caso("codec.decodificar." + tipo, 1,
+                    n -> t -> CodecMensagem.decodificar(quadro, 4, quadro.length - 4).getIdRequisicao()));
+        }
+    }
+
+    private static void casosMotor(List<Caso> casos, Configuracao.Motor tipo) {
+        String prefixo = "motor." + tipo.name().toLowerCase() + ".";
+        casos.add(new Caso(prefixo + "obter", THREADS, n -> {
+            Armazenamento armazenamento = carregado(tipo);
+            return t -> {
+                Armazenamento.Entrada entrada = armazenamento.obter(keyAleatoria());
+                return entrada == null ? 0 : entrada.timestamp();
+            };
+        }));
+        casos.add(new Caso(prefixo + "aplicar", THREADS, n -> {
+            Armazenamento armazenamento = carregado(tipo);
+            long[] relogios = new long[n * 16];
+            return t -> armazenamento.aplicar(keyAleatoria(), "novo", proximoTimestamp(relogios, t)) ? 1 : 0;
+        }));
+        casos.add(new Caso(prefixo + "misto90-10", THREADS, n -> {
+            Armazenamento armazenamento = carregado(tipo);
+            long[] relogios = new long[n * 16];
+            return t -> {
+                String key = keyAleatoria();
+                if (ThreadLocalRandom.current().nextInt(10) == 0) {
+                    return armazenamento.aplicar(key, "novo", proximoTimestamp(relogios, t)) ? 1 : 0;
+                }
+                Armazenamento.Entrada entrada = armazenamento.obter(key);
+                return entrada == null ? 0 : entrada.timestamp();
+            };
+        }));
+    }
+
+    private static void casosFila(List<Caso> casos) {
+        for (int esperas : new int[] { 1, 100, 1000 }) {
+            casos.add(new Caso("fila.liberar." + esperas + "esperas", 1, n -> liberar(n, esperas)));
+        }
+        // Threads liberando keys diferentes ao mesmo tempo
+        casos.add(new Caso("fila.liberar.100esperas.concorrente", THREADS, n -> liberar(n, 100)));
+    }
+
+    private static Operacao liberar(int threads, int esperas) {
+        Armazenamento armazenamento = new Armazenamento(Armazenamento.criarMotor(Configuracao.motor(), 1, 0));
+        // Sem prazo: as esperas só saem liberadas, como em uma carga sem atraso
+        FilaEspera fila = new FilaEspera(armazenamento, null, null, 0, new Metricas());
+        CanalContador canal = new CanalContador();
+        long[] relogios = new long[threads * 16];
+        return t -> {
+            String key = "espera-" + t;
+            long timestamp = proximoTimestamp(relogios, t);
+            for (int i = 0; i < esperas; i++) {
+                fila.aguardar(key, timestamp, canal, i, null, 0);
+            }
+            armazenamento.aplicar(key, "liberado", timestamp);
+            fila.liberar(key);
+            return canal.respostas.sum();
+        };
+    }
+
+    // Timestamps crescentes por thread, sem compartilhar um contador entre elas;
+    // os slots ficam 16 longs afastados para não dividir linha de cache
+    private static long proximoTimestamp(long[] relogios, int thread) {
+        int slot = thread * 16;
+        return (++relogios[slot] << 8) | thread;
+    }
+
+    private static Armazenamento carregado(Configuracao.Motor tipo) {
+        Armazenamento armazenamento = new Armazenamento(
+                Armazenamento.criarMotor(tipo, Configuracao.versoes(), Configuracao.cacheLeituras()));
+        for (int i = 0; i < KEYS; i++) {
+            armazenamento.aplicar("key-" + i, "valor-" + i, 1);
+        }
+        // Como no servidor: sem a coleta, as versões sobrescritas se acumulam
+        armazenamento.iniciarColeta(Configuracao.intervaloColetaMs());
+        return armazenamento;
+    }
+
+    private static String keyAleatoria() {
+        return "key-" + ThreadLocalRandom.current().nextInt(KEYS);
+    }
+
+    private static void medir(Caso caso) throws Exception {
+        Operacao operacao = caso.preparar().apply(caso.threads());
+        for (int i = 0; i < AQUECIMENTO; i++) {
+            iteracao(caso.threads(), operacao);
+        }
+        double[] taxas = new double[ITERACOES];
+        for (int i = 0; i < ITERACOES; i++) {
+            taxas[i] = iteracao(caso.threads(), operacao);
+        }
+        double media = 0;
+        for (double taxa : taxas) {
+            media += taxa;
+        }
+        media /= taxas.length;
+        double variancia = 0;
+        for (double taxa : taxas) {
+            variancia += (taxa - media) * (taxa - media);
+        }
+        double desvio = taxas.length > 1 ? Math.sqrt(variancia / (taxas.length - 1)) : 0;
+        System.out.printf("%-40s %8d %16.0f %14.0f%n", caso.nome(), caso.threads(), media, desvio);
+    }
+
+    // Operações por segundo de todas as threads em uma iteração
+    private static double iteracao(int threads, Operacao operacao) throws Exception {
+        LongAdder total = new LongAdder();
+        CountDownLatch prontas = new CountDownLatch(threads);
+        CountDownLatch largada = new CountDownLatch(1);
+        Exception[] falha = new Exception[1];
+        List<Thread> executoras = new ArrayList<>();
+        parar = false;
+        for (int i = 0; i < threads; i++) {
+            int indice = i;
+            Thread thread = new Thread(() -> {
+                long operacoes = 0;
+                long acumulado = 0;
+                try {
+                    prontas.countDown();
+                    largada.await();
+                    while (!parar) {
+                        acumulado += operacao.executar(indice);
+                        operacoes++;
+                    }
+                } catch (Exception e) {
+                    falha[0] = e;
+                }
+                total.add(operacoes);
+                sumidouro = acumulado;
+            }, "bench-" + i);
+            executoras.add(thread);
+            thread.start();
+        }
+        prontas.await();
+        long inicio = System.nanoTime();
+        largada.countDown();
+        Thread.sleep(SEGUNDOS * 1000);
+        parar = true;
+        for (Thread thread : executoras) {
+            thread.join();
+        }
+        long duracao = System.nanoTime() - inicio;
+        if (falha[0] != null) {
+            throw falha[0];
+        }
+        return total.sum() * 1e9 / duracao;
+    }
+
+    // Destino das respostas liberadas pela fila: só conta
+    private static final class CanalContador implements Canal {
+        final LongAdder respostas = new LongAdder();
+
+        @Override
+        public void enviar(Mensagem mensagem) {
+            respostas.increment();
+        }
+
+        @Override
+        public void enviarTodas(List<Mensagem> mensagens) {
+            respostas.add(mensagens.size());
+        }
+
+        @Override
+        public boolean isAberta() {
+            return true;
+        }
+
+        @Override
+        public String getIPRemoto() {
+            return "127.0.0.1";
+        }
+
+        @Override
+        public int getPortaRemota() {
+            return 0;
+        }
+    }
+}
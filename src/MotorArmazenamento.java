@@ -0,0 +1,39 @@
+import java.util.function.BiConsumer;
+
+// Estrutura onde o Armazenamento guarda as versões de cada key. Os grupos
+// atômicos ficam no Armazenamento; o motor só precisa que aplicar seja atômico
+// por key (a versão mais nova vence) e que obter nunca veja uma entrada pela metade.
+//
+// Cada key tem uma cadeia de versões, da mais nova para a mais antiga, com no
+// máximo 'versoes' delas depois de cada coleta. Versões antigas nunca mudam, então
+// leituras "como em" um timestamp não precisam de lock nenhum.
+interface MotorArmazenamento {
+    Armazenamento.Entrada obter(String key);
+
+    // Versão mais nova visível em 'comoEm': null se a key ainda não existia,
+    // Armazenamento.DESCARTADA se a versão daquele momento já foi coletada
+    Armazenamento.Entrada obter(String key, long comoEm);
+
+    long timestampDe(String key);
+
+    // true se a versão passou a ser a atual. 'visivelEm' é a partir de quando ela
+    // aparece em leituras "como em" (o fim do grupo, num MPUT atômico); 'expiraEm'
+    // só é guardado na entrada (quem confere é o Armazenamento). Sem histórico, as
+    // versões anteriores são desconhecidas (vieram de um snapshot) e leituras de
+    // antes desta dão DESCARTADA.
+    boolean aplicar(String key, String valor, long timestamp, long visivelEm, long expiraEm, boolean semHistorico);
+
+    // Tira a key, com todas as versões, se a atual ainda for a de 'timestamp'
+    // (uma key expirada); true se removeu. Não fica marca: obter(key, comoEm)
+    // passa a dar null para qualquer momento
+    boolean remover(String key, long timestamp);
+
+    // Só a versão atual de cada key. Escritas concorrentes podem ou não aparecer;
+    // entradas que não mudaram sempre aparecem.
+    void paraCada(BiConsumer<String, Armazenamento.Entrada> acao);
+
+    // Descarta o que passar de 'versoes' versões por key; devolve quantas keys perderam versões
+    int coletar();
+
+    int tamanho();
+}
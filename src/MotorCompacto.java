@@ -0,0 +1,602 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+// Motor compacto: keys, valores e timestamps ficam em um bloco de bytes por
+// segmento, e o índice é uma tabela de endereçamento aberto (sondagem linear)
+// de ints com a posição da versão atual de cada key no bloco. Não há objetos por
+// key para o coletor de lixo percorrer: o heap tem alguns arrays grandes por
+// segmento, não importa quantas keys existam. Uma Entrada só é criada quando
+// alguém lê.
+//
+// Registro no bloco: timestamp (long), posição da versão anterior + 1 (0 se não
+// havia, DESCARTADA se foi coletada), distância até o timestamp em que a versão
+// fica visível, tamanho da key, capacidade do valor e tamanho do valor (ints; -1
+// para valor null), prazo de expiração (long, 0 = nunca), depois os bytes UTF-8
+// da key e os do valor (Compressao.paraBytes: um valor comprimido fica com os
+// bytes do Deflate). Versões anteriores
+// não precisam da key e a perdem quando o bloco é compactado.
+//
+// Uma versão nova vira um registro no fim do bloco apontando para a anterior;
+// com uma só versão por key, um valor que cabe na capacidade é gravado no lugar.
+// Registros substituídos ou coletados viram espaço perdido, recuperado quando o
+// bloco precisa crescer e metade dele está perdida.
+//
+// As keys são espalhadas entre SEGMENTOS, cada um com seu StampedLock: escritas
+// em segmentos diferentes não competem, e leituras são otimistas (repetem com o
+// lock de leitura se uma escrita mexeu no segmento no meio).
+//
+// Decodificar a entrada a cada leitura custa caro para as keys quentes: cada segmento
+// tem um CacheLeituras com as mais lidas, já como Entrada. O cache é preenchido com o
+// lock de leitura do segmento e atualizado com o de escrita, então nunca guarda uma
+// versão que uma escrita já substituiu.
+class MotorCompacto implements MotorArmazenamento {
+    private static final int BITS_SEGMENTOS = 8;
+    private static final int SEGMENTOS = 1 << BITS_SEGMENTOS;
+    private static final int TIMESTAMP = 0;
+    private static final int ANTERIOR = 8;
+    private static final int VISIVEL = 12;
+    private static final int TAMANHO_KEY = 16;
+    private static final int CAPACIDADE = 20;
+    private static final int TAMANHO_VALOR = 24;
+    private static final int EXPIRA = 28;
+    private static final int CABECALHO = 36;
+    private static final int DESCARTADA = -1;
+    private static final byte[] SEM_KEY = new byte[0];
+    private static final int INDICE_INICIAL = 16;
+    private static final int BLOCO_INICIAL = 1024;
+    // Maior array que a JVM costuma aceitar
+    private static final int BLOCO_MAXIMO = Integer.MAX_VALUE - 8;
+
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Segmento[] segmentos = new Segmento[SEGMENTOS];
+    private final int versoes;
+
+    public MotorCompacto(int versoes) {
+        this(versoes, 0);
+    }
+
+    // 'cacheLeituras' é o total de entradas cacheadas, divididas entre os segmentos
+    public MotorCompacto(int versoes, int cacheLeituras) {
+        this.versoes = Math.max(1, versoes);
+        CacheLeituras.Esboco esboco = cacheLeituras > 0 ? new CacheLeituras.Esboco(cacheLeituras) : null;
+        for (int i = 0; i < SEGMENTOS; i++) {
+            segmentos[i] = new Segmento(esboco == null ? null
+                    : new CacheLeituras(Math.max(8, cacheLeituras / SEGMENTOS), esboco));
+        }
+    }
+
+    @Override
+    public Armazenamento.Entrada obter(String key) {
+        int hash = espalhar(key);
+        Segmento segmento = segmentoDe(hash);
+        if (segmento.cache == null) {
+            return segmento.obter(hash, bytes(key), Long.MAX_VALUE);
+        }
+        Armazenamento.Entrada entrada = segmento.cache.obter(key);
+        if (entrada != null) {
+            return entrada;
+        }
+        return segmento.cache.candidata(key) ? segmento.obterECachear(hash, key)
+                : segmento.obter(hash, bytes(key), Long.MAX_VALUE);
+    }
+
+    @Override
+    public Armazenamento.Entrada obter(String key, long comoEm) {
+        int hash = espalhar(key);
+        return segmentoDe(hash).obter(hash, bytes(key), comoEm);
+    }
+
+    @Override
+    public long timestampDe(String key) {
+        int hash = espalhar(key);
+        return segmentoDe(hash).timestampDe(hash, bytes(key));
+    }
+
+    @Override
+    public boolean aplicar(String key, String valor, long timestamp, long visivelEm, long expiraEm,
+            boolean semHistorico) {
+        int hash = espalhar(key);
+        return segmentoDe(hash).aplicar(hash, key, valor, timestamp, Math.toIntExact(visivelEm - timestamp),
+                expiraEm, semHistorico);
+    }
+
+    @Override
+    public boolean remover(String key, long timestamp) {
+        int hash = espalhar(key);
+        return segmentoDe(hash).remover(hash, key, timestamp);
+    }
+
+    @Override
+    public void paraCada(BiConsumer<String, Armazenamento.Entrada> acao) {
+        List<String> keys = new ArrayList<>();
+        List<Armazenamento.Entrada> entradas = new ArrayList<>();
+        for (Segmento segmento : segmentos) {
+            // A ação pode demorar (disco, rede): copia o segmento e solta o lock antes de chamá-la
+            segmento.copiar(keys, entradas);
+            for (int i = 0; i < keys.size(); i++) {
+                acao.accept(keys.get(i), entradas.get(i));
+            }
+            keys.clear();
+            entradas.clear();
+        }
+    }
+
+    @Override
+    public int coletar() {
+        int coletadas = 0;
+        for (Segmento segmento : segmentos) {
+            coletadas += segmento.coletar();
+        }
+        return coletadas;
+    }
+
+    @Override
+    public int tamanho() {
+        int total = 0;
+        for (Segmento segmento : segmentos) {
+            total += segmento.ocupados;
+        }
+        return total;
+    }
+
+    private Segmento segmentoDe(int hash) {
+        return segmentos[hash >>> (32 - BITS_SEGMENTOS)];
+    }
+
+    private static int espalhar(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static byte[] bytes(String texto) {
+        return texto.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private final class Segmento {
+        private final StampedLock lock = new StampedLock();
+        // null com o cache desligado
+        final CacheLeituras cache;
+        // Posição do registro no bloco + 1; 0 marca uma posição livre
+        private int[] indice = new int[INDICE_INICIAL];
+        private int[] hashes = new int[INDICE_INICIAL];
+        private byte[] bloco = new byte[BLOCO_INICIAL];
+        private int fim;
+        private long perdido;
+        private volatile int ocupados;
+
+        Segmento(CacheLeituras cache) {
+            this.cache = cache;
+        }
+
+        Armazenamento.Entrada obter(int hash, byte[] key, long comoEm) {
+            long marca = lock.tryOptimisticRead();
+            if (marca != 0L) {
+                try {
+                    Armazenamento.Entrada entrada = ler(hash, key, comoEm);
+                    if (lock.validate(marca)) {
+                        return entrada;
+                    }
+                } catch (RuntimeException e) {
+                    // Leu o segmento no meio de uma escrita; repete com o lock abaixo
+                }
+            }
+            marca = lock.readLock();
+            try {
+                return ler(hash, key, comoEm);
+            } finally {
+                lock.unlockRead(marca);
+            }
+        }
+
+        // Falta no cache: lê com o lock, para que nenhuma escrita da key passe entre a
+        // leitura e a inserção no cache
+        Armazenamento.Entrada obterECachear(int hash, String key) {
+            byte[] bytesKey = bytes(key);
+            long marca = lock.readLock();
+            try {
+                Armazenamento.Entrada entrada = ler(hash, bytesKey, Long.MAX_VALUE);
+                if (entrada != null) {
+                    cache.inserir(key, entrada);
+                }
+                return entrada;
+            } finally {
+                lock.unlockRead(marca);
+            }
+        }
+
+        long timestampDe(int hash, byte[] key) {
+            long marca = lock.tryOptimisticRead();
+            if (marca != 0L) {
+                try {
+                    long timestamp = lerTimestamp(hash, key);
+                    if (lock.validate(marca)) {
+                        return timestamp;
+                    }
+                } catch (RuntimeException e) {
+                    // Idem obter
+                }
+            }
+            marca = lock.readLock();
+            try {
+                return lerTimestamp(hash, key);
+            } finally {
+                lock.unlockRead(marca);
+            }
+        }
+
+        boolean aplicar(int hash, String key, String valor, long timestamp, int visivel, long expiraEm,
+                boolean semHistorico) {
+            byte[] bytesKey = bytes(key);
+            byte[] bytesValor = valor == null ? null : Compressao.paraBytes(valor);
+            long marca = lock.writeLock();
+            try {
+                boolean atual = gravar(hash, bytesKey, bytesValor, timestamp, visivel, expiraEm, semHistorico);
+                if (atual && cache != null) {
+                    cache.atualizar(key, valor, timestamp, expiraEm);
+                }
+                return atual;
+            } finally {
+                lock.unlockWrite(marca);
+            }
+        }
+
+        // A key sai do índice e todas as suas versões viram espaço perdido. Sondagem
+        // linear não admite um buraco no meio de uma sequência: as keys seguintes que
+        // teriam passado pela posição liberada voltam uma casa (remoção por deslocamento).
+        boolean remover(int hash, String key, long timestamp) {
+            byte[] bytesKey = bytes(key);
+            long marca = lock.writeLock();
+            try {
+                int posicao = localizar(indice, hashes, bloco, hash, bytesKey);
+                if (posicao < 0 || (long) LONG.get(bloco, indice[posicao] - 1 + TIMESTAMP) != timestamp) {
+                    return false;
+                }
+                perdido += tamanhoCadeia(bloco, indice[posicao]);
+                int mascara = indice.length - 1;
+                int livre = posicao;
+                int proxima = posicao;
+                while (true) {
+                    proxima = (proxima + 1) & mascara;
+                    if (indice[proxima] == 0) {
+                        break;
+                    }
+                    int ideal = hashes[proxima] & mascara;
+                    // Fica onde está se a posição ideal dela está entre a livre (exclusive) e ela
+                    boolean fica = livre <= proxima ? livre < ideal && ideal <= proxima
+                            : livre < ideal || ideal <= proxima;
+                    if (!fica) {
+                        indice[livre] = indice[proxima];
+                        hashes[livre] = hashes[proxima];
+                        livre = proxima;
+                    }
+                }
+                indice[livre] = 0;
+                hashes[livre] = 0;
+                ocupados--;
+                if (cache != null) {
+                    cache.remover(key);
+                }
+                return true;
+            } finally {
+                lock.unlockWrite(marca);
+            }
+        }
+
+        // Com o lock de escrita; true se a versão gravada passou a ser a atual
+        private boolean gravar(int hash, byte[] key, byte[] valor, long timestamp, int visivel, long expiraEm,
+                boolean semHistorico) {
+            int posicao = localizar(indice, hashes, bloco, hash, key);
+            if (posicao < 0) {
+                posicao = -posicao - 1;
+                int novo = anexar(key, valor, timestamp, visivel, expiraEm);
+                INT.set(bloco, novo + ANTERIOR, semHistorico ? DESCARTADA : 0);
+                indice[posicao] = novo + 1;
+                hashes[posicao] = hash;
+                ocupados++;
+                if (ocupados * 4L > indice.length * 3L) {
+                    crescerIndice();
+                }
+                return true;
+            }
+            int registro = indice[posicao] - 1;
+            long atual = (long) LONG.get(bloco, registro + TIMESTAMP);
+            if (timestamp <= atual) {
+                if (versoes > 1 && !semHistorico && timestamp < atual) {
+                    encaixar(posicao, valor, timestamp, visivel, expiraEm);
+                }
+                return false;
+            }
+            if (versoes > 1 && !semHistorico) {
+                // A versão atual vira a anterior da nova. Se anexar compactar o bloco,
+                // ela muda de lugar: a posição é lida do índice depois.
+                int novo = anexar(key, valor, timestamp, visivel, expiraEm);
+                INT.set(bloco, novo + ANTERIOR, indice[posicao]);
+                indice[posicao] = novo + 1;
+                return true;
+            }
+            // Sem histórico, as versões anteriores se perdem
+            perdido += tamanhoCadeia(bloco, (int) INT.get(bloco, registro + ANTERIOR));
+            INT.set(bloco, registro + ANTERIOR, DESCARTADA);
+            int tamanhoValor = valor == null ? 0 : valor.length;
+            if (tamanhoValor <= (int) INT.get(bloco, registro + CAPACIDADE)) {
+                gravarValor(bloco, registro, valor, timestamp, visivel, expiraEm);
+                return true;
+            }
+            // Se anexar compactar o bloco, o registro antigo é copiado junto e só depois
+            // passa a ser espaço perdido
+            int tamanhoAntigo = tamanhoRegistro(bloco, registro);
+            int novo = anexar(key, valor, timestamp, visivel, expiraEm);
+            INT.set(bloco, novo + ANTERIOR, DESCARTADA);
+            indice[posicao] = novo + 1;
+            perdido += tamanhoAntigo;
+            return true;
+        }
+
+        // Versão mais antiga que a atual (réplica fora de ordem): entra na cadeia no
+        // lugar dela, a não ser que seja de antes do histórico guardado
+        private void encaixar(int posicao, byte[] valor, long timestamp, int visivel, long expiraEm) {
+            int versao = indice[posicao] - 1;
+            int saltos = 0;
+            while (true) {
+                int anterior = (int) INT.get(bloco, versao + ANTERIOR);
+                if (anterior == DESCARTADA) {
+                    return;
+                }
+                long timestampAnterior = anterior == 0 ? 0L : (long) LONG.get(bloco, anterior - 1 + TIMESTAMP);
+                if (anterior != 0 && timestampAnterior == timestamp) {
+                    return;
+                }
+                if (anterior == 0 || timestampAnterior < timestamp) {
+                    break;
+                }
+                versao = anterior - 1;
+                saltos++;
+            }
+            int novo = anexar(SEM_KEY, valor, timestamp, visivel, expiraEm);
+            // O bloco pode ter sido compactado: refaz o caminho até o ponto de encaixe
+            versao = indice[posicao] - 1;
+            for (int i = 0; i < saltos; i++) {
+                versao = (int) INT.get(bloco, versao + ANTERIOR) - 1;
+            }
+            INT.set(bloco, novo + ANTERIOR, (int) INT.get(bloco, versao + ANTERIOR));
+            INT.set(bloco, versao + ANTERIOR, novo + 1);
+        }
+
+        int coletar() {
+            long marca = lock.writeLock();
+            try {
+                int coletadas = 0;
+                for (int posicao : indice) {
+                    if (posicao == 0) {
+                        continue;
+                    }
+                    int versao = posicao - 1;
+                    for (int i = 1; i < versoes && versao >= 0; i++) {
+                        versao = (int) INT.get(bloco, versao + ANTERIOR) - 1;
+                    }
+                    if (versao >= 0) {
+                        int anterior = (int) INT.get(bloco, versao + ANTERIOR);
+                        if (anterior > 0) {
+                            perdido += tamanhoCadeia(bloco, anterior);
+                            INT.set(bloco, versao + ANTERIOR, DESCARTADA);
+                            coletadas++;
+                        }
+                    }
+                }
+                return coletadas;
+            } finally {
+                lock.unlockWrite(marca);
+            }
+        }
+
+        void copiar(List<String> keys, List<Armazenamento.Entrada> entradas) {
+            long marca = lock.readLock();
+            try {
+                for (int posicao : indice) {
+                    if (posicao != 0) {
+                        int registro = posicao - 1;
+                        int tamanhoKey = (int) INT.get(bloco, registro + TAMANHO_KEY);
+                        keys.add(new String(bloco, registro + CABECALHO, tamanhoKey, StandardCharsets.UTF_8));
+                        entradas.add(entradaEm(bloco, registro));
+                    }
+                }
+            } finally {
+                lock.unlockRead(marca);
+            }
+        }
+
+        // Lê só variáveis locais: na leitura otimista os campos podem mudar a qualquer momento
+        private Armazenamento.Entrada ler(int hash, byte[] key, long comoEm) {
+            byte[] bloco = this.bloco;
+            int[] indice = this.indice;
+            int posicao = localizar(indice, this.hashes, bloco, hash, key);
+            if (posicao < 0) {
+                return null;
+            }
+            int registro = indice[posicao] - 1;
+            // Limite de saltos: numa leitura otimista o bloco pode estar pela metade
+            for (int saltos = 0; saltos <= bloco.length / CABECALHO; saltos++) {
+                long timestamp = (long) LONG.get(bloco, registro + TIMESTAMP);
+                if (timestamp + (int) INT.get(bloco, registro + VISIVEL) <= comoEm) {
+                    return entradaEm(bloco, registro);
+                }
+                int anterior = (int) INT.get(bloco, registro + ANTERIOR);
+                if (anterior == 0) {
+                    return null;
+                }
+                if (anterior == DESCARTADA) {
+                    return Armazenamento.DESCARTADA;
+                }
+                registro = anterior - 1;
+            }
+            throw new IllegalStateException("cadeia de versões inconsistente");
+        }
+
+        private long lerTimestamp(int hash, byte[] key) {
+            byte[] bloco = this.bloco;
+            int[] indice = this.indice;
+            int posicao = localizar(indice, this.hashes, bloco, hash, key);
+            return posicao < 0 ? 0L : (long) LONG.get(bloco, indice[posicao] - 1 + TIMESTAMP);
+        }
+
+        // Posição da key no índice, ou -(posição livre onde ela entraria) - 1
+        private static int localizar(int[] indice, int[] hashes, byte[] bloco, int hash, byte[] key) {
+            int mascara = indice.length - 1;
+            int posicao = hash & mascara;
+            for (int tentativas = 0; tentativas < indice.length; tentativas++) {
+                int registro = indice[posicao] - 1;
+                if (registro < 0) {
+                    return -posicao - 1;
+                }
+                if (hashes[posicao] == hash && mesmaKey(bloco, registro, key)) {
+                    return posicao;
+                }
+                posicao = (posicao + 1) & mascara;
+            }
+            // Só numa leitura otimista com o índice sendo trocado; a leitura é repetida com lock
+            throw new IllegalStateException("índice inconsistente");
+        }
+
+        private static boolean mesmaKey(byte[] bloco, int registro, byte[] key) {
+            int tamanhoKey = (int) INT.get(bloco, registro + TAMANHO_KEY);
+            int inicio = registro + CABECALHO;
+            return tamanhoKey == key.length
+                    && Arrays.equals(bloco, inicio, inicio + tamanhoKey, key, 0, key.length);
+        }
+
+        private static Armazenamento.Entrada entradaEm(byte[] bloco, int registro) {
+            long timestamp = (long) LONG.get(bloco, registro + TIMESTAMP);
+            int tamanhoKey = (int) INT.get(bloco, registro + TAMANHO_KEY);
+            int tamanhoValor = (int) INT.get(bloco, registro + TAMANHO_VALOR);
+            String valor = tamanhoValor < 0 ? null
+                    : Compressao.deBytes(bloco, registro + CABECALHO + tamanhoKey, tamanhoValor);
+            return new Armazenamento.Entrada(valor, timestamp, (long) LONG.get(bloco, registro + EXPIRA));
+        }
+
+        private static int tamanhoRegistro(byte[] bloco, int registro) {
+            return CABECALHO + (int) INT.get(bloco, registro + TAMANHO_KEY)
+                    + (int) INT.get(bloco, registro + CAPACIDADE);
+        }
+
+        // Espaço ocupado pela versão em 'anterior' (posição + 1) e todas as mais antigas
+        private static long tamanhoCadeia(byte[] bloco, int anterior) {
+            long total = 0;
+            while (anterior > 0) {
+                total += tamanhoRegistro(bloco, anterior - 1);
+                anterior = (int) INT.get(bloco, anterior - 1 + ANTERIOR);
+            }
+            return total;
+        }
+
+        private static void gravarValor(byte[] bloco, int registro, byte[] valor, long timestamp, int visivel,
+                long expiraEm) {
+            LONG.set(bloco, registro + TIMESTAMP, timestamp);
+            INT.set(bloco, registro + VISIVEL, visivel);
+            LONG.set(bloco, registro + EXPIRA, expiraEm);
+            INT.set(bloco, registro + TAMANHO_VALOR, valor == null ? -1 : valor.length);
+            if (valor != null) {
+                int tamanhoKey = (int) INT.get(bloco, registro + TAMANHO_KEY);
+                System.arraycopy(valor, 0, bloco, registro + CABECALHO + tamanhoKey, valor.length);
+            }
+        }
+
+        // Grava um registro novo (sem versão anterior) no fim do bloco e devolve sua posição
+        private int anexar(byte[] key, byte[] valor, long timestamp, int visivel, long expiraEm) {
+            int tamanhoValor = valor == null ? 0 : valor.length;
+            // Folga até o próximo múltiplo de 8 para valores que crescem pouco
+            int capacidade = (tamanhoValor + 7) & ~7;
+            long tamanho = (long) CABECALHO + key.length + capacidade;
+            if (fim + tamanho > bloco.length) {
+                abrirEspaco(tamanho);
+            }
+            int registro = fim;
+            INT.set(bloco, registro + ANTERIOR, 0);
+            INT.set(bloco, registro + TAMANHO_KEY, key.length);
+            INT.set(bloco, registro + CAPACIDADE, capacidade);
+            System.arraycopy(key, 0, bloco, registro + CABECALHO, key.length);
+            gravarValor(bloco, registro, valor, timestamp, visivel, expiraEm);
+            fim += (int) tamanho;
+            return registro;
+        }
+
+        // Cria um bloco novo, já sem os registros perdidos se eles forem metade do atual
+        private void abrirEspaco(long tamanho) {
+            boolean compactar = perdido * 2 >= fim;
+            long necessario = (compactar ? fim - perdido : fim) + tamanho;
+            if (necessario > BLOCO_MAXIMO) {
+                throw new IllegalStateException("segmento do armazenamento compacto cheio");
+            }
+            long novoTamanho = Math.max(bloco.length, BLOCO_INICIAL);
+            while (novoTamanho < necessario + necessario / 4) {
+                novoTamanho *= 2;
+            }
+            novoTamanho = Math.min(novoTamanho, BLOCO_MAXIMO);
+            if (!compactar) {
+                bloco = Arrays.copyOf(bloco, (int) novoTamanho);
+                return;
+            }
+            byte[] novo = new byte[(int) novoTamanho];
+            int posicaoNova = 0;
+            for (int i = 0; i < indice.length; i++) {
+                if (indice[i] == 0) {
+                    continue;
+                }
+                int registro = indice[i] - 1;
+                indice[i] = posicaoNova + 1;
+                int copia = posicaoNova;
+                posicaoNova += copiarRegistro(bloco, registro, novo, posicaoNova, true);
+                // As versões anteriores vêm logo depois, já sem a key
+                int anterior = (int) INT.get(bloco, registro + ANTERIOR);
+                while (anterior > 0) {
+                    INT.set(novo, copia + ANTERIOR, posicaoNova + 1);
+                    copia = posicaoNova;
+                    posicaoNova += copiarRegistro(bloco, anterior - 1, novo, posicaoNova, false);
+                    anterior = (int) INT.get(bloco, anterior - 1 + ANTERIOR);
+                }
+            }
+            bloco = novo;
+            fim = posicaoNova;
+            perdido = 0;
+        }
+
+        private static int copiarRegistro(byte[] origem, int registro, byte[] destino, int posicao, boolean comKey) {
+            int tamanhoKey = (int) INT.get(origem, registro + TAMANHO_KEY);
+            int capacidade = (int) INT.get(origem, registro + CAPACIDADE);
+            int tamanhoValor = Math.max(0, (int) INT.get(origem, registro + TAMANHO_VALOR));
+            int keyCopiada = comKey ? tamanhoKey : 0;
+            System.arraycopy(origem, registro, destino, posicao, CABECALHO);
+            INT.set(destino, posicao + TAMANHO_KEY, keyCopiada);
+            System.arraycopy(origem, registro + CABECALHO, destino, posicao + CABECALHO, keyCopiada);
+            System.arraycopy(origem, registro + CABECALHO + tamanhoKey, destino, posicao + CABECALHO + keyCopiada,
+                    tamanhoValor);
+            return CABECALHO + keyCopiada + capacidade;
+        }
+
+        private void crescerIndice() {
+            int[] novoIndice = new int[indice.length * 2];
+            int[] novosHashes = new int[novoIndice.length];
+            int mascara = novoIndice.length - 1;
+            for (int i = 0; i < indice.length; i++) {
+                if (indice[i] != 0) {
+                    int posicao = hashes[i] & mascara;
+                    while (novoIndice[posicao] != 0) {
+                        posicao = (posicao + 1) & mascara;
+                    }
+                    novoIndice[posicao] = indice[i];
+                    novosHashes[posicao] = hashes[i];
+                }
+            }
+            indice = novoIndice;
+            hashes = novosHashes;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+// Motor padrão: a versão atual de cada key em um ConcurrentHashMap, apontando para
+// as anteriores. Leituras não usam lock e escritas em keys diferentes não competem
+// entre si, mas cada key custa vários objetos (nó, String da key, versão, Entrada,
+// String do valor).
+class MotorMapa implements MotorArmazenamento {
+    // Uma versão nunca muda depois de publicada, exceto o elo para a anterior, que a
+    // coleta corta e uma réplica atrasada pode usar para encaixar uma versão antiga
+    private static final class Versao {
+        final Armazenamento.Entrada entrada;
+        final long visivelEm;
+        volatile Versao anterior;
+
+        Versao(Armazenamento.Entrada entrada, long visivelEm) {
+            this.entrada = entrada;
+            this.visivelEm = visivelEm;
+        }
+
+        long timestamp() {
+            return entrada.timestamp();
+        }
+    }
+
+    // Fim de uma cadeia cujas versões mais antigas foram descartadas (null: não havia)
+    private static final Versao FIM_DO_HISTORICO = new Versao(null, Long.MAX_VALUE);
+
+    private final ConcurrentHashMap<String, Versao> entradas = new ConcurrentHashMap<>();
+    private final int versoes;
+
+    public MotorMapa(int versoes) {
+        this.versoes = Math.max(1, versoes);
+    }
+
+    @Override
+    public Armazenamento.Entrada obter(String key) {
+        Versao versao = entradas.get(key);
+        return versao == null ? null : versao.entrada;
+    }
+
+    @Override
+    public Armazenamento.Entrada obter(String key, long comoEm) {
+        Versao versao = entradas.get(key);
+        while (versao != null && versao != FIM_DO_HISTORICO) {
+            if (versao.visivelEm <= comoEm) {
+                return versao.entrada;
+            }
+            versao = versao.anterior;
+        }
+        return versao == null ? null : Armazenamento.DESCARTADA;
+    }
+
+    @Override
+    public long timestampDe(String key) {
+        Versao versao = entradas.get(key);
+        return versao == null ? 0L : versao.timestamp();
+    }
+
+    @Override
+    public boolean aplicar(String key, String valor, long timestamp, long visivelEm, long expiraEm,
+            boolean semHistorico) {
+        Versao nova = new Versao(new Armazenamento.Entrada(valor, timestamp, expiraEm), visivelEm);
+        boolean historico = versoes > 1 && !semHistorico;
+        Versao resultado = entradas.compute(key, (k, atual) -> {
+            if (atual == null) {
+                nova.anterior = semHistorico ? FIM_DO_HISTORICO : null;
+                return nova;
+            }
+            if (timestamp > atual.timestamp()) {
+                nova.anterior = historico ? atual : FIM_DO_HISTORICO;
+                return nova;
+            }
+            if (historico) {
+                encaixar(atual, nova);
+            }
+            return atual;
+        });
+        return resultado == nova;
+    }
+
+    @Override
+    public boolean remover(String key, long timestamp) {
+        Versao versao = entradas.get(key);
+        return versao != null && versao.timestamp() == timestamp && entradas.remove(key, versao);
+    }
+
+    // Versão mais antiga que a atual (réplica fora de ordem): entra na cadeia no
+    // lugar dela, a não ser que seja de antes do histórico guardado
+    private static void encaixar(Versao atual, Versao nova) {
+        if (atual.timestamp() == nova.timestamp()) {
+            return;
+        }
+        Versao versao = atual;
+        while (true) {
+            Versao anterior = versao.anterior;
+            if (anterior == FIM_DO_HISTORICO || (anterior != null && anterior.timestamp() == nova.timestamp())) {
+                return;
+            }
+            if (anterior == null || anterior.timestamp() < nova.timestamp()) {
+                nova.anterior = anterior;
+                versao.anterior = nova;
+                return;
+            }
+            versao = anterior;
+        }
+    }
+
+    @Override
+    public void paraCada(BiConsumer<String, Armazenamento.Entrada> acao) {
+        entradas.forEach((key, versao) -> acao.accept(key, versao.entrada));
+    }
+
+    // Só corta elos: quem já está percorrendo a cadeia continua com as versões que tinha
+    @Override
+    public int coletar() {
+        int coletadas = 0;
+        for (Versao versao : entradas.values()) {
+            for (int i = 1; i < versoes && versao != null && versao != FIM_DO_HISTORICO; i++) {
+                versao = versao.anterior;
+            }
+            if (versao != null && versao != FIM_DO_HISTORICO) {
+                Versao anterior = versao.anterior;
+                if (anterior != null && anterior != FIM_DO_HISTORICO) {
+                    versao.anterior = FIM_DO_HISTORICO;
+                    coletadas++;
+                }
+            }
+        }
+        return coletadas;
+    }
+
+    @Override
+    public int tamanho() {
+        return entradas.size();
+    }
+}
@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+// Mantém uma conexão persistente por endereço remoto e a reaproveita entre
+// requisições. Conexões fechadas são recriadas no próximo uso. A conexão é aberta
+// sem lock: quem pede o mesmo endereço enquanto ela é aberta espera por ela, e os
+// demais endereços não esperam por um servidor lento ou fora do ar.
+class PoolConexoes {
+    private final Map<String, Conexao> conexoes;
+    // Conexões sendo abertas, por endereço
+    private final Map<String, CompletableFuture<Conexao>> abrindo;
+    private final Consumer<Mensagem> tratador;
+    private final ExecutorService executor;
+
+    public PoolConexoes(Consumer<Mensagem> tratador, ExecutorService executor) {
+        this.conexoes = new ConcurrentHashMap<>();
+        this.abrindo = new ConcurrentHashMap<>();
+        this.tratador = tratador;
+        this.executor = executor;
+    }
+
+    public Conexao obter(String ip, int porta) throws IOException {
+        String endereco = ip + ":" + porta;
+        Conexao conexao = conexoes.get(endereco);
+        if (conexao != null && conexao.isAberta()) {
+            return conexao;
+        }
+        CompletableFuture<Conexao> nova = new CompletableFuture<>();
+        CompletableFuture<Conexao> emAndamento = abrindo.putIfAbsent(endereco, nova);
+        if (emAndamento != null) {
+            return aguardar(emAndamento);
+        }
+        try {
+            // Outra thread pode ter terminado de abrir entre o get e o putIfAbsent
+            conexao = conexoes.get(endereco);
+            if (conexao == null || !conexao.isAberta()) {
+                conexao = Conexao.conectar(ip, porta);
+                conexao.iniciar(tratador, executor);
+                conexoes.put(endereco, conexao);
+            }
+            nova.complete(conexao);
+            return conexao;
+        } catch (IOException | RuntimeException e) {
+            nova.completeExceptionally(e);
+            throw e;
+        } finally {
+            abrindo.remove(endereco, nova);
+        }
+    }
+
+    private static Conexao aguardar(CompletableFuture<Conexao> futuro) throws IOException {
+        try {
+            return futuro.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException erro) {
+                throw new IOException(erro.getMessage(), erro);
+            }
+            throw e;
+        }
+    }
+
+    public void fecharTodas() {
+        for (Conexao conexao : conexoes.values()) {
+            conexao.fechar();
+        }
+        conexoes.clear();
+    }
+}
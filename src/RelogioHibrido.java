@@ -0,0 +1,50 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Relógio lógico híbrido (HLC) do servidor: milissegundos desde EPOCA_MS nos bits
+// altos e um contador lógico nos BITS_LOGICO baixos. Cada valor gerado é maior que
+// todos os anteriores e que todos os recebidos de outros servidores, e fica perto
+// do relógio físico: com o relógio parado ou atrasado, o contador lógico avança (e,
+// se estourar, empurra os milissegundos, até o relógio físico alcançar).
+//
+// Sem lock: gerar e atualizar são um compareAndSet sobre o último valor.
+class RelogioHibrido {
+    static final int BITS_LOGICO = 8;
+    // 40 bits de milissegundos: até 2058. Os bits acima ficam para o termo do líder
+    // (veja Servidor.timestamp); timestamps gravados com 41 bits continuam em ordem,
+    // lidos como do termo 2 * termo
+    static final int BITS = 40 + BITS_LOGICO;
+    static final long MASCARA = (1L << BITS) - 1;
+    // 2024-01-01T00:00:00Z
+    static final long EPOCA_MS = 1_704_067_200_000L;
+
+    private final AtomicLong ultimo = new AtomicLong();
+
+    // Reserva 'quantidade' valores consecutivos e devolve o primeiro
+    public long reservar(int quantidade) {
+        while (true) {
+            long atual = ultimo.get();
+            long inicio = Math.max(fisico(), atual + 1);
+            if (ultimo.compareAndSet(atual, inicio + quantidade - 1)) {
+                return inicio;
+            }
+        }
+    }
+
+    // Valor visto em outro servidor (ou pedido por um cliente): os próximos gerados serão maiores
+    public void atualizar(long recebido) {
+        ultimo.accumulateAndGet(recebido & MASCARA, Math::max);
+    }
+
+    public long ultimo() {
+        return ultimo.get();
+    }
+
+    // O relógio físico agora, no formato do HLC (contador lógico zerado)
+    public static long fisico() {
+        return (System.currentTimeMillis() - EPOCA_MS) << BITS_LOGICO;
+    }
+
+    public static long milissegundosDe(long hlc) {
+        return ((hlc & MASCARA) >>> BITS_LOGICO) + EPOCA_MS;
+    }
+}
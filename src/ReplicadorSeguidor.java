@@ -0,0 +1,404 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+// Fluxo de replicação de uma partição, do líder para um seguidor. Uma thread lê o LogReplicacao
+// a partir do último registro enviado e manda lotes REPLICATION pela conexão
+// persistente, com vários lotes em voo ao mesmo tempo. O seguidor responde
+// REPLICATION_OK com o maior timestamp aplicado, confirmando tudo até ele.
+//
+// A cada conexão nova o seguidor informa até onde já aplicou (SYNC). O SYNC leva o
+// último timestamp que o líder tinha ao ser eleito: um seguidor com escritas que não
+// estão na história do líder (de um líder antigo que não chegou à maioria) descarta a
+// partição e responde 0, e recebe tudo de novo pelo armazenamento. Se o log
+// ainda tem tudo depois desse ponto, só o trecho que falta é reenviado; senão
+// o líder envia as entradas mais novas do armazenamento em pedaços
+// (SNAPSHOT_CHUNK), e das outras só a key, e depois continua pelo log. Uma
+// expiração não deixa marca no armazenamento: no SNAPSHOT_END o seguidor tira as
+// keys da partição que não vieram. Enquanto isso os PUTs não esperam por este
+// seguidor.
+//
+// Sem escritas novas, o líder manda lotes vazios periodicamente. Cada lote leva
+// o fim do log do líder no momento do envio; o seguidor que já aplicou até ali
+// sabe que estava em dia naquele instante (leituras LIMITADA dependem disso).
+//
+// Todas as mensagens levam o termo do líder. Um seguidor que já está em um termo
+// maior recusa o fluxo e informa o termo dele; o líder o consulta em
+// getTermoMaiorVisto e deixa a liderança.
+class ReplicadorSeguidor implements Runnable {
+    private static final int TAMANHO_LOTE = Configuracao.inteiro("loteReplicacao", 512);
+    private static final int LOTES_EM_VOO = Configuracao.inteiro("lotesEmVoo", 16);
+    // Abaixo do prazo de eleição, para que um seguidor que acabou de subir seja
+    // alcançado pelo líder antes de se candidatar
+    private static final long INTERVALO_RECONEXAO_MS = Math.min(1000, Configuracao.prazoEleicaoMs() / 2);
+    private static final long TEMPO_MAXIMO_RESPOSTA_MS = 10_000;
+    private static final long INTERVALO_HEARTBEAT_NS = TimeUnit.MILLISECONDS.toNanos(Configuracao.intervaloHeartbeatMs());
+
+    // DISPONIVEL: em dia; os PUTs esperam a confirmação deste seguidor.
+    // SINCRONIZANDO: recebendo o que perdeu; PUTs não esperam por ele.
+    // INDISPONIVEL: sem conexão.
+    public enum Estado {
+        DISPONIVEL, SINCRONIZANDO, INDISPONIVEL
+    }
+
+    // Recebe os intervalos (anterior, ate] de PUTs confirmados por um seguidor
+    // disponível (replicado = true). Quando ele cai, o intervalo pendente é entregue
+    // com replicado = false, para que os PUTs não fiquem esperando indefinidamente.
+    interface Ouvinte {
+        void confirmado(ReplicadorSeguidor seguidor, long anterior, long ate, boolean replicado);
+    }
+
+    private final String ip;
+    private final int porta;
+    private final int particao;
+    private final long termo;
+    // Último timestamp do líder ao ser eleito; o que ele tem de termos anteriores está até aqui
+    private final long inicioTermo;
+    // Endereço do líder, que o seguidor passa a usar para redirecionar clientes
+    private final String lider;
+    // Keys que pertencem à partição (o armazenamento tem todas as partições deste servidor)
+    private final Predicate<String> daParticao;
+    private final LogReplicacao log;
+    private final Armazenamento armazenamento;
+    private final PoolConexoes poolConexoes;
+    private final Ouvinte ouvinte;
+    private final Semaphore emVoo;
+    // Do envio de um lote de REPLICATION até o REPLICATION_OK
+    private final Metricas.Histograma idaEVolta;
+    private final LongAdder falhas;
+
+    // Alterados só pela thread do replicador
+    private long ultimoEnviado;
+    private long ultimoEnvioNs;
+    private volatile long geracao;
+    private Conexao conexaoAtual;
+
+    // Protegidos pelo monitor do log, junto com as escritas do líder
+    private volatile Estado estado;
+    private volatile long ultimoConfirmado;
+    // PUTs até este timestamp não contaram com este seguidor e não são confirmados por ele
+    private volatile long limiteConfirmacao;
+
+    private volatile boolean falhaPendente;
+    private volatile long termoMaiorVisto;
+    private volatile boolean ativo;
+    private volatile Thread thread;
+
+    public ReplicadorSeguidor(String ip, int porta, int particao, long termo, long inicioTermo, String lider,
+            Predicate<String> daParticao, LogReplicacao log, Armazenamento armazenamento, PoolConexoes poolConexoes,
+            Ouvinte ouvinte, Metricas metricas) {
+        this.ip = ip;
+        this.porta = porta;
+        this.particao = particao;
+        this.termo = termo;
+        this.inicioTermo = inicioTermo;
+        this.lider = lider;
+        this.daParticao = daParticao;
+        this.log = log;
+        this.armazenamento = armazenamento;
+        this.poolConexoes = poolConexoes;
+        this.ouvinte = ouvinte;
+        this.emVoo = new Semaphore(LOTES_EM_VOO);
+        this.idaEVolta = metricas.histograma("replicacao.idaEVolta");
+        this.falhas = metricas.contador("replicacao.falhas");
+        this.estado = Estado.INDISPONIVEL;
+        this.limiteConfirmacao = Long.MAX_VALUE;
+        this.ativo = true;
+    }
+
+    // Acorda a thread do replicador depois que novos registros entraram no log
+    public void notificar() {
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    // Só deve ser consultado com o monitor do log adquirido
+    public boolean isDisponivel() {
+        return estado == Estado.DISPONIVEL;
+    }
+
+    public Estado getEstado() {
+        return estado;
+    }
+
+    // Até onde o log precisa ser mantido por causa deste seguidor
+    public long getPosicaoRetida() {
+        return estado == Estado.INDISPONIVEL ? Long.MAX_VALUE : ultimoConfirmado;
+    }
+
+    // Maior termo informado pelo seguidor ao recusar este líder (0 se nunca recusou)
+    public long getTermoMaiorVisto() {
+        return termoMaiorVisto;
+    }
+
+    public String getEndereco() {
+        return ip + ":" + porta + (particao != 0 ? " (partição " + particao + ")" : "");
+    }
+
+    public void parar() {
+        ativo = false;
+        notificar();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (ativo) {
+            if (falhaPendente) {
+                falhaPendente = false;
+                tratarFalha(null);
+                // Um seguidor que recusa todo lote (WAL desativado) não deve ser
+                // sincronizado de novo em laço
+                dormir(INTERVALO_RECONEXAO_MS);
+            }
+
+            Conexao conexao;
+            try {
+                conexao = poolConexoes.obter(ip, porta);
+                if (conexao != conexaoAtual) {
+                    conexaoAtual = conexao;
+                    sincronizar(conexao);
+                }
+            } catch (Exception e) {
+                tratarFalha(e);
+                dormir(INTERVALO_RECONEXAO_MS);
+                continue;
+            }
+
+            List<Mensagem.Registro> lote = log.lerApos(ultimoEnviado, TAMANHO_LOTE);
+            if (lote.isEmpty()) {
+                if (estado == Estado.SINCRONIZANDO) {
+                    entrarEmDia();
+                }
+                if (System.nanoTime() - ultimoEnvioNs >= INTERVALO_HEARTBEAT_NS && emVoo.tryAcquire()) {
+                    enviarLote(conexao, Mensagem.TipoMensagem.REPLICATION, List.of());
+                }
+                LockSupport.parkNanos(INTERVALO_HEARTBEAT_NS);
+                continue;
+            }
+            try {
+                if (!emVoo.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            enviarLote(conexao, Mensagem.TipoMensagem.REPLICATION, lote);
+        }
+    }
+
+    // Pergunta ao seguidor até onde ele aplicou e decide entre reenviar o
+    // trecho do log ou transferir as entradas do armazenamento
+    private void sincronizar(Conexao conexao) throws Exception {
+        Mensagem sync = new Mensagem(Mensagem.TipoMensagem.SYNC, null, inicioTermo);
+        sync.setParticao(particao);
+        sync.setTermo(termo);
+        sync.setValue(lider);
+        Mensagem resposta = conexao.requisitar(sync).get(TEMPO_MAXIMO_RESPOSTA_MS, TimeUnit.MILLISECONDS);
+        if (resposta.getTipo() != Mensagem.TipoMensagem.SYNC_OK) {
+            verTermo(resposta);
+            throw new IOException("seguidor recusou a partição " + particao + ": " + resposta.getValue());
+        }
+        long aplicadoSeguidor = resposta.getTimestamp();
+
+        long ponto;
+        synchronized (log) {
+            estado = Estado.SINCRONIZANDO;
+            limiteConfirmacao = Long.MAX_VALUE;
+            ponto = log.ultimoTimestamp();
+            ultimoConfirmado = Math.min(aplicadoSeguidor, ponto);
+            ultimoEnviado = ultimoConfirmado;
+        }
+        // Conferir depois de reter o log: um descarte concorrente não passa mais deste ponto
+        if (aplicadoSeguidor >= ponto || log.contemApos(aplicadoSeguidor)) {
+            Log.info("Seguidor {} em ts {}, reenviando o log a partir daí", getEndereco(), aplicadoSeguidor);
+            return;
+        }
+
+        Log.info("Seguidor {} em ts {}, fora do log; enviando entradas do armazenamento até ts {}", getEndereco(),
+                aplicadoSeguidor, ponto);
+        synchronized (log) {
+            ultimoConfirmado = ponto;
+            ultimoEnviado = ponto;
+        }
+        // O líder aplica fora do monitor do log: as escritas até 'ponto' podem ainda
+        // estar a caminho do armazenamento
+        log.esperarAplicadas(ponto);
+        enviarSnapshot(conexao, aplicadoSeguidor, ponto);
+    }
+
+    // Envia, em pedaços, as entradas mais novas que 'apos' e a key de todas as outras
+    // da partição (timestamp 0, sem valor: o seguidor já tem a versão). O armazenamento
+    // já tem tudo até 'ponto'; o que vier depois segue pelo log normalmente.
+    private void enviarSnapshot(Conexao conexao, long apos, long ponto) throws Exception {
+        long geracaoSnapshot = geracao;
+        List<Mensagem.Registro> pedaco = new ArrayList<>(TAMANHO_LOTE);
+        Exception[] erro = new Exception[1];
+        long[] enviadas = new long[1];
+        armazenamento.paraCada((key, entrada) -> {
+            if (erro[0] != null || !daParticao.test(key)) {
+                return;
+            }
+            if (entrada.timestamp() <= apos) {
+                pedaco.add(new Mensagem.Registro(key, "", 0));
+            } else {
+                // Vai mesmo expirada: no seguidor ela encobre uma versão anterior que ele ainda tenha
+                pedaco.add(new Mensagem.Registro(key, entrada.valor(), entrada.timestamp(), 0, entrada.expiraEm()));
+            }
+            if (pedaco.size() >= TAMANHO_LOTE) {
+                try {
+                    enviarPedaco(conexao, new ArrayList<>(pedaco), geracaoSnapshot);
+                    enviadas[0] += pedaco.size();
+                } catch (Exception e) {
+                    erro[0] = e;
+                }
+                pedaco.clear();
+            }
+        });
+        if (erro[0] != null) {
+            throw erro[0];
+        }
+        if (!pedaco.isEmpty()) {
+            enviarPedaco(conexao, pedaco, geracaoSnapshot);
+            enviadas[0] += pedaco.size();
+        }
+
+        // Esperar todos os pedaços serem confirmados antes de marcar o fim
+        emVoo.acquire(LOTES_EM_VOO);
+        emVoo.release(LOTES_EM_VOO);
+        Mensagem fim = new Mensagem(Mensagem.TipoMensagem.SNAPSHOT_END);
+        fim.setTimestamp(ponto);
+        fim.setParticao(particao);
+        fim.setTermo(termo);
+        conexao.requisitar(fim).get(TEMPO_MAXIMO_RESPOSTA_MS, TimeUnit.MILLISECONDS);
+        if (geracaoSnapshot != geracao || falhaPendente) {
+            throw new IOException("conexão perdida durante a transferência");
+        }
+        Log.info("Transferência para {} concluída: {} entradas", getEndereco(), enviadas[0]);
+    }
+
+    private void enviarPedaco(Conexao conexao, List<Mensagem.Registro> pedaco, long geracaoSnapshot)
+            throws Exception {
+        if (geracaoSnapshot != geracao || falhaPendente) {
+            throw new IOException("conexão perdida durante a transferência");
+        }
+        emVoo.acquire();
+        enviarLote(conexao, Mensagem.TipoMensagem.SNAPSHOT_CHUNK, pedaco);
+    }
+
+    private void enviarLote(Conexao conexao, Mensagem.TipoMensagem tipo, List<Mensagem.Registro> lote) {
+        long fim = lote.isEmpty() ? ultimoEnviado : lote.get(lote.size() - 1).getTimestamp();
+        long geracaoLote = geracao;
+        Mensagem replicacao = new Mensagem(tipo);
+        replicacao.setRegistros(lote);
+        replicacao.setParticao(particao);
+        replicacao.setTermo(termo);
+        if (tipo == Mensagem.TipoMensagem.REPLICATION) {
+            ultimoEnviado = fim;
+            replicacao.setTimestamp(Math.max(fim, log.ultimoTimestamp()));
+        } else {
+            replicacao.setTimestamp(fim);
+        }
+        long enviadoNs = System.nanoTime();
+        ultimoEnvioNs = enviadoNs;
+        // Uma confirmação perdida prenderia a vaga do lote para sempre; sem resposta
+        // no prazo, a conexão é tratada como perdida e o seguidor é sincronizado de novo
+        conexao.requisitar(replicacao).orTimeout(TEMPO_MAXIMO_RESPOSTA_MS, TimeUnit.MILLISECONDS)
+                .whenComplete((resposta, erro) -> {
+                    emVoo.release();
+                    if (erro == null && resposta.getTipo() == Mensagem.TipoMensagem.REPLICATION_OK) {
+                        if (tipo == Mensagem.TipoMensagem.REPLICATION) {
+                            idaEVolta.registrarDesde(enviadoNs);
+                            confirmar(resposta.getTimestamp(), geracaoLote);
+                        }
+                    } else if (geracaoLote == geracao) {
+                        if (erro == null) {
+                            verTermo(resposta);
+                        }
+                        // A thread do replicador trata a falha no próximo ciclo
+                        falhaPendente = true;
+                        notificar();
+                    }
+                });
+    }
+
+    private void verTermo(Mensagem recusa) {
+        if (recusa.getTermo() > termoMaiorVisto) {
+            termoMaiorVisto = recusa.getTermo();
+        }
+    }
+
+    private void confirmar(long ate, long geracaoLote) {
+        long anterior;
+        long limite;
+        synchronized (log) {
+            if (geracaoLote != geracao || ate <= ultimoConfirmado) {
+                return;
+            }
+            anterior = ultimoConfirmado;
+            ultimoConfirmado = ate;
+            limite = limiteConfirmacao;
+        }
+        // PUTs anteriores ao momento em que o seguidor entrou em dia não contam com ele
+        anterior = Math.max(anterior, limite);
+        if (ate > anterior) {
+            ouvinte.confirmado(this, anterior, ate, true);
+        }
+    }
+
+    // O seguidor alcançou o fim do log: a partir daqui os PUTs esperam por ele
+    private void entrarEmDia() {
+        synchronized (log) {
+            if (ultimoEnviado < log.ultimoTimestamp()) {
+                return;
+            }
+            limiteConfirmacao = ultimoEnviado;
+            estado = Estado.DISPONIVEL;
+        }
+        Log.info("Replicação para {} em dia a partir do ts {}", getEndereco(), ultimoEnviado);
+    }
+
+    // Seguidor inacessível: se ele estava em dia, o que estava pendente é entregue
+    // como não replicado e os próximos PUTs deixam de esperar por ele
+    private void tratarFalha(Exception erro) {
+        geracao++;
+        if (conexaoAtual != null) {
+            conexaoAtual.fechar();
+            conexaoAtual = null;
+        }
+        long anterior;
+        long fim;
+        Estado anteriorEstado;
+        synchronized (log) {
+            anteriorEstado = estado;
+            if (anteriorEstado == Estado.INDISPONIVEL) {
+                return;
+            }
+            estado = Estado.INDISPONIVEL;
+            anterior = Math.max(ultimoConfirmado, limiteConfirmacao);
+            fim = log.ultimoTimestamp();
+            limiteConfirmacao = Long.MAX_VALUE;
+        }
+        falhas.increment();
+        Log.erro("Erro ao replicar para servidor {}: {}", getEndereco(),
+                erro != null ? erro.getMessage() : "conexão perdida");
+        if (anteriorEstado == Estado.DISPONIVEL && fim > anterior) {
+            ouvinte.confirmado(this, anterior, fim, false);
+        }
+    }
+
+    private static void dormir(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Prazos de expiração das keys em uma roda de tempo hierárquica (timing wheel, como
+// os timers do kernel): NIVEIS rodas de POSICOES posições; cada posição da roda 0
+// vale um TICK_MS, cada posição da roda 1 vale uma volta inteira da roda 0, e assim
+// por diante. Agendar e vencer custam O(1) por key, e nada percorre o armazenamento:
+// a cada tick a varredura só olha a posição da roda 0 que venceu. Quando a roda 0
+// completa uma volta, a próxima posição da roda 1 é redistribuída pelas de baixo
+// (cascata), e o mesmo vale para as rodas de cima.
+//
+// Só a thread de varredura mexe na roda. Quem grava uma key com prazo põe o
+// agendamento em uma fila sem lock, e a varredura o leva para a roda no próximo tick.
+// Agendamentos não são cancelados quando a key é regravada: ao vencer, a remoção só
+// acontece se a versão atual da key ainda for a agendada (veja Armazenamento).
+//
+// Muitas keys vencendo no mesmo tick não viram uma pausa: as remoções são feitas em
+// ordem de vencimento, no máximo ORCAMENTO_NS por tick, e o resto fica para os
+// próximos. Enquanto isso as keys já não aparecem nas leituras (obter confere o prazo).
+class RodaExpiracao {
+    static final long TICK_MS = 10;
+    private static final int BITS_POSICAO = 6;
+    private static final int POSICOES = 1 << BITS_POSICAO;
+    private static final int MASCARA = POSICOES - 1;
+    private static final int NIVEIS = 4;
+    // Ticks cobertos pelas rodas (64^4 ticks de 10 ms, umas 46 h); prazos mais longos
+    // ficam na roda de cima e são reavaliados a cada volta dela
+    private static final long ALCANCE = 1L << (BITS_POSICAO * NIVEIS);
+    private static final long ORCAMENTO_NS = 2_000_000;
+
+    // Remove a key se a versão atual ainda for a do timestamp agendado; true se removeu
+    interface Remocao {
+        boolean remover(String key, long timestamp, long expiraEm);
+    }
+
+    // Encadeado com os outros agendamentos da mesma posição
+    private static final class Agendamento {
+        final String key;
+        final long timestamp;
+        final long expiraEm;
+        Agendamento proximo;
+
+        Agendamento(String key, long timestamp, long expiraEm) {
+            this.key = key;
+            this.timestamp = timestamp;
+            this.expiraEm = expiraEm;
+        }
+    }
+
+    private final Remocao remocao;
+    private final ConcurrentLinkedQueue<Agendamento> novos = new ConcurrentLinkedQueue<>();
+    private final Agendamento[][] posicoes = new Agendamento[NIVEIS][POSICOES];
+    private final ArrayDeque<Agendamento> vencidos = new ArrayDeque<>();
+    private final LongAdder removidas = new LongAdder();
+    // Na roda ou vencidos, esperando a varredura; só a varredura grava
+    private volatile long pendentes;
+    // Próximo tick a processar
+    private long tick;
+    private Thread varredura;
+
+    RodaExpiracao(Remocao remocao) {
+        this.remocao = remocao;
+    }
+
+    // Pode ser chamado de qualquer thread
+    public void agendar(String key, long timestamp, long expiraEm) {
+        novos.add(new Agendamento(key, timestamp, expiraEm));
+    }
+
+    public void iniciar() {
+        tick = System.currentTimeMillis() / TICK_MS;
+        varredura = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(TICK_MS);
+                    avancar(System.currentTimeMillis());
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    Log.erro("Erro na expiração de keys: {}", e.getMessage());
+                }
+            }
+        }, "expiracao-keys");
+        varredura.setDaemon(true);
+        varredura.start();
+    }
+
+    public void parar() {
+        if (varredura != null) {
+            varredura.interrupt();
+        }
+    }
+
+    public long removidas() {
+        return removidas.sum();
+    }
+
+    public long pendentes() {
+        return pendentes;
+    }
+
+    // Um passo da varredura: agenda os novos, gira a roda até 'agoraMs' e remove os vencidos
+    private void avancar(long agoraMs) {
+        long pendentes = this.pendentes;
+        Agendamento novo;
+        while ((novo = novos.poll()) != null) {
+            inserir(novo);
+            pendentes++;
+        }
+        long alvo = agoraMs / TICK_MS;
+        while (tick <= alvo) {
+            int indice = (int) (tick & MASCARA);
+            if (indice == 0) {
+                cascatear(1);
+            }
+            Agendamento agendamento = posicoes[0][indice];
+            posicoes[0][indice] = null;
+            while (agendamento != null) {
+                vencidos.add(agendamento);
+                agendamento = agendamento.proximo;
+            }
+            tick++;
+        }
+        long limite = System.nanoTime() + ORCAMENTO_NS;
+        while (!vencidos.isEmpty() && System.nanoTime() - limite < 0) {
+            Agendamento vencido = vencidos.poll();
+            pendentes--;
+            if (remocao.remover(vencido.key, vencido.timestamp, vencido.expiraEm)) {
+                removidas.increment();
+            }
+        }
+        this.pendentes = pendentes;
+    }
+
+    // A posição atual da roda 'nivel' desce para as rodas de baixo; se ela for a
+    // primeira, a roda de cima completou uma volta também e desce antes
+    private void cascatear(int nivel) {
+        int indice = (int) ((tick >>> (BITS_POSICAO * nivel)) & MASCARA);
+        if (indice == 0 && nivel + 1 < NIVEIS) {
+            cascatear(nivel + 1);
+        }
+        Agendamento agendamento = posicoes[nivel][indice];
+        posicoes[nivel][indice] = null;
+        while (agendamento != null) {
+            Agendamento proximo = agendamento.proximo;
+            inserir(agendamento);
+            agendamento = proximo;
+        }
+    }
+
+    // Roda pela distância até o prazo, posição pelos bits do prazo naquela roda: a
+    // posição é visitada (ou desce em cascata) exatamente no bloco de ticks do prazo
+    private void inserir(Agendamento agendamento) {
+        long prazo = (agendamento.expiraEm + TICK_MS - 1) / TICK_MS;
+        long distancia = prazo - tick;
+        if (distancia < 0) {
+            agendamento.proximo = null;
+            vencidos.add(agendamento);
+            return;
+        }
+        if (distancia >= ALCANCE) {
+            distancia = ALCANCE - 1;
+            prazo = tick + distancia;
+        }
+        int nivel = 0;
+        while (distancia >= 1L << (BITS_POSICAO * (nivel + 1))) {
+            nivel++;
+        }
+        int indice = (int) ((prazo >>> (BITS_POSICAO * nivel)) & MASCARA);
+        agendamento.proximo = posicoes[nivel][indice];
+        posicoes[nivel][indice] = agendamento;
+    }
+}
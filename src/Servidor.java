@@ -1,84 +1,231 @@
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 class Servidor {
+    // Timestamps de escrita: o termo do líder nos bits altos e o HLC dele (RelogioHibrido)
+    // nos baixos. Assim as escritas de um termo vencem as de todos os anteriores, mesmo as
+    // de um líder deposto com o relógio adiantado, e dentro de um termo os timestamps
+    // acompanham o relógio físico e são comparáveis entre servidores.
+    private static final long TERMO_MAXIMO = (1L << (63 - RelogioHibrido.BITS)) - 1;
+    // Entradas por pedaço de SCAN: o padrão e o máximo que um cliente pode pedir; e um
+    // limite de bytes, para que valores grandes não façam um pedaço enorme
+    private static final int LIMITE_SCAN = 1000;
+    private static final int LIMITE_MAXIMO_SCAN = 10_000;
+    private static final long BYTES_PEDACO_SCAN = 1 << 20;
+
     private String meuIP;
     private int minhaPorta;
-    private String liderIP;
-    private int liderPorta;
-    private boolean souLider;
-    private Map<String, String> tabelaHash;
-    private Map<String, Long> timestamps;
-    private long contadorTimestamp;
-    private final Object lock = new Object();
+    // Diretório do WAL e dos snapshots; vazio desativa a persistência
+    private String diretorioDados;
+    // Valor e timestamp de cada key, em uma única entrada versionada
+    private Armazenamento armazenamento;
+    // Gera os timestamps das partições que este servidor lidera
+    private final RelogioHibrido relogio = new RelogioHibrido();
     private ExecutorService threadPool;
+    // Threads que processam as mensagens recebidas no modo NIO
+    private ExecutorService trabalhadores;
+    // Conexões persistentes de saída (líder, outros servidores, callbacks de clientes)
+    private PoolConexoes poolConexoes;
 
-    // Para armazenar informações de todos os servidores do sistema
-    private String[] servidorIPs;
-    private int[] servidorPortas;
+    // Todos os servidores do sistema, o líder configurado primeiro; todos os
+    // servidores recebem a mesma lista, na mesma ordem
+    private List<String> membros;
 
-    // Para controlar confirmações de replicação
-    private Map<String, Integer> replicationConfirmations;
-    private Map<String, Mensagem> pendingPutResponses;
-    private Map<String, ClientConnection> pendingClientConnections;
+    // Partições das keys e quem lidera cada uma; particoes[p] é null quando este
+    // servidor não tem réplica da partição p
+    private Topologia topologia;
+    private Particao[] particoes;
+    private String meuEndereco;
+    // Verifica periodicamente os prazos de eleição e se algum líder foi deposto
+    private ScheduledExecutorService eleicoes;
+    // Níveis de consistência das requisições que não pedem um
+    private final Mensagem.NivelEscrita nivelEscritaPadrao = Configuracao.nivelEscrita(Mensagem.NivelEscrita.MAIORIA);
+    private final Mensagem.NivelLeitura nivelLeituraPadrao = Configuracao.nivelLeitura(Mensagem.NivelLeitura.QUALQUER);
+    // WAL e snapshots; null quando a persistência está desativada
+    private Persistencia persistencia;
     
-    // Para gerenciar clientes aguardando respostas assíncronas
-    // CHANGED: Using HashMap instead of ConcurrentHashMap
-    private Map<String, List<WaitingClient>> waitingClients;
-
-    // Classe para manter conexões de cliente abertas para PUT
-    private static class ClientConnection {
-        Socket socket;
-        ObjectOutputStream out;
-        ObjectInputStream in;
-        String clienteIP;
-        int clientePorta;
+    // GETs aguardando a key alcançar o timestamp do cliente
+    private FilaEspera filaEspera;
 
-        ClientConnection(Socket socket, ObjectOutputStream out, ObjectInputStream in, String clienteIP, int clientePorta) {
-            this.socket = socket;
-            this.out = out;
-            this.in = in;
-            this.clienteIP = clienteIP;
-            this.clientePorta = clientePorta;
+    // Porta aberta: um dos dois, conforme o modo de IO
+    private ServidorNIO nio;
+    private ServerSocket serverSocket;
+    // Modo THREADS: conexões atendidas agora, fechadas por encerrar
+    private final Set<Conexao> conexoesAtivas = ConcurrentHashMap.newKeySet();
+    private volatile boolean encerrado;
+
+    // Latências, contadores e medidores, expostos pelo JMX e pela requisição STATS
+    private final Metricas metricas = new Metricas();
+    // Tempo no tratador por tipo de mensagem, criado no primeiro uso de cada tipo
+    private final Metricas.Histograma[] processamento = new Metricas.Histograma[Mensagem.TipoMensagem.values().length];
+    // Do recebimento da escrita no líder até a resposta ao cliente, com replicação e WAL
+    private final Metricas.Histograma escritaPut = metricas.histograma("escrita.PUT");
+    private final Metricas.Histograma escritaMput = metricas.histograma("escrita.MPUT");
+    private final LongAdder redirecionamentos = metricas.contador("redirecionamentos");
+    // PUTs que um seguidor caído deixou de confirmar, e escritas respondidas com ERRO por isso
+    private final LongAdder confirmacoesSemReplica = metricas.contador("replicacao.confirmacoesSemReplica");
+    private final LongAdder escritasNaoConfirmadas = metricas.contador("escrita.naoConfirmadas");
+
+    // Estado de replicação de uma partição hospedada por este servidor. Com uma
+    // partição só, é o estado de replicação do servidor inteiro.
+    //
+    // A liderança é por termo, como no Raft: o líder configurado começa no termo 0,
+    // e um seguidor que passa o prazo de eleição sem notícias do líder se candidata
+    // no termo seguinte. Termo, líder e voto são protegidos pelo monitor da partição;
+    // a troca de liderança também adquire o monitor do log, para não cruzar com escritas.
+    private static class Particao {
+        final int id;
+        volatile long termo;
+        // Líder do termo atual; null enquanto não se sabe (durante uma eleição)
+        volatile String lider;
+        volatile boolean souLider;
+        long votouNoTermo = -1;
+        String votoPara;
+        // Última mensagem do líder (ou voto concedido), em System.nanoTime
+        volatile long contatoLiderNs = System.nanoTime();
+        // Sorteado a cada termo, para que dois seguidores raramente se candidatem juntos
+        volatile long prazoEleicaoNs = sortearPrazoEleicao();
+        // Última pré-votação; separada do contato com o líder, para que quem está em
+        // pré-votação continue aceitando a de outro seguidor que também perdeu o líder
+        volatile long preVotacaoNs = System.nanoTime();
+        // No líder: o termo em que lidera e o último timestamp gerado; mudam com o monitor do log
+        long termoLideranca;
+        volatile long ultimoGerado;
+        // No líder: o último timestamp que ele tinha ao ser eleito (vai no SYNC)
+        long inicioTermo;
+        // PUTs aguardando confirmações de replicação, ordenados pelo timestamp (único por PUT)
+        final ConcurrentSkipListMap<Long, PutPendente> putsPendentes = new ConcurrentSkipListMap<>();
+        // Escritas do líder ainda não confirmadas por todos os seguidores; o monitor do log
+        // também ordena a geração de timestamps com a entrada no log
+        final LogReplicacao logReplicacao = new LogReplicacao(Configuracao.inteiro("retencaoLog", 100_000));
+        // Trocada a cada mudança de liderança (vazia quando este servidor não lidera)
+        volatile List<ReplicadorSeguidor> replicadores = List.of();
+        // No seguidor: maior timestamp recebido do líder
+        volatile long ultimoTimestampReplicado;
+        // No seguidor: maior timestamp recebido em pedaços de transferência, que não
+        // avançam ultimoTimestampReplicado mas já estão no armazenamento
+        volatile long maiorTransferido;
+        // No seguidor: keys recebidas na transferência atual, recriado a cada SYNC
+        volatile Set<String> transferidas = ConcurrentHashMap.newKeySet();
+        // No seguidor: tirando keys da partição (descartarParticao, fim de transferência)
+        volatile boolean descartando;
+        // No seguidor: quando ele confirmou por último ter aplicado tudo o que o líder tinha
+        volatile long emDiaComLiderEm;
+
+        Particao(int id, String lider, boolean souLider) {
+            this.id = id;
+            this.lider = lider;
+            this.souLider = souLider;
+        }
+
+        // Maior timestamp que este servidor tem da partição, como líder ou seguidor
+        long ultimoTimestamp() {
+            return Math.max(ultimoGerado, ultimoTimestampReplicado);
         }
     }
-    
-    // Classe para manter informações de clientes aguardando GET assíncrono
-    private static class WaitingClient {
+
+    // PUT (ou MPUT) que espera as confirmações de replicação; guarda em qual conexão
+    // (e com qual id) a resposta deve ser enviada
+    private static class PutPendente {
+        Canal conexao;
         String clienteIP;
         int clientePorta;
-        long timestampRequerido;
-        
-        WaitingClient(String clienteIP, int clientePorta, long timestampRequerido) {
+        Mensagem resposta;
+        List<Mensagem.Registro> registros;
+        Mensagem.NivelEscrita nivel;
+        // Seguidores disponíveis quando o PUT foi aceito; cada um responde uma
+        // vez, confirmando ou caindo (quem cai nunca conta como confirmação)
+        int seguidores;
+        // Confirmações de seguidores exigidas pelo nível de escrita
+        int necessarias;
+        int confirmadas;
+        int respostas;
+        // Aplicação no armazenamento do líder e, se houver persistência, gravação no WAL
+        boolean gravado;
+        boolean falhou;
+        boolean decidido;
+        // Quando o líder recebeu a escrita
+        final long inicioNs;
+
+        PutPendente(Canal conexao, String clienteIP, int clientePorta, Mensagem resposta,
+                List<Mensagem.Registro> registros, Mensagem.NivelEscrita nivel, int seguidores, int necessarias, boolean gravado,
+                long inicioNs) {
+            this.conexao = conexao;
             this.clienteIP = clienteIP;
             this.clientePorta = clientePorta;
-            this.timestampRequerido = timestampRequerido;
+            this.resposta = resposta;
+            this.registros = registros;
+            this.nivel = nivel;
+            this.seguidores = seguidores;
+            this.necessarias = necessarias;
+            this.gravado = gravado;
+            this.inicioNs = inicioNs;
+        }
+
+        // Cada método devolve o resultado quando ele acabou de ser decidido, e null
+        // nos outros casos: só uma das threads que atualizam o PUT responde o cliente
+        synchronized Boolean seguidorRespondeu(boolean replicado) {
+            respostas++;
+            if (replicado) {
+                confirmadas++;
+            }
+            return decidir();
         }
-    }
 
+        synchronized Boolean gravacaoConcluida(boolean sucesso) {
+            gravado = true;
+            falhou |= !sucesso;
+            return decidir();
+        }
+
+        synchronized Boolean abandonar() {
+            falhou = true;
+            return decidir();
+        }
+
+        private Boolean decidir() {
+            if (decidido) {
+                return null;
+            }
+            if (falhou || (gravado && confirmadas < necessarias && respostas >= seguidores)) {
+                decidido = true;
+                return Boolean.FALSE;
+            }
+            if (gravado && confirmadas >= necessarias) {
+                decidido = true;
+                return Boolean.TRUE;
+            }
+            return null;
+        }
+    }
+    
     public Servidor() {
-        this.tabelaHash = new HashMap<>();
-        this.timestamps = new HashMap<>();
-        this.contadorTimestamp = 0;
+        this.armazenamento = new Armazenamento(Armazenamento.criarMotor(Configuracao.motor(), Configuracao.versoes(),
+                Configuracao.cacheLeituras()), Configuracao.indiceOrdenado());
         this.threadPool = Executors.newCachedThreadPool();
-        this.replicationConfirmations = new HashMap<>();
-        this.pendingPutResponses = new HashMap<>();
-        this.pendingClientConnections = new HashMap<>();
-        // CHANGED: Using HashMap instead of ConcurrentHashMap
-        this.waitingClients = new HashMap<>();
-        // Inicializar arrays para armazenar informações dos servidores
-        this.servidorIPs = new String[3];
-        this.servidorPortas = new int[3];
+        this.trabalhadores = Executors.newFixedThreadPool(Configuracao.threadsTrabalho());
+        this.poolConexoes = new PoolConexoes(null, threadPool);
+        this.filaEspera = new FilaEspera(armazenamento, poolConexoes, threadPool, Configuracao.esperaMaximaMs(),
+                metricas);
     }
 
     public void inicializar() {
@@ -86,400 +233,1590 @@ class Servidor {
 
         System.out.print("Digite o IP deste servidor (padrão: 127.0.0.1): ");
         String ip = scanner.nextLine().trim();
-        this.meuIP = ip.isEmpty() ? "127.0.0.1" : ip;
+        if (ip.isEmpty()) {
+            ip = "127.0.0.1";
+        }
 
         System.out.print("Digite a porta deste servidor: ");
-        this.minhaPorta = Integer.parseInt(scanner.nextLine());
+        int porta = Integer.parseInt(scanner.nextLine());
 
         System.out.print("Digite o IP do líder (padrão: 127.0.0.1): ");
         String liderIPInput = scanner.nextLine().trim();
-        this.liderIP = liderIPInput.isEmpty() ? "127.0.0.1" : liderIPInput;
+        String liderIP = liderIPInput.isEmpty() ? "127.0.0.1" : liderIPInput;
 
         System.out.print("Digite a porta do líder: ");
-        this.liderPorta = Integer.parseInt(scanner.nextLine());
+        String lider = Topologia.endereco(liderIP, Integer.parseInt(scanner.nextLine()));
 
-        this.souLider = (this.meuIP.equals(this.liderIP) && this.minhaPorta == this.liderPorta);
-
-        // Coletar informações de todos os 3 servidores do sistema
+        // O terminal pergunta pelos outros dois servidores de um cluster de 3; para
+        // outros tamanhos, use as opções de linha de comando
         System.out.println("\n=== CONFIGURAÇÃO DOS SERVIDORES DO SISTEMA ===");
+        List<String> servidores = new ArrayList<>();
         for (int i = 0; i < 2; i++) {
             System.out.print("Digite o IP do servidor " + (i + 1) + " (padrão: 127.0.0.1): ");
             String serverIP = scanner.nextLine().trim();
             if (serverIP.isEmpty()) {
                 serverIP = "127.0.0.1";
             }
-            servidorIPs[i] = serverIP;
 
             System.out.print("Digite a porta do servidor " + (i + 1) + ": ");
-            servidorPortas[i] = Integer.parseInt(scanner.nextLine());
+            servidores.add(Topologia.endereco(serverIP, Integer.parseInt(scanner.nextLine())));
         }
+        configurar(ip, porta, lider, servidores, Configuracao.diretorioDados("dados-" + porta));
+    }
 
-        System.out.println("Servidor iniciado em " + meuIP + ":" + minhaPorta);
-        System.out.println("Líder: " + liderIP + ":" + liderPorta);
-        System.out.println("Sou líder: " + souLider);
-        System.out.println("Servidores do sistema configurados:");
-        for (int i = 0; i < 2; i++) {
-            System.out.println("  Servidor " + (i + 1) + ": " + servidorIPs[i] + ":" + servidorPortas[i]);
+    // O mesmo que o inicializar interativo, a partir das opções de Configuracao.opcoes:
+    //   porta       porta deste servidor (obrigatória)
+    //   ip          IP deste servidor (padrão: 127.0.0.1)
+    //   servidores  ip:porta de todos os servidores do sistema, em qualquer número
+    //   lider       líder inicial (padrão: o primeiro de 'servidores')
+    //   dir         diretório dos dados (padrão: -Dkv.dir, ou dados-<porta>; vazio desativa)
+    // As demais (particoes, fatorReplicacao, ...) já valem como parâmetros: o main as
+    // carrega em Configuracao antes de criar o servidor.
+    public void inicializar(Map<String, String> opcoes) {
+        String textoPorta = opcoes.get("porta");
+        if (textoPorta == null) {
+            throw new IllegalArgumentException("Opção obrigatória: --porta");
+        }
+        String ip = opcoes.getOrDefault("ip", "127.0.0.1");
+        int porta = Integer.parseInt(textoPorta.trim());
+        List<String> servidores = Configuracao.enderecos(opcoes.getOrDefault("servidores", ""));
+        String lider = opcoes.containsKey("lider") ? Configuracao.enderecos(opcoes.get("lider")).get(0)
+                : servidores.isEmpty() ? Topologia.endereco(ip, porta) : servidores.get(0);
+        String diretorio = opcoes.getOrDefault("dir", Configuracao.diretorioDados("dados-" + porta));
+        configurar(ip, porta, lider, servidores, diretorio);
+    }
+
+    // Deve ser chamado antes de abrir: quem é este servidor e quem está no sistema
+    void configurar(String ip, int porta, String lider, List<String> servidores, String diretorio) {
+        this.meuIP = ip;
+        this.minhaPorta = porta;
+        this.diretorioDados = diretorio;
+        Set<String> todos = new LinkedHashSet<>();
+        todos.add(lider);
+        todos.addAll(servidores);
+        todos.add(Topologia.endereco(ip, porta));
+        this.membros = new ArrayList<>(todos);
+
+        Log.info("Servidor iniciado em {}:{}", meuIP, minhaPorta);
+        Log.info("Líder: {}", lider);
+        Log.info("Sou líder: {}", lider.equals(Topologia.endereco(ip, porta)));
+        Log.info("Servidores do sistema configurados:");
+        for (int i = 0; i < membros.size(); i++) {
+            Log.info("  Servidor {}: {}", i + 1, membros.get(i));
+        }
+        montarTopologia();
+    }
+
+    // Todos os servidores montam a mesma topologia a partir da mesma lista de membros.
+    // Com uma partição, o líder configurado lidera tudo, como antes.
+    private void montarTopologia() {
+        this.topologia = new Topologia(membros, Configuracao.particoes(),
+                Configuracao.fatorReplicacao(membros.size()));
+
+        String eu = Topologia.endereco(meuIP, minhaPorta);
+        this.meuEndereco = eu;
+        this.particoes = new Particao[topologia.numParticoes()];
+        for (int p = 0; p < particoes.length; p++) {
+            if (topologia.hospeda(p, eu)) {
+                particoes[p] = new Particao(p, topologia.liderDe(p), topologia.liderDe(p).equals(eu));
+            }
+        }
+        if (particoes.length > 1) {
+            Log.info("{} partições:", particoes.length);
+            for (int p = 0; p < particoes.length; p++) {
+                Log.info("  Partição {}: réplicas {}{}", p, topologia.replicasDe(p),
+                        particoes[p] == null ? "" : particoes[p].souLider ? " (sou líder)" : " (sou réplica)");
+            }
+        }
+    }
+
+    // Abre a porta: daqui em diante as conexões são aceitas, e esperam na fila do
+    // sistema operacional até atender começar
+    private void abrirPorta() throws IOException {
+        if (Configuracao.modoIO() == Configuracao.ModoIO.NIO) {
+            nio = new ServidorNIO(minhaPorta, ClientHandler::new, trabalhadores);
+            nio.abrir();
+            metricas.medidor("conexoes.abertas", nio::conexoesAbertas);
+        } else {
+            serverSocket = new ServerSocket(minhaPorta);
         }
     }
 
-    public void iniciarServidor() {
-        try (ServerSocket serverSocket = new ServerSocket(minhaPorta)) {
-            System.out.println("Servidor ouvindo na porta " + minhaPorta);
+    // Atende as conexões até encerrar
+    private void atender() {
+        Log.info("Servidor ouvindo na porta {} (modo {})", minhaPorta, Configuracao.modoIO());
+        try {
+            if (nio != null) {
+                nio.executar();
+            } else {
+                atenderComThreads();
+            }
+        } catch (IOException e) {
+            if (!encerrado) {
+                Log.erro("Erro no servidor: {}", e.getMessage());
+            }
+        }
+    }
 
+    // Modo THREADS: uma thread por conexão, com no máximo maxConexoes conexões
+    // simultâneas. Em JVMs com threads virtuais elas são usadas no lugar das de plataforma.
+    private void atenderComThreads() throws IOException {
+        ExecutorService leitores = criarExecutorPorConexao();
+        Semaphore vagas = new Semaphore(Configuracao.maxConexoes());
+        metricas.medidor("conexoes.abertas", () -> Configuracao.maxConexoes() - vagas.availablePermits());
+        try (ServerSocket serverSocket = this.serverSocket) {
             while (true) {
+                vagas.acquireUninterruptibly();
                 Socket clientSocket = serverSocket.accept();
-                threadPool.submit(new ClientHandler(clientSocket));
+                try {
+                    Conexao conexao = new Conexao(clientSocket);
+                    conexoesAtivas.add(conexao);
+                    conexao.iniciar(new ClientHandler(conexao), leitores, () -> {
+                        conexoesAtivas.remove(conexao);
+                        vagas.release();
+                    });
+                } catch (IOException e) {
+                    Log.erro("Erro ao aceitar conexão: {}", e.getMessage());
+                    clientSocket.close();
+                    vagas.release();
+                }
             }
-        } catch (IOException e) {
-            System.err.println("Erro no servidor: " + e.getMessage());
+        } finally {
+            leitores.shutdown();
+        }
+    }
+
+    private static ExecutorService criarExecutorPorConexao() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
         }
     }
 
-    private class ClientHandler implements Runnable {
-        private Socket socket;
+    // Trata cada mensagem recebida em uma conexão persistente; a conexão
+    // continua aberta para as próximas requisições do mesmo cliente/servidor
+    private class ClientHandler implements Consumer<Mensagem> {
+        private Canal conexao;
 
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
+        public ClientHandler(Canal conexao) {
+            this.conexao = conexao;
         }
 
         @Override
-        public void run() {
-            ObjectInputStream in = null;
-            ObjectOutputStream out = null;
-            boolean manterConexaoAberta = false;
-            
+        public void accept(Mensagem mensagem) {
+            long inicio = System.nanoTime();
             try {
-                in = new ObjectInputStream(socket.getInputStream());
-                out = new ObjectOutputStream(socket.getOutputStream());
-
-                Mensagem mensagem = (Mensagem) in.readObject();
-
                 switch (mensagem.getTipo()) {
                     case PUT:
-                        manterConexaoAberta = processarPUT(mensagem, out, socket, in);
+                        processarPUT(mensagem, conexao);
                         break;
                     case GET:
-                        processarGET(mensagem, out, socket);
+                        processarGET(mensagem, conexao);
+                        break;
+                    case MPUT:
+                        processarMPUT(mensagem, conexao);
+                        break;
+                    case MGET:
+                        processarMGET(mensagem, conexao);
                         break;
+                    case TOPOLOGIA:
+                        processarTOPOLOGIA(mensagem, conexao);
+                        break;
+                    case STATS:
+                        processarSTATS(mensagem, conexao);
+                        break;
+                    case SCAN:
+                        processarSCAN(mensagem, conexao);
+                        break;
+                    case PEDIDO_VOTO:
+                    case PEDIDO_PRE_VOTO:
                     case REPLICATION:
-                        processarREPLICATION(mensagem, out);
+                    case SNAPSHOT_CHUNK:
+                    case SYNC:
+                    case SNAPSHOT_END:
+                        processarDoLider(mensagem, conexao);
                         break;
-                    case REPLICATION_OK:
-                        processarREPLICATION_OK(mensagem);
+                    default:
                         break;
                 }
 
             } catch (Exception e) {
-                System.err.println("Erro ao processar cliente: " + e.getMessage());
-                e.printStackTrace();
-            } finally {
-                // Só fechar se não precisar manter aberta para PUT do líder
-                if (!manterConexaoAberta) {
+                Log.erro("Erro ao processar cliente: {}", e.getMessage(), e);
+                // Quem mandou a requisição recebe ERRO em vez de esperar uma resposta que não vem
+                if (conexao.isAberta()) {
                     try {
-                        if (in != null) in.close();
-                        if (out != null) out.close();
-                        if (!socket.isClosed()) socket.close();
-                    } catch (Exception e) {
-                        // Ignorar erros de fechamento
+                        responderErro(conexao, mensagem, "erro ao processar " + mensagem.getTipo() + ": " + e);
+                    } catch (IOException erroEnvio) {
+                        // A conexão caiu; o cliente descobre pelo fechamento
                     }
                 }
             }
+            processamento(mensagem.getTipo()).registrarDesde(inicio);
+        }
+    }
+
+    private Metricas.Histograma processamento(Mensagem.TipoMensagem tipo) {
+        Metricas.Histograma histograma = processamento[tipo.ordinal()];
+        if (histograma == null) {
+            histograma = metricas.histograma("processamento." + tipo);
+            processamento[tipo.ordinal()] = histograma;
+        }
+        return histograma;
+    }
+
+    private void processarPUT(Mensagem mensagem, Canal conexao) throws Exception {
+        int id = topologia.particaoDe(mensagem.getKey());
+        Particao particao = particoes[id];
+        if (particao == null || !particao.souLider) {
+            Log.debug("Redirecionando PUT key:{} ao líder {}", mensagem.getKey(), liderAtual(id));
+            redirecionarAoLider(id, mensagem, conexao);
+            return;
+        }
+        escreverNoLider(particao, mensagem,
+                List.of(new Mensagem.Registro(mensagem.getKey(), mensagem.getValue(), 0)), conexao);
+    }
+
+    // Várias keys em um quadro. O líder dá ao lote um intervalo contínuo de timestamps,
+    // replica e confirma tudo junto; com 'atomica', todas as réplicas aplicam o lote de uma vez.
+    private void processarMPUT(Mensagem mensagem, Canal conexao) throws Exception {
+        List<Mensagem.Registro> pedidos = mensagem.getRegistros() != null ? mensagem.getRegistros() : List.of();
+        if (pedidos.isEmpty()) {
+            Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.MPUT_OK);
+            resposta.setRegistros(List.of());
+            resposta.setIdRequisicao(mensagem.getIdRequisicao());
+            conexao.enviar(resposta);
+            return;
+        }
+        // Cada partição tem o seu líder e a sua sequência de timestamps: o cliente
+        // divide o lote por partição
+        int id = particaoComum(pedidos);
+        if (id < 0) {
+            responderErro(conexao, mensagem, "MPUT com keys de partições diferentes");
+            return;
+        }
+        Particao particao = particoes[id];
+        if (particao == null || !particao.souLider) {
+            Log.debug("Redirecionando MPUT com {} keys ao líder {}", pedidos.size(), liderAtual(id));
+            redirecionarAoLider(id, mensagem, conexao);
+            return;
+        }
+        escreverNoLider(particao, mensagem, pedidos, conexao);
+    }
+
+    // Partição de todas as keys, ou -1 se elas caem em partições diferentes
+    private int particaoComum(List<Mensagem.Registro> registros) {
+        int particao = topologia.particaoDe(registros.get(0).getKey());
+        for (Mensagem.Registro registro : registros) {
+            if (topologia.particaoDe(registro.getKey()) != particao) {
+                return -1;
+            }
         }
+        return particao;
     }
 
-    private boolean processarPUT(Mensagem mensagem, ObjectOutputStream out, Socket socket, ObjectInputStream in) throws Exception {
-        String clienteIP = socket.getInetAddress().getHostAddress();
-        int clientePorta = socket.getPort();
+    // Em vez de repassar a requisição ao líder da partição, devolve REDIRECT com o
+    // endereço dele: o cliente repete a requisição lá e atualiza a topologia, que
+    // pode ter mudado desde que ele a obteve. O líder já tem todo timestamp que um
+    // cliente pode conhecer, então GETs também são respondidos lá direto. Durante uma
+    // eleição o endereço vai vazio e o cliente tenta de novo em seguida.
+    private void redirecionarAoLider(int particao, Mensagem mensagem, Canal conexao) throws IOException {
+        String lider = liderAtual(particao);
+        Mensagem redirect = new Mensagem(Mensagem.TipoMensagem.REDIRECT, mensagem.getKey(), lider != null ? lider : "");
+        redirect.setParticao(particao);
+        redirect.setIdRequisicao(mensagem.getIdRequisicao());
+        conexao.enviar(redirect);
+        redirecionamentos.increment();
+    }
 
-        if (!souLider) {
-            System.out.println("Encaminhando PUT key:" + mensagem.getKey() + " value:" + mensagem.getValue());
+    // Líder conhecido da partição: o do termo atual se este servidor tem réplica
+    // dela, senão o da topologia inicial (que redireciona se não for mais)
+    private String liderAtual(int particao) {
+        return particoes[particao] != null ? particoes[particao].lider : topologia.liderDe(particao);
+    }
 
-            // Encaminhar para o líder
-            try (Socket liderSocket = new Socket(liderIP, liderPorta);
-                    ObjectOutputStream liderOut = new ObjectOutputStream(liderSocket.getOutputStream());
-                    ObjectInputStream liderIn = new ObjectInputStream(liderSocket.getInputStream())) {
+    // Réplicas de cada partição, com o líder atual primeiro, para que o cliente mande
+    // cada requisição direto a quem a atende
+    private void processarTOPOLOGIA(Mensagem mensagem, Canal conexao) throws IOException {
+        List<List<String>> replicas = new ArrayList<>(particoes.length);
+        for (int id = 0; id < particoes.length; id++) {
+            List<String> conjunto = new ArrayList<>(topologia.replicasDe(id));
+            String lider = liderAtual(id);
+            if (lider != null && conjunto.remove(lider)) {
+                conjunto.add(0, lider);
+            }
+            replicas.add(conjunto);
+        }
+        Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.TOPOLOGIA);
+        resposta.setRegistros(new Topologia(replicas).paraRegistros());
+        resposta.setIdRequisicao(mensagem.getIdRequisicao());
+        conexao.enviar(resposta);
+    }
 
-                Mensagem putParaLider = new Mensagem(Mensagem.TipoMensagem.PUT, mensagem.getKey(), mensagem.getValue());
-                putParaLider.setClienteIP(clienteIP);
-                putParaLider.setClientePorta(clientePorta);
-                liderOut.writeObject(putParaLider);
+    // Métricas deste servidor, uma por registro: key é o nome, value o valor em texto
+    private void processarSTATS(Mensagem mensagem, Canal conexao) throws IOException {
+        Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.STATS);
+        resposta.setRegistros(metricas.paraRegistros());
+        resposta.setIdRequisicao(mensagem.getIdRequisicao());
+        conexao.enviar(resposta);
+    }
 
-                Mensagem respostaLider = (Mensagem) liderIn.readObject();
-                out.writeObject(respostaLider);
+    // Um pedaço de uma varredura em ordem: keys da partição pedida em [key, value)
+    // depois do cursor, como esta réplica as tem. O timestamp da resposta é o último
+    // aplicado aqui; o cliente o manda nos pedaços seguintes para não voltar no tempo
+    // se trocar de réplica. O servidor não guarda nada entre os pedaços; o cursor da
+    // resposta é a última key enviada, e o cliente pede o próximo pedaço a partir dela.
+    private void processarSCAN(Mensagem mensagem, Canal conexao) throws IOException {
+        if (!armazenamento.temIndiceOrdenado()) {
+            responderErro(conexao, mensagem, "SCAN exige o índice ordenado (-Dkv.indiceOrdenado=true)");
+            return;
+        }
+        // Cada SCAN é de uma partição (o cliente junta as partições); quem não tem
+        // réplica dela, ou está atrás do que os pedaços anteriores já mostraram,
+        // manda o cliente ao líder
+        int id = mensagem.getParticao();
+        if (id < 0 || id >= particoes.length) {
+            responderErro(conexao, mensagem, "partição " + id + " não existe");
+            return;
+        }
+        Particao particao = particoes[id];
+        if (particao == null || mensagem.getTimestamp() > particao.ultimoTimestamp()) {
+            redirecionarAoLider(id, mensagem, conexao);
+            return;
+        }
+        long visto = particao.ultimoTimestamp();
+        boolean filtrar = particoes.length > 1;
+        int limite = mensagem.getLimite() > 0 ? Math.min(mensagem.getLimite(), LIMITE_MAXIMO_SCAN) : LIMITE_SCAN;
+        List<Mensagem.Registro> pedaco = new ArrayList<>(Math.min(limite, 1024));
+        long[] bytes = new long[1];
+        boolean[] mais = new boolean[1];
+        String inicio = mensagem.getKey() != null ? mensagem.getKey() : "";
+        armazenamento.percorrerEmOrdem(inicio, mensagem.getValue(), mensagem.getCursor(), (key, entrada) -> {
+            if (filtrar && topologia.particaoDe(key) != id) {
+                return true;
+            }
+            // Para no limite de entradas ou de bytes, o que vier primeiro; a entrada
+            // seguinte só prova que há mais
+            if (pedaco.size() >= limite || bytes[0] >= BYTES_PEDACO_SCAN) {
+                mais[0] = true;
+                return false;
             }
-            return false; // Não manter conexão aberta
+            String valor = FilaEspera.valorDe(entrada);
+            pedaco.add(new Mensagem.Registro(key, valor, entrada.timestamp()));
+            bytes[0] += key.length() + valor.length();
+            return true;
+        });
+        Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.SCAN_RESPONSE);
+        resposta.setRegistros(pedaco);
+        resposta.setTimestamp(visto);
+        if (mais[0]) {
+            resposta.setCursor(pedaco.get(pedaco.size() - 1).getKey());
+        }
+        resposta.setIdRequisicao(mensagem.getIdRequisicao());
+        conexao.enviar(resposta);
+    }
+
+    // Aplica as escritas no líder com timestamps consecutivos e responde (PUT_OK ou
+    // MPUT_OK) quando o nível de escrita pedido for atingido
+    private void escreverNoLider(Particao particao, Mensagem mensagem, List<Mensagem.Registro> pedidos,
+            Canal conexao) throws IOException {
+        long inicio = System.nanoTime();
+        // O cliente pode informar o próprio endereço; senão vale o da conexão
+        String clienteIP = mensagem.getClienteIP() != null ? mensagem.getClienteIP() : conexao.getIPRemoto();
+        int clientePorta = mensagem.getClienteIP() != null ? mensagem.getClientePorta() : conexao.getPortaRemota();
+        if (mensagem.getTipo() == Mensagem.TipoMensagem.PUT) {
+            Log.debug("Cliente {}:{} PUT key:{} value:{}", clienteIP, clientePorta, mensagem.getKey(),
+                    mensagem.getValue());
         } else {
-            System.out.println("Cliente " + clienteIP + ":" + clientePorta + " PUT key:" + mensagem.getKey() + " value:"
-                    + mensagem.getValue());
-
-            synchronized (lock) {
-                contadorTimestamp++;
-                tabelaHash.put(mensagem.getKey(), mensagem.getValue());
-                timestamps.put(mensagem.getKey(), contadorTimestamp);
-
-                // Contar quantos servidores não-líderes existem
-                int numServidoresNaoLider = 0;
-                for (int i = 0; i < 2; i++) {
-                    if (!(servidorIPs[i].equals(meuIP) && servidorPortas[i] == minhaPorta)) {
-                        numServidoresNaoLider++;
-                    }
+            Log.debug("Cliente {}:{} MPUT com {} keys{}", clienteIP, clientePorta, pedidos.size(),
+                    mensagem.isAtomica() ? " (atômico)" : "");
+        }
+        Mensagem.NivelEscrita nivel = mensagem.getNivelEscrita() != null ? mensagem.getNivelEscrita()
+                : nivelEscritaPadrao;
+        boolean atomica = mensagem.isAtomica() && pedidos.size() > 1;
+        // Valores grandes que o cliente não comprimiu são comprimidos aqui, fora do
+        // lock, e vão assim para o armazenamento, o WAL e as réplicas (veja Compressao).
+        // Os que ele já mandou comprimidos são conferidos uma vez, aqui na entrada.
+        String[] valores = new String[pedidos.size()];
+        for (int i = 0; i < valores.length; i++) {
+            String valor = pedidos.get(i).getValue();
+            if (Compressao.comprimido(valor) && !Compressao.valido(valor)) {
+                responderErro(conexao, mensagem, "valor comprimido corrompido para " + pedidos.get(i).getKey());
+                return;
+            }
+            valores[i] = Compressao.ATIVA ? Compressao.comprimirSeValer(valor) : valor;
+        }
+
+        // Timestamps, registro do PUT pendente e entrada no log acontecem juntos, para
+        // que o log fique em ordem de timestamp e as confirmações encontrem o PUT.
+        // A aplicação no armazenamento fica fora do monitor, para que escritas da mesma
+        // partição não esperem umas pelas outras; quem precisa do armazenamento completo
+        // até um timestamp espera por LogReplicacao.esperarAplicadas.
+        // A resposta espera as confirmações exigidas pelo nível, a aplicação local e, se
+        // houver WAL, a gravação.
+        List<Mensagem.Registro> registros = new ArrayList<>(pedidos.size());
+        Mensagem resposta;
+        long inicioLote;
+        long fim;
+        long expiraEm;
+        int numSeguidores = 0;
+        boolean esperar;
+        List<ReplicadorSeguidor> replicadores;
+        synchronized (particao.logReplicacao) {
+            if (!particao.souLider) {
+                // Deixou a liderança depois que a requisição foi roteada
+                redirecionarAoLider(particao.id, mensagem, conexao);
+                return;
+            }
+            replicadores = particao.replicadores;
+            for (ReplicadorSeguidor replicador : replicadores) {
+                if (replicador.isDisponivel()) {
+                    numSeguidores++;
                 }
+            }
+            int necessarias = confirmacoesNecessarias(particao, nivel);
+            if (necessarias > numSeguidores) {
+                // Sem quorum possível: recusar antes de aplicar qualquer coisa
+                responderErro(conexao, mensagem, Mensagem.QUORUM_INDISPONIVEL + " para escrita " + nivel + " ("
+                        + (numSeguidores + 1) + " de " + (replicadores.size() + 1) + " réplicas)");
+                return;
+            }
 
-                // Se não há outros servidores para replicar, enviar PUT_OK imediatamente
-                if (numServidoresNaoLider == 0) {
-                    Mensagem putOk = new Mensagem(Mensagem.TipoMensagem.PUT_OK, mensagem.getKey(), mensagem.getValue(),
-                            contadorTimestamp);
-                    out.writeObject(putOk);
-                    System.out.println("Enviando PUT_OK ao Cliente " + clienteIP + ":" + clientePorta + " da key:"
-                            + mensagem.getKey() + " ts:" + contadorTimestamp);
-                    
-                    // Notificar clientes aguardando esta key
-                    notificarClientesAguardando(mensagem.getKey());
-                    
-                    return false; // Não manter conexão aberta
-                } else {
-                    // Criar chave única para este PUT
-                    String putKey = mensagem.getKey() + "_" + contadorTimestamp;
-
-                    // Inicializar contador de confirmações
-                    replicationConfirmations.put(putKey, 0);
-                    replicationConfirmations.put(putKey + "_total", numServidoresNaoLider);
-
-                    // Preparar resposta para enviar após confirmações
-                    Mensagem putOk = new Mensagem(Mensagem.TipoMensagem.PUT_OK, mensagem.getKey(), mensagem.getValue(),
-                            contadorTimestamp);
-                    pendingPutResponses.put(putKey, putOk);
-                    
-                    // Armazenar conexão do cliente (IMPORTANTE: manter socket aberto)
-                    ClientConnection clientConn = new ClientConnection(socket, out, in, clienteIP, clientePorta);
-                    pendingClientConnections.put(putKey, clientConn);
-
-                    // Replicar para outros servidores
-                    replicarParaOutrosServidores(mensagem.getKey(), mensagem.getValue(), contadorTimestamp, putKey,
-                            numServidoresNaoLider);
-                    
-                    return true; // Manter conexão aberta para enviar PUT_OK depois
+            long timestamp = timestamp(particao.termoLideranca, relogio.reservar(pedidos.size()));
+            inicioLote = timestamp;
+            fim = timestamp + pedidos.size() - 1;
+            particao.ultimoGerado = fim;
+            particao.logReplicacao.aplicando(inicioLote);
+            // O prazo é fixado aqui, a partir do relógio do líder, e vai com cada escrita
+            // para as réplicas e o WAL: todas expiram a key no mesmo instante
+            expiraEm = mensagem.getTtlMs() > 0
+                    ? RelogioHibrido.milissegundosDe(timestamp) + mensagem.getTtlMs() : 0L;
+            for (int i = 0; i < valores.length; i++) {
+                registros.add(new Mensagem.Registro(pedidos.get(i).getKey(), valores[i], timestamp++,
+                        atomica ? fim : 0, expiraEm));
+            }
+            resposta = respostaEscrita(mensagem, registros);
+
+            // O lote inteiro é confirmado quando o seu último timestamp for
+            esperar = numSeguidores > 0 || persistencia != null;
+            if (esperar) {
+                particao.putsPendentes.put(fim, new PutPendente(conexao, clienteIP, clientePorta, resposta, registros, nivel,
+                        numSeguidores, necessarias, false, inicio));
+            }
+            // Mesmo seguidores fora do ar vão precisar destes registros quando voltarem
+            if (!replicadores.isEmpty()) {
+                for (Mensagem.Registro registro : registros) {
+                    particao.logReplicacao.anexar(registro);
+                }
+            }
+        }
+
+        for (ReplicadorSeguidor replicador : replicadores) {
+            replicador.notificar();
+        }
+        try {
+            if (atomica) {
+                armazenamento.aplicarAtomico(registros);
+            } else {
+                for (Mensagem.Registro registro : registros) {
+                    armazenamento.aplicar(registro.getKey(), registro.getValue(), registro.getTimestamp(), expiraEm);
                 }
             }
+        } finally {
+            particao.logReplicacao.aplicada(inicioLote);
+        }
+        // Já visível no armazenamento, seja qual for o resultado da escrita: os GETs
+        // que esperavam estas keys não ficam até o prazo por causa de um ERRO
+        notificarClientesAguardando(registros);
+
+        // Se não há seguidores disponíveis nem WAL, responder imediatamente
+        if (!esperar) {
+            conexao.enviar(resposta);
+            latenciaEscrita(mensagem.getTipo()).registrarDesde(inicio);
+            Log.debug("Enviando {} ao Cliente {}:{} ts:{}", resposta.getTipo(), clienteIP, clientePorta, fim);
+            return;
+        }
+
+        // A resposta sai pela conexão do cliente quando a replicação e a gravação terminarem
+        if (numSeguidores == 0 && !replicadores.isEmpty()) {
+            // Sem confirmações chegando, o log só é podado aqui
+            descartarLogConfirmado(particao);
+        }
+        if (persistencia != null) {
+            persistencia.registrar(registros).whenComplete((segmento, erro) -> {
+                if (erro != null) {
+                    Log.erro("Erro ao gravar {} ts:{} no WAL: {}", mensagem.getTipo(), fim, erro.getMessage());
+                }
+                PutPendente pendente = particao.putsPendentes.get(fim);
+                if (pendente != null) {
+                    concluirPut(particao, fim, pendente, pendente.gravacaoConcluida(erro == null));
+                }
+            });
+        } else {
+            PutPendente pendente = particao.putsPendentes.get(fim);
+            if (pendente != null) {
+                concluirPut(particao, fim, pendente, pendente.gravacaoConcluida(true));
+            }
         }
     }
 
-    private void processarGET(Mensagem mensagem, ObjectOutputStream out, Socket socket) throws Exception {
-        String clienteIP = socket.getInetAddress().getHostAddress();
-        int clientePorta = socket.getPort();
+    private Metricas.Histograma latenciaEscrita(Mensagem.TipoMensagem tipo) {
+        return tipo == Mensagem.TipoMensagem.PUT || tipo == Mensagem.TipoMensagem.PUT_OK ? escritaPut : escritaMput;
+    }
 
-        // CORREÇÃO: Usar informações de callback do cliente se fornecidas
-        String callbackIP = mensagem.getClienteIP();
-        int callbackPorta = mensagem.getClientePorta();
-        
-        // Se não foram fornecidas, usar informações da conexão atual
-        if (callbackIP == null || callbackPorta == 0) {
-            callbackIP = clienteIP;
-            callbackPorta = clientePorta;
+    // PUT_OK com o timestamp do PUT, ou MPUT_OK com o timestamp de cada key
+    // (o valor não volta, para não repetir o lote inteiro na resposta)
+    private static Mensagem respostaEscrita(Mensagem requisicao, List<Mensagem.Registro> registros) {
+        Mensagem resposta;
+        if (requisicao.getTipo() == Mensagem.TipoMensagem.PUT) {
+            Mensagem.Registro registro = registros.get(0);
+            resposta = new Mensagem(Mensagem.TipoMensagem.PUT_OK, registro.getKey(), registro.getValue(),
+                    registro.getTimestamp());
+        } else {
+            List<Mensagem.Registro> confirmados = new ArrayList<>(registros.size());
+            for (Mensagem.Registro registro : registros) {
+                confirmados.add(new Mensagem.Registro(registro.getKey(), "", registro.getTimestamp()));
+            }
+            resposta = new Mensagem(Mensagem.TipoMensagem.MPUT_OK);
+            resposta.setRegistros(confirmados);
+            resposta.setTimestamp(registros.get(registros.size() - 1).getTimestamp());
         }
+        resposta.setIdRequisicao(requisicao.getIdRequisicao());
+        return resposta;
+    }
 
-        synchronized (lock) {
-            String key = mensagem.getKey();
-            long timestampCliente = mensagem.getTimestamp();
-            long timestampServidor = timestamps.getOrDefault(key, 0L);
+    // Confirmações de seguidores que o nível de escrita exige, além do próprio líder
+    private static int confirmacoesNecessarias(Particao particao, Mensagem.NivelEscrita nivel) {
+        switch (nivel) {
+            case LIDER:
+                return 0;
+            case MAIORIA:
+                // Maioria de todas as réplicas configuradas da partição, contando o líder
+                return (particao.replicadores.size() + 1) / 2;
+            default:
+                // TODOS: cada réplica configurada, esteja ela disponível ou não
+                return particao.replicadores.size();
+        }
+    }
 
-            System.out.println(
-                    "Cliente " + clienteIP + ":" + clientePorta + " GET key:" + key + " ts:" + timestampCliente +
-                            ". Meu ts é " + timestampServidor + ", portanto devolvendo " +
-                            (timestampServidor >= timestampCliente ? tabelaHash.getOrDefault(key, "NULL")
-                                    : "WAIT_FOR_RESPONSE"));
+    private void responderErro(Canal conexao, Mensagem requisicao, String motivo) throws IOException {
+        Log.aviso("Recusando {} key:{}: {}", requisicao.getTipo(), requisicao.getKey(), motivo);
+        Mensagem erro = new Mensagem(Mensagem.TipoMensagem.ERRO, requisicao.getKey(), motivo);
+        erro.setIdRequisicao(requisicao.getIdRequisicao());
+        conexao.enviar(erro);
+    }
 
-            if (timestampServidor >= timestampCliente) {
-                String value = tabelaHash.getOrDefault(key, "NULL");
-                Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.GET_RESPONSE, key, value, timestampServidor);
-                out.writeObject(resposta);
-            } else {
-                // Enviar WAIT_FOR_RESPONSE e fechar conexão
-                Mensagem waitMsg = new Mensagem(Mensagem.TipoMensagem.WAIT_FOR_RESPONSE);
-                out.writeObject(waitMsg);
-
-                // CHANGED: Added synchronization for HashMap access
-                // Adicionar cliente à lista de espera usando informações de callback
-                synchronized (waitingClients) {
-                    List<WaitingClient> clientesEsperando = waitingClients.computeIfAbsent(key, k -> new ArrayList<>());
-                    clientesEsperando.add(new WaitingClient(callbackIP, callbackPorta, timestampCliente));
+    private void processarGET(Mensagem mensagem, Canal conexao) throws Exception {
+        int id = topologia.particaoDe(mensagem.getKey());
+        Particao particao = particoes[id];
+        if (particao == null || (!particao.souLider && precisaLerNoLider(particao, mensagem))) {
+            Log.debug("Redirecionando GET key:{} ao líder {}", mensagem.getKey(), liderAtual(id));
+            redirecionarAoLider(id, mensagem, conexao);
+            return;
+        }
+        if (mensagem.getComoEm() != 0) {
+            long comoEm = resolverComoEm(particao, mensagem, conexao);
+            if (comoEm < 0) {
+                return;
+            }
+            Armazenamento.Entrada entrada = armazenamento.obter(mensagem.getKey(), comoEm);
+            if (entrada == Armazenamento.DESCARTADA) {
+                responderErro(conexao, mensagem, "versão de " + mensagem.getKey() + " em " + comoEm + " já foi descartada");
+                return;
+            }
+            Mensagem resposta = FilaEspera.respostaGet(mensagem.getIdRequisicao(), mensagem.getKey(), entrada);
+            resposta.setComoEm(comoEm);
+            conexao.enviar(resposta);
+            return;
+        }
+
+        String key = mensagem.getKey();
+        long timestampCliente = mensagem.getTimestamp();
+        Armazenamento.Entrada entrada = armazenamento.obter(key);
+        long timestampServidor = entrada == null ? 0L : entrada.timestamp();
+        // Caminho mais comum de todos: responde sem montar nenhuma linha de log. Uma
+        // key ausente com a partição já além do timestamp do cliente expirou (ou
+        // nunca existiu): não há escrita a esperar.
+        if (timestampServidor >= timestampCliente
+                || (entrada == null && particao.ultimoTimestamp() >= timestampCliente)) {
+            enviarGetResponse(conexao, mensagem.getIdRequisicao(), key, entrada);
+            return;
+        }
+
+        String clienteIP = conexao.getIPRemoto();
+        int clientePorta = conexao.getPortaRemota();
+        Log.debug("Cliente {}:{} GET key:{} ts:{}. Meu ts é {}, portanto devolvendo WAIT_FOR_RESPONSE", clienteIP,
+                clientePorta, key, timestampCliente, timestampServidor);
+
+        // Endereço de callback só se o cliente informou um: a porta de origem desta
+        // conexão deixa de ser dele quando ela fecha
+        String callbackIP = mensagem.getClientePorta() != 0 ? mensagem.getClienteIP() : null;
+        int callbackPorta = callbackIP != null ? mensagem.getClientePorta() : 0;
+
+        // Enviar WAIT_FOR_RESPONSE antes de registrar a espera, para que ele sempre chegue
+        // antes da resposta definitiva, que sai depois com o mesmo id
+        Mensagem waitMsg = new Mensagem(Mensagem.TipoMensagem.WAIT_FOR_RESPONSE);
+        waitMsg.setKey(key);
+        waitMsg.setIdRequisicao(mensagem.getIdRequisicao());
+        conexao.enviar(waitMsg);
+
+        filaEspera.aguardar(key, timestampCliente, conexao, mensagem.getIdRequisicao(), callbackIP, callbackPorta);
+    }
+
+    // Várias keys, cada uma com o timestamp que o cliente já viu. A leitura nunca
+    // devolve só parte de um MPUT atômico. Um seguidor que ainda não tem alguma das
+    // versões pedidas redireciona o MGET ao líder em vez de esperar.
+    private void processarMGET(Mensagem mensagem, Canal conexao) throws Exception {
+        List<Mensagem.Registro> pedidos = mensagem.getRegistros() != null ? mensagem.getRegistros() : List.of();
+        Log.debug("Cliente {}:{} MGET com {} keys", conexao.getIPRemoto(), conexao.getPortaRemota(), pedidos.size());
+        if (pedidos.isEmpty()) {
+            Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.MGET_RESPONSE);
+            resposta.setRegistros(List.of());
+            resposta.setIdRequisicao(mensagem.getIdRequisicao());
+            conexao.enviar(resposta);
+            return;
+        }
+        int id = particaoComum(pedidos);
+        if (id < 0) {
+            responderErro(conexao, mensagem, "MGET com keys de partições diferentes");
+            return;
+        }
+        Particao particao = particoes[id];
+        if (particao == null || (!particao.souLider && precisaLerNoLider(particao, mensagem))) {
+            redirecionarAoLider(id, mensagem, conexao);
+            return;
+        }
+
+        List<String> keys = new ArrayList<>(pedidos.size());
+        for (Mensagem.Registro pedido : pedidos) {
+            keys.add(pedido.getKey());
+        }
+        long comoEm = 0;
+        List<Armazenamento.Entrada> entradas;
+        if (mensagem.getComoEm() != 0) {
+            comoEm = resolverComoEm(particao, mensagem, conexao);
+            if (comoEm < 0) {
+                return;
+            }
+            entradas = armazenamento.obterTodos(keys, comoEm);
+        } else {
+            entradas = armazenamento.obterTodos(keys);
+        }
+        List<Mensagem.Registro> resultado = new ArrayList<>(pedidos.size());
+        for (int i = 0; i < pedidos.size(); i++) {
+            Armazenamento.Entrada entrada = entradas.get(i);
+            if (entrada == Armazenamento.DESCARTADA) {
+                responderErro(conexao, mensagem, "versão de " + keys.get(i) + " em " + comoEm + " já foi descartada");
+                return;
+            }
+            long timestamp = entrada == null ? 0L : entrada.timestamp();
+            long pedido = pedidos.get(i).getTimestamp();
+            if (comoEm == 0 && !particao.souLider && timestamp < pedido
+                    && (entrada != null || particao.ultimoTimestamp() < pedido)) {
+                redirecionarAoLider(id, mensagem, conexao);
+                return;
+            }
+            resultado.add(new Mensagem.Registro(keys.get(i), FilaEspera.valorDe(entrada), timestamp));
+        }
+
+        Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.MGET_RESPONSE);
+        resposta.setRegistros(resultado);
+        resposta.setComoEm(comoEm);
+        resposta.setIdRequisicao(mensagem.getIdRequisicao());
+        conexao.enviar(resposta);
+    }
+
+    // Timestamp de uma leitura "como em", ou -1 se a requisição já foi respondida
+    // (REDIRECT ou ERRO). O retrato só é estável se nenhuma escrita futura puder
+    // receber um timestamp até ele: um seguidor que ainda não aplicou tudo até lá
+    // redireciona ao líder, e o líder adianta o contador para depois dele e espera
+    // as escritas que já têm timestamp até ele chegarem ao armazenamento. AGORA
+    // vira o último timestamp aplicado.
+    private long resolverComoEm(Particao particao, Mensagem mensagem, Canal conexao) throws IOException {
+        long comoEm = mensagem.getComoEm();
+        boolean lider = false;
+        synchronized (particao.logReplicacao) {
+            if (particao.souLider) {
+                lider = true;
+                if (comoEm == Mensagem.AGORA) {
+                    comoEm = timestamp(particao.termoLideranca, relogio.reservar(1));
+                    particao.ultimoGerado = comoEm;
+                } else if (comoEm > particao.ultimoGerado) {
+                    // Timestamps de outro termo não podem ser adiantados por este líder, e um
+                    // cliente com o relógio muito adiantado não arrasta o HLC junto
+                    if (termoDe(comoEm) != particao.termoLideranca) {
+                        responderErro(conexao, mensagem, "timestamp " + comoEm + " além do termo atual");
+                        return -1;
+                    }
+                    if ((comoEm & RelogioHibrido.MASCARA) - RelogioHibrido.fisico()
+                            > Configuracao.desvioMaximoRelogioMs() << RelogioHibrido.BITS_LOGICO) {
+                        responderErro(conexao, mensagem, "timestamp " + comoEm + " no futuro");
+                        return -1;
+                    }
+                    relogio.atualizar(comoEm);
+                    particao.ultimoGerado = comoEm;
                 }
             }
         }
+        if (lider) {
+            particao.logReplicacao.esperarAplicadas(comoEm);
+            return comoEm;
+        }
+        long aplicado = particao.ultimoTimestampReplicado;
+        if (comoEm == Mensagem.AGORA) {
+            comoEm = aplicado;
+        }
+        if (comoEm == 0 || comoEm > aplicado) {
+            redirecionarAoLider(particao.id, mensagem, conexao);
+            return -1;
+        }
+        return comoEm;
     }
 
-    private void processarREPLICATION(Mensagem mensagem, ObjectOutputStream out) throws Exception {
-        System.out.println("REPLICATION key:" + mensagem.getKey() + " value:" + mensagem.getValue() + " ts:"
-                + mensagem.getTimestamp());
+    // LIDER sempre vai ao líder; LIMITADA só quando este seguidor está há mais
+    // tempo que o aceito sem confirmar que alcançou o líder
+    private boolean precisaLerNoLider(Particao particao, Mensagem mensagem) {
+        Mensagem.NivelLeitura nivel = mensagem.getNivelLeitura() != null ? mensagem.getNivelLeitura()
+                : nivelLeituraPadrao;
+        switch (nivel) {
+            case LIDER:
+                return true;
+            case LIMITADA:
+                long atrasoMaximo = mensagem.getAtrasoMaximoMs() > 0 ? mensagem.getAtrasoMaximoMs()
+                        : Configuracao.atrasoMaximoMs();
+                return System.currentTimeMillis() - particao.emDiaComLiderEm > atrasoMaximo;
+            default:
+                return false;
+        }
+    }
+
+    private void enviarGetResponse(Canal conexao, long idRequisicao, String key, Armazenamento.Entrada entrada)
+            throws IOException {
+        conexao.enviar(FilaEspera.respostaGet(idRequisicao, key, entrada));
+    }
 
-        synchronized (lock) {
-            tabelaHash.put(mensagem.getKey(), mensagem.getValue());
-            timestamps.put(mensagem.getKey(), mensagem.getTimestamp());
+    // Mensagens do líder de uma partição ou de um candidato a líder; cada uma diz de
+    // qual partição e de qual termo é
+    private void processarDoLider(Mensagem mensagem, Canal conexao) throws Exception {
+        int id = mensagem.getParticao();
+        Particao particao = id >= 0 && id < particoes.length ? particoes[id] : null;
+        if (particao == null) {
+            responderErro(conexao, mensagem, "partição " + id + " não tem réplica neste servidor");
+            return;
+        }
+        if (mensagem.getTipo() == Mensagem.TipoMensagem.PEDIDO_VOTO) {
+            processarPEDIDO_VOTO(particao, mensagem, conexao);
+            return;
+        }
+        if (mensagem.getTipo() == Mensagem.TipoMensagem.PEDIDO_PRE_VOTO) {
+            processarPEDIDO_PRE_VOTO(particao, mensagem, conexao);
+            return;
         }
+        long termoAtual;
+        synchronized (particao) {
+            termoAtual = particao.termo;
+            if (mensagem.getTermo() >= termoAtual) {
+                // O SYNC abre o fluxo de um líder e traz o endereço dele
+                adotarTermo(particao, mensagem.getTermo(),
+                        mensagem.getTipo() == Mensagem.TipoMensagem.SYNC ? mensagem.getValue() : null);
+                particao.contatoLiderNs = System.nanoTime();
+            }
+        }
+        if (mensagem.getTermo() < termoAtual) {
+            // Líder de um termo que já passou: recusar e informar o termo atual
+            Mensagem recusa = new Mensagem(Mensagem.TipoMensagem.ERRO, null,
+                    "termo " + mensagem.getTermo() + " encerrado; termo atual " + termoAtual);
+            recusa.setTermo(termoAtual);
+            recusa.setIdRequisicao(mensagem.getIdRequisicao());
+            conexao.enviar(recusa);
+            return;
+        }
+        switch (mensagem.getTipo()) {
+            case SYNC:
+                processarSYNC(particao, mensagem, conexao);
+                break;
+            case SNAPSHOT_END:
+                processarSNAPSHOT_END(particao, mensagem, conexao);
+                break;
+            default:
+                processarREPLICATION(particao, mensagem, conexao);
+                break;
+        }
+    }
 
-        // Notificar clientes aguardando esta key
-        notificarClientesAguardando(mensagem.getKey());
+    // Um candidato pede voto. O voto vai para o primeiro candidato do termo que tem
+    // pelo menos tudo o que este servidor tem da partição (o maior timestamp, que já
+    // inclui o termo). Enquanto o líder atual dá notícias, pedidos são recusados sem
+    // trocar de termo: um servidor que voltou depois de uma queda não derruba o líder.
+    private void processarPEDIDO_VOTO(Particao particao, Mensagem mensagem, Canal conexao) throws IOException {
+        boolean concedido = false;
+        long termo;
+        synchronized (particao) {
+            boolean liderVivo = particao.souLider
+                    || (particao.lider != null && System.nanoTime() - particao.contatoLiderNs < prazoEleicaoNs());
+            if (!liderVivo) {
+                adotarTermo(particao, mensagem.getTermo(), null);
+                String candidato = mensagem.getValue();
+                if (mensagem.getTermo() == particao.termo
+                        && (particao.votouNoTermo < particao.termo || candidato.equals(particao.votoPara))
+                        && mensagem.getTimestamp() >= particao.ultimoTimestamp()) {
+                    concedido = true;
+                    particao.votouNoTermo = particao.termo;
+                    particao.votoPara = candidato;
+                    particao.contatoLiderNs = System.nanoTime();
+                }
+            }
+            termo = particao.termo;
+        }
+        Log.info("Partição {}: voto {} a {} no termo {}", particao.id, concedido ? "concedido" : "negado",
+                mensagem.getValue(), mensagem.getTermo());
+        Mensagem resposta = new Mensagem(concedido ? Mensagem.TipoMensagem.VOTO : Mensagem.TipoMensagem.ERRO);
+        resposta.setTermo(termo);
+        resposta.setIdRequisicao(mensagem.getIdRequisicao());
+        conexao.enviar(resposta);
+    }
+
+    // Pré-votação: diz se votaria no candidato no termo pedido, com as mesmas regras
+    // do voto, mas sem mudar de termo nem guardar o voto
+    private void processarPEDIDO_PRE_VOTO(Particao particao, Mensagem mensagem, Canal conexao) throws IOException {
+        boolean concedido;
+        long termo;
+        synchronized (particao) {
+            boolean liderVivo = particao.souLider
+                    || (particao.lider != null && System.nanoTime() - particao.contatoLiderNs < prazoEleicaoNs());
+            termo = particao.termo;
+            concedido = !liderVivo && mensagem.getTermo() > termo
+                    && mensagem.getTimestamp() >= particao.ultimoTimestamp();
+        }
+        Mensagem resposta = new Mensagem(concedido ? Mensagem.TipoMensagem.VOTO : Mensagem.TipoMensagem.ERRO);
+        resposta.setTermo(termo);
+        resposta.setIdRequisicao(mensagem.getIdRequisicao());
+        conexao.enviar(resposta);
+    }
+
+    // Aplica um lote do líder, em ordem, e confirma tudo até o último timestamp.
+    // Pedaços de uma transferência (SNAPSHOT_CHUNK) chegam fora da ordem de timestamp
+    // e por isso não avançam o ponto de replicação; isso fica para o SNAPSHOT_END.
+    private void processarREPLICATION(Particao particao, Mensagem mensagem, Canal conexao) throws Exception {
+        boolean emOrdem = mensagem.getTipo() == Mensagem.TipoMensagem.REPLICATION;
+        List<Mensagem.Registro> registros = mensagem.getRegistros();
+        if (registros == null) {
+            registros = List.of(new Mensagem.Registro(mensagem.getKey(), mensagem.getValue(), mensagem.getTimestamp()));
+        }
+
+        int i = 0;
+        while (i < registros.size()) {
+            // Um grupo atômico chega inteiro no mesmo lote (LogReplicacao não o divide)
+            int fimGrupo = i;
+            while (fimGrupo < registros.size() - 1 && registros.get(fimGrupo).continuaGrupo()) {
+                fimGrupo++;
+            }
+            List<Mensagem.Registro> trecho = registros.subList(i, fimGrupo + 1);
+            if (!emOrdem) {
+                particao.transferidas.add(trecho.get(0).getKey());
+                if (trecho.get(0).getTimestamp() == 0) {
+                    // Só a key: este seguidor já tem a versão que o líder tem
+                    i = fimGrupo + 1;
+                    continue;
+                }
+            }
+            if (trecho.size() > 1) {
+                armazenamento.aplicarAtomico(trecho);
+            }
+            for (Mensagem.Registro registro : trecho) {
+                if (Log.depurando()) {
+                    Log.debug("REPLICATION key:{} value:{} ts:{}", registro.getKey(), registro.getValue(),
+                            registro.getTimestamp());
+                }
+                if (!emOrdem) {
+                    // As versões anteriores às de um snapshot não vêm junto
+                    armazenamento.aplicarSemHistorico(registro.getKey(), registro.getValue(), registro.getTimestamp(),
+                            registro.getExpiraEm());
+                } else if (trecho.size() == 1) {
+                    armazenamento.aplicar(registro.getKey(), registro.getValue(), registro.getTimestamp(),
+                            registro.getExpiraEm());
+                }
+                if (emOrdem && registro.getTimestamp() > particao.ultimoTimestampReplicado) {
+                    particao.ultimoTimestampReplicado = registro.getTimestamp();
+                } else if (!emOrdem && registro.getTimestamp() > particao.maiorTransferido) {
+                    particao.maiorTransferido = registro.getTimestamp();
+                }
+
+                // Notificar clientes aguardando esta key
+                notificarClientesAguardando(registro.getKey());
+            }
+            i = fimGrupo + 1;
+        }
+        // O timestamp do lote é o fim do log do líder no envio; o HLC deste servidor o acompanha
+        relogio.atualizar(mensagem.getTimestamp());
+        if (emOrdem && particao.ultimoTimestampReplicado >= mensagem.getTimestamp()) {
+            particao.emDiaComLiderEm = System.currentTimeMillis();
+        }
 
         Mensagem replicationOk = new Mensagem(Mensagem.TipoMensagem.REPLICATION_OK);
-        replicationOk.setKey(mensagem.getKey());
-        replicationOk.setTimestamp(mensagem.getTimestamp());
-        out.writeObject(replicationOk);
-    }
-
-    private void processarREPLICATION_OK(Mensagem mensagem) {
-        if (souLider) {
-            synchronized (lock) {
-                // Criar chave única para identificar este PUT
-                String putKey = mensagem.getKey() + "_" + mensagem.getTimestamp();
-
-                // Incrementar contador de confirmações
-                Integer confirmacoes = replicationConfirmations.get(putKey);
-                if (confirmacoes != null) {
-                    confirmacoes++;
-                    replicationConfirmations.put(putKey, confirmacoes);
-
-                    // Verificar se recebeu confirmação de todos os servidores
-                    Integer totalEsperado = replicationConfirmations.get(putKey + "_total");
-                    if (totalEsperado == null)
-                        totalEsperado = 2; // fallback
-
-                    if (confirmacoes >= totalEsperado) {
-                        // Enviar PUT_OK para o cliente
-                        Mensagem putOk = pendingPutResponses.get(putKey);
-                        ClientConnection clientConn = pendingClientConnections.get(putKey);
-
-                        if (putOk != null && clientConn != null) {
-                            try {
-                                if (!clientConn.socket.isClosed()) {
-                                    clientConn.out.writeObject(putOk);
-                                    clientConn.out.flush(); // Garantir que a mensagem seja enviada
-
-                                    System.out.println("Enviando PUT_OK ao Cliente " + clientConn.clienteIP + ":" + clientConn.clientePorta +
-                                            " da key:" + putOk.getKey() + " ts:" + putOk.getTimestamp());
-                                } else {
-                                    System.err.println("Socket do cliente está fechado para PUT key:" + putOk.getKey());
-                                }
-                            } catch (Exception e) {
-                                System.err.println("Erro ao enviar PUT_OK para cliente: " + e.getMessage());
-                            } finally {
-                                // Agora podemos fechar o socket do cliente
-                                try {
-                                    if (clientConn.in != null) clientConn.in.close();
-                                    if (clientConn.out != null) clientConn.out.close();
-                                    if (!clientConn.socket.isClosed()) clientConn.socket.close();
-                                } catch (Exception e) {
-                                    // Ignorar erros de fechamento
-                                }
-                            }
-                        }
+        replicationOk.setTimestamp(particao.ultimoTimestampReplicado);
+        replicationOk.setIdRequisicao(mensagem.getIdRequisicao());
+        if (!emOrdem) {
+            // As marcas de key não vão para o WAL
+            registros = registros.stream().filter(registro -> registro.getTimestamp() != 0).toList();
+        }
+        confirmarAposGravar(registros, replicationOk, conexao);
+    }
+
+    // Só confirmar ao líder depois que os registros estiverem no WAL deste seguidor. As
+    // gravações terminam na ordem em que foram pedidas, então as confirmações também.
+    // Se a gravação falhar o líder recebe ERRO no lugar da confirmação: ele trata este
+    // seguidor como indisponível e, na reconexão, reenvia a partir do que ele tem.
+    private void confirmarAposGravar(List<Mensagem.Registro> registros, Mensagem resposta, Canal conexao)
+            throws IOException {
+        if (persistencia == null || registros.isEmpty()) {
+            conexao.enviar(resposta);
+            return;
+        }
+        persistencia.registrar(registros).whenComplete((segmento, erro) -> {
+            Mensagem enviada = resposta;
+            if (erro != null) {
+                Log.erro("Erro ao gravar replicação no WAL: {}", erro.getMessage());
+                enviada = new Mensagem(Mensagem.TipoMensagem.ERRO, null,
+                        "falha no WAL do seguidor: " + erro);
+                enviada.setIdRequisicao(resposta.getIdRequisicao());
+            }
+            try {
+                conexao.enviar(enviada);
+            } catch (IOException e) {
+                Log.erro("Erro ao enviar {}: {}", enviada.getTipo(), e.getMessage());
+            }
+        });
+    }
+
+    // O líder (re)conectou e quer saber até onde este seguidor já aplicou. Escritas
+    // que não estão na história do líder (de um líder deposto, que não chegaram à
+    // maioria) não podem ficar: a partição é descartada e o líder a manda inteira.
+    private void processarSYNC(Particao particao, Mensagem mensagem, Canal conexao) throws IOException {
+        if (particao.descartando) {
+            responderErro(conexao, mensagem, "partição " + particao.id + " sendo descartada");
+            return;
+        }
+        particao.transferidas = ConcurrentHashMap.newKeySet();
+        long maior = Math.max(particao.ultimoTimestamp(), particao.maiorTransferido);
+        if (naHistoriaDoLider(maior, mensagem.getTermo(), mensagem.getTimestamp())) {
+            responderSYNC(particao, mensagem, conexao);
+            return;
+        }
+        Log.aviso("Partição {}: ts {} fora da história do líder do termo {} (eleito com ts {}); descartando a partição",
+                particao.id, maior, mensagem.getTermo(), mensagem.getTimestamp());
+        particao.descartando = true;
+        // Com persistência há um snapshot no caminho: fora da thread que trata as mensagens
+        threadPool.execute(() -> {
+            try {
+                descartarParticao(particao);
+                responderSYNC(particao, mensagem, conexao);
+            } catch (Exception e) {
+                Log.erro("Erro ao descartar a partição {}: {}", particao.id, e.getMessage());
+                try {
+                    responderErro(conexao, mensagem, "erro ao descartar a partição " + particao.id + ": " + e);
+                } catch (IOException erroEnvio) {
+                    // O líder tenta de novo ao reconectar
+                }
+            } finally {
+                particao.descartando = false;
+            }
+        });
+    }
 
-                        // Notificar clientes aguardando esta key
-                        notificarClientesAguardando(mensagem.getKey());
+    private void responderSYNC(Particao particao, Mensagem mensagem, Canal conexao) throws IOException {
+        Log.info("SYNC do líder {} (partição {}): aplicado até ts {}", conexao.getIPRemoto(), particao.id,
+                particao.ultimoTimestampReplicado);
+        Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.SYNC_OK);
+        resposta.setTimestamp(particao.ultimoTimestampReplicado);
+        resposta.setIdRequisicao(mensagem.getIdRequisicao());
+        conexao.enviar(resposta);
+    }
 
-                        // Limpar estruturas pendentes
-                        replicationConfirmations.remove(putKey);
-                        replicationConfirmations.remove(putKey + "_total");
-                        pendingPutResponses.remove(putKey);
-                        pendingClientConnections.remove(putKey);
-                    }
+    // Verdadeiro se tudo o que esta réplica tem, até o timestamp 'maior', está na
+    // história do líder do termo 'termo', que tinha até 'inicioTermo' ao ser eleito.
+    // Dentro de um termo as réplicas recebem trechos iniciais do log do líder dele, e
+    // cada líder alinha um seguidor antes de lhe mandar algo: quem parou no termo em
+    // que o líder parou, e não depois dele, tem um trecho do que o líder tem, e
+    // escritas do termo atual só podem ter vindo deste líder. O resto (termos que o
+    // líder não viu até o fim, ou que ele nem viu) é tratado como divergente.
+    private static boolean naHistoriaDoLider(long maior, long termo, long inicioTermo) {
+        return maior == 0 || termoDe(maior) == termo
+                || (termoDe(maior) == termoDe(inicioTermo) && maior <= inicioTermo);
+    }
+
+    // Tira do armazenamento tudo o que esta réplica tem da partição e volta o ponto de
+    // replicação para o início. O WAL só sabe acrescentar; com persistência, um snapshot
+    // gravado logo depois da remoção impede que a recuperação traga de volta o que saiu.
+    private void descartarParticao(Particao particao) throws Exception {
+        particao.ultimoGerado = 0;
+        particao.ultimoTimestampReplicado = 0;
+        particao.maiorTransferido = 0;
+        int id = particao.id;
+        Runnable remover = () -> {
+            int removidas = armazenamento.removerSe(key -> topologia.particaoDe(key) == id);
+            Log.info("Partição {}: {} keys descartadas", id, removidas);
+        };
+        if (persistencia != null) {
+            persistencia.gravarSnapshotDepois(remover, armazenamento);
+        } else {
+            remover.run();
+        }
+    }
+
+    // Fim de uma transferência: tudo até o timestamp informado já foi recebido, e
+    // toda key que o líder tem na partição veio ao menos como marca. As que não vieram
+    // expiraram no líder depois do ponto em que este seguidor parou, e a expiração
+    // não deixa marca no log nem no armazenamento: saem aqui. Como em
+    // descartarParticao, com persistência um snapshot fecha a remoção.
+    private void processarSNAPSHOT_END(Particao particao, Mensagem mensagem, Canal conexao) throws IOException {
+        Set<String> recebidas = particao.transferidas;
+        particao.transferidas = ConcurrentHashMap.newKeySet();
+        int id = particao.id;
+        Runnable remover = () -> {
+            int removidas = armazenamento.removerSe(
+                    key -> topologia.particaoDe(key) == id && !recebidas.contains(key));
+            if (removidas > 0) {
+                Log.info("Partição {}: {} keys que o líder não tem mais removidas", id, removidas);
+            }
+        };
+        particao.descartando = true;
+        threadPool.execute(() -> {
+            try {
+                if (persistencia != null) {
+                    persistencia.gravarSnapshotDepois(remover, armazenamento);
+                } else {
+                    remover.run();
+                }
+                concluirTransferencia(particao, mensagem, conexao);
+            } catch (Exception e) {
+                Log.erro("Erro ao concluir a transferência da partição {}: {}", id, e.getMessage());
+                try {
+                    responderErro(conexao, mensagem, "erro ao concluir a transferência da partição " + id + ": " + e);
+                } catch (IOException erroEnvio) {
+                    // O líder tenta de novo ao reconectar
                 }
+            } finally {
+                particao.descartando = false;
+            }
+        });
+    }
+
+    private void concluirTransferencia(Particao particao, Mensagem mensagem, Canal conexao) throws IOException {
+        if (mensagem.getTimestamp() > particao.ultimoTimestampReplicado) {
+            particao.ultimoTimestampReplicado = mensagem.getTimestamp();
+        }
+        Log.info("Transferência do líder (partição {}) concluída até ts {}", particao.id, mensagem.getTimestamp());
+        Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.REPLICATION_OK);
+        resposta.setTimestamp(particao.ultimoTimestampReplicado);
+        resposta.setIdRequisicao(mensagem.getIdRequisicao());
+        conexao.enviar(resposta);
+    }
+
+    // Chamado pelos replicadores: o seguidor confirmou (ou, se caiu, deixou de
+    // responder por) os PUTs com timestamp em (anterior, ate]
+    private void confirmarReplicacao(Particao particao, long anterior, long ate, boolean replicado) {
+        for (Map.Entry<Long, PutPendente> item : particao.putsPendentes.subMap(anterior, false, ate, true)
+                .entrySet()) {
+            PutPendente pendente = item.getValue();
+            if (!replicado) {
+                confirmacoesSemReplica.increment();
+            }
+            concluirPut(particao, item.getKey(), pendente, pendente.seguidorRespondeu(replicado));
+        }
+
+        descartarLogConfirmado(particao);
+    }
+
+    // Registros confirmados por todos os seguidores conectados saem do log
+    // (LogReplicacao ainda guarda os mais recentes para quem está fora do ar)
+    private static void descartarLogConfirmado(Particao particao) {
+        long confirmadoPorTodos = Long.MAX_VALUE;
+        for (ReplicadorSeguidor replicador : particao.replicadores) {
+            confirmadoPorTodos = Math.min(confirmadoPorTodos, replicador.getPosicaoRetida());
+        }
+        particao.logReplicacao.descartarAte(confirmadoPorTodos);
+    }
+
+    // Responde o PUT quando o resultado acabou de ser decidido. Um PUT que não
+    // alcançou o nível pedido recebe ERRO, mas continua aplicado e no log:
+    // o cliente não sabe se ele vai ficar visível.
+    private void concluirPut(Particao particao, long timestamp, PutPendente pendente, Boolean resultado) {
+        if (resultado == null) {
+            return;
+        }
+        particao.putsPendentes.remove(timestamp, pendente);
+        if (resultado) {
+            responderPutOk(pendente);
+            return;
+        }
+        escritasNaoConfirmadas.increment();
+        Mensagem erro = new Mensagem(Mensagem.TipoMensagem.ERRO, pendente.resposta.getKey(),
+                "escrita " + pendente.nivel + " não confirmada (ts " + timestamp + ")", timestamp);
+        erro.setIdRequisicao(pendente.resposta.getIdRequisicao());
+        try {
+            pendente.conexao.enviar(erro);
+        } catch (IOException e) {
+            Log.erro("Erro ao enviar ERRO para cliente: {}", e.getMessage());
+        }
+    }
+
+    private void responderPutOk(PutPendente pendente) {
+        Mensagem resposta = pendente.resposta;
+        try {
+            if (pendente.conexao.isAberta()) {
+                pendente.conexao.enviar(resposta);
+                latenciaEscrita(resposta.getTipo()).registrarDesde(pendente.inicioNs);
+
+                Log.debug("Enviando {} ao Cliente {}:{} da key:{} ts:{}", resposta.getTipo(), pendente.clienteIP,
+                        pendente.clientePorta, resposta.getKey(), resposta.getTimestamp());
+            } else {
+                Log.aviso("Conexão do cliente está fechada para {} ts:{}", resposta.getTipo(), resposta.getTimestamp());
             }
+        } catch (Exception e) {
+            Log.erro("Erro ao enviar {} para cliente: {}", resposta.getTipo(), e.getMessage());
         }
     }
 
     private void notificarClientesAguardando(String key) {
-        // CHANGED: Added synchronization for HashMap access
-        synchronized (waitingClients) {
-            List<WaitingClient> clientes = waitingClients.get(key);
-            if (clientes != null && !clientes.isEmpty()) {
-                synchronized (lock) {
-                    long timestampAtual = timestamps.getOrDefault(key, 0L);
-                    String value = tabelaHash.getOrDefault(key, "NULL");
-                    
-                    // Lista para remover clientes que foram notificados
-                    List<WaitingClient> clientesParaRemover = new ArrayList<>();
-                    
-                    for (WaitingClient cliente : clientes) {
-                        if (timestampAtual >= cliente.timestampRequerido) {
-                            // Enviar resposta assíncrona para o cliente
-                            threadPool.submit(() -> {
-                                try (Socket clientSocket = new Socket(cliente.clienteIP, cliente.clientePorta);
-                                     ObjectOutputStream clientOut = new ObjectOutputStream(clientSocket.getOutputStream())) {
-                                    
-                                    Mensagem resposta = new Mensagem(Mensagem.TipoMensagem.GET_RESPONSE, key, value, timestampAtual);
-                                    clientOut.writeObject(resposta);
-                                    
-                                } catch (Exception e) {
-                                    System.err.println("Erro ao enviar resposta assíncrona para cliente " + 
-                                                     cliente.clienteIP + ":" + cliente.clientePorta + " - " + e.getMessage());
-                                }
-                            });
-                            
-                            clientesParaRemover.add(cliente);
-                        }
+        filaEspera.liberar(key);
+    }
+
+    private void notificarClientesAguardando(List<Mensagem.Registro> registros) {
+        for (Mensagem.Registro registro : registros) {
+            filaEspera.liberar(registro.getKey());
+        }
+    }
+
+    // Começa a replicação das partições que este servidor lidera na configuração
+    // inicial e a verificação periódica dos líderes
+    private void iniciarReplicacao() {
+        for (Particao particao : particoes) {
+            if (particao != null && particao.souLider) {
+                synchronized (particao) {
+                    if (particao.termo == 0) {
+                        tornarLider(particao, 0);
+                    } else {
+                        // Os dados recuperados já são de um termo eleito, talvez com outro
+                        // líder: quem lidera agora é decidido por eleição
+                        particao.souLider = false;
+                        particao.lider = null;
                     }
-                    
-                    // Remover clientes que foram notificados
-                    clientes.removeAll(clientesParaRemover);
-                    
-                    // Se não há mais clientes aguardando, remover a entrada
-                    if (clientes.isEmpty()) {
-                        waitingClients.remove(key);
+                }
+            }
+        }
+        eleicoes = Executors.newSingleThreadScheduledExecutor(tarefa -> new Thread(tarefa, "eleicao"));
+        long intervalo = Configuracao.intervaloHeartbeatMs();
+        eleicoes.scheduleWithFixedDelay(this::verificarLideres, intervalo, intervalo, TimeUnit.MILLISECONDS);
+    }
+
+    // Um líder recusado por um seguidor que já está em um termo maior deixa a
+    // liderança; um seguidor sem notícias do líder dentro do prazo se candidata
+    private void verificarLideres() {
+        for (Particao particao : particoes) {
+            if (particao == null) {
+                continue;
+            }
+            try {
+                if (particao.souLider) {
+                    long maiorTermo = 0;
+                    for (ReplicadorSeguidor replicador : particao.replicadores) {
+                        maiorTermo = Math.max(maiorTermo, replicador.getTermoMaiorVisto());
+                    }
+                    synchronized (particao) {
+                        adotarTermo(particao, maiorTermo, null);
                     }
+                } else if (System.nanoTime() - particao.contatoLiderNs > particao.prazoEleicaoNs
+                        && System.nanoTime() - particao.preVotacaoNs > particao.prazoEleicaoNs) {
+                    iniciarEleicao(particao);
                 }
+            } catch (Exception e) {
+                Log.erro("Erro ao verificar o líder da partição {}: {}", particao.id, e.getMessage());
             }
         }
     }
 
-    private void replicarParaOutrosServidores(String key, String value, long timestamp, String putKey,
-            int numServidoresEsperados) {
-        // Replicar para todos os outros servidores do sistema
-        for (int i = 0; i < 2; i++) {
-            String serverIP = servidorIPs[i];
-            int serverPorta = servidorPortas[i];
-            
+    // Lido a cada uso, e não ao carregar a classe: o main a carrega antes das opções
+    private static long prazoEleicaoNs() {
+        return TimeUnit.MILLISECONDS.toNanos(Configuracao.prazoEleicaoMs());
+    }
+
+    private static long sortearPrazoEleicao() {
+        long prazo = prazoEleicaoNs();
+        return prazo + ThreadLocalRandom.current().nextLong(prazo);
+    }
+
+    // Passa para um termo maior, que ainda não tem líder conhecido, ou registra o
+    // líder do termo atual. Chamado com o monitor da partição.
+    private void adotarTermo(Particao particao, long termo, String lider) {
+        if (termo > particao.termo) {
+            particao.termo = termo;
+            particao.lider = null;
+            if (particao.souLider) {
+                deixarLideranca(particao);
+            }
+        }
+        if (lider != null && termo == particao.termo && !lider.equals(particao.lider)) {
+            particao.lider = lider;
+            Log.info("Partição {}: líder {} no termo {}", particao.id, lider, termo);
+        }
+    }
+
+    // Pré-votação: antes de passar a um termo novo, pergunta às outras réplicas se
+    // votariam nele, sem que ninguém mude de termo. Só com a maioria dizendo que sim
+    // a eleição de verdade começa; um servidor isolado (ou que só não ouve o líder)
+    // fica no mesmo termo em vez de aumentá-lo a cada prazo e, quando volta, não
+    // derruba um líder que estava bem.
+    private void iniciarEleicao(Particao particao) {
+        long proximo;
+        long ultimo;
+        synchronized (particao) {
+            if (particao.souLider) {
+                return;
+            }
+            proximo = particao.termo + 1;
+            particao.preVotacaoNs = System.nanoTime();
+            particao.prazoEleicaoNs = sortearPrazoEleicao();
+            ultimo = particao.ultimoTimestamp();
+        }
+        List<String> replicas = topologia.replicasDe(particao.id);
+        int necessarios = replicas.size() / 2 + 1;
+        AtomicInteger votos = new AtomicInteger(1);
+        if (votos.get() >= necessarios) {
+            candidatar(particao, proximo);
+            return;
+        }
+        Log.debug("Partição {}: sem notícias do líder, pré-votação para o termo {}", particao.id, proximo);
+        for (String replica : replicas) {
+            if (replica.equals(meuEndereco)) {
+                continue;
+            }
+            Mensagem pedido = new Mensagem(Mensagem.TipoMensagem.PEDIDO_PRE_VOTO, null, meuEndereco, ultimo);
+            pedido.setParticao(particao.id);
+            pedido.setTermo(proximo);
+            threadPool.submit(() -> {
+                try {
+                    poolConexoes.obter(Topologia.ipDe(replica), Topologia.portaDe(replica)).requisitar(pedido)
+                            .thenAccept(resposta -> {
+                                boolean eleger;
+                                synchronized (particao) {
+                                    adotarTermo(particao, resposta.getTermo(), null);
+                                    eleger = resposta.getTipo() == Mensagem.TipoMensagem.VOTO
+                                            && particao.termo == proximo - 1 && !particao.souLider
+                                            && votos.incrementAndGet() == necessarios;
+                                }
+                                if (eleger) {
+                                    candidatar(particao, proximo);
+                                }
+                            });
+                } catch (IOException e) {
+                    // Réplica fora do ar: não vota
+                }
+            });
+        }
+    }
+
+    // Vota em si mesmo no termo 'termo' (se ainda for o próximo) e pede os votos das
+    // outras réplicas; com a maioria, passa a liderar a partição
+    private void candidatar(Particao particao, long termo) {
+        long ultimo;
+        synchronized (particao) {
+            if (particao.souLider || particao.termo != termo - 1) {
+                return;
+            }
+            particao.termo = termo;
+            particao.lider = null;
+            particao.votouNoTermo = termo;
+            particao.votoPara = meuEndereco;
+            particao.contatoLiderNs = System.nanoTime();
+            particao.prazoEleicaoNs = sortearPrazoEleicao();
+            ultimo = particao.ultimoTimestamp();
+        }
+        List<String> replicas = topologia.replicasDe(particao.id);
+        int necessarios = replicas.size() / 2 + 1;
+        Log.info("Partição {}: sem notícias do líder, candidato no termo {} com ts {}", particao.id, termo, ultimo);
+        AtomicInteger votos = new AtomicInteger(1);
+        if (votos.get() >= necessarios) {
+            synchronized (particao) {
+                if (particao.termo == termo && !particao.souLider) {
+                    tornarLider(particao, termo);
+                }
+            }
+            return;
+        }
+        for (String replica : replicas) {
+            if (replica.equals(meuEndereco)) {
+                continue;
+            }
+            Mensagem pedido = new Mensagem(Mensagem.TipoMensagem.PEDIDO_VOTO, null, meuEndereco, ultimo);
+            pedido.setParticao(particao.id);
+            pedido.setTermo(termo);
+            // A conexão pode demorar a falhar; não segurar a thread das eleições
+            threadPool.submit(() -> {
+                try {
+                    poolConexoes.obter(Topologia.ipDe(replica), Topologia.portaDe(replica)).requisitar(pedido)
+                            .thenAccept(resposta -> {
+                                synchronized (particao) {
+                                    adotarTermo(particao, resposta.getTermo(), null);
+                                    if (resposta.getTipo() == Mensagem.TipoMensagem.VOTO && particao.termo == termo
+                                            && !particao.souLider && votos.incrementAndGet() == necessarios) {
+                                        tornarLider(particao, termo);
+                                    }
+                                }
+                            });
+                } catch (IOException e) {
+                    // Réplica fora do ar: não vota
+                }
+            });
+        }
+    }
+
+    // Cria um fluxo de replicação para cada outra réplica da partição. Os timestamps
+    // do termo começam acima de tudo o que líderes anteriores podem ter gerado, e o
+    // log recomeça no que este servidor já tem: seguidores atrás dele recebem o que
+    // falta pelo armazenamento, e os que têm escritas fora da história dele a
+    // descartam (veja processarSYNC). Chamado com o monitor da partição.
+    private void tornarLider(Particao particao, long termo) {
+        int id = particao.id;
+        long ultimo = particao.ultimoTimestamp();
+        List<ReplicadorSeguidor> novos = new ArrayList<>();
+        for (String replica : topologia.replicasDe(id)) {
             // Não replicar para si mesmo
-            if (!(serverIP.equals(meuIP) && serverPorta == minhaPorta)) {
-                threadPool.submit(() -> {
-                    try (Socket socket = new Socket(serverIP, serverPorta);
-                            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-                            ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-                        Mensagem replicationMsg = new Mensagem(Mensagem.TipoMensagem.REPLICATION, key, value,
-                                timestamp);
-                        out.writeObject(replicationMsg);
-
-                        Mensagem resposta = (Mensagem) in.readObject();
-
-                        if (resposta.getTipo() == Mensagem.TipoMensagem.REPLICATION_OK) {
-                            resposta.setKey(key);
-                            resposta.setTimestamp(timestamp);
-                            processarREPLICATION_OK(resposta);
-                        }
-
-                    } catch (Exception e) {
-                        System.err.println("Erro ao replicar para servidor " + serverIP + ":" + serverPorta + ": " + e.getMessage());
-
-                        // Em caso de erro, ainda processar como se fosse uma confirmação
-                        // para evitar que o cliente fique esperando indefinidamente
-                        Mensagem errorResponse = new Mensagem(Mensagem.TipoMensagem.REPLICATION_OK);
-                        errorResponse.setKey(key);
-                        errorResponse.setTimestamp(timestamp);
-                        processarREPLICATION_OK(errorResponse);
-                    }
-                });
+            if (replica.equals(meuEndereco)) {
+                continue;
             }
+            novos.add(new ReplicadorSeguidor(Topologia.ipDe(replica), Topologia.portaDe(replica), id, termo,
+                    ultimo, meuEndereco, key -> topologia.particaoDe(key) == id, particao.logReplicacao, armazenamento,
+                    poolConexoes,
+                    (seguidor, anterior, ate, replicado) -> confirmarReplicacao(particao, anterior, ate, replicado),
+                    metricas));
+        }
+        synchronized (particao.logReplicacao) {
+            particao.logReplicacao.reiniciar(ultimo);
+            // O termo já põe os timestamps acima dos anteriores; o HLC só precisa não recuar
+            relogio.atualizar(ultimo);
+            particao.termoLideranca = termo;
+            particao.inicioTermo = ultimo;
+            particao.ultimoGerado = ultimo;
+            particao.replicadores = novos;
+            particao.lider = meuEndereco;
+            particao.souLider = true;
         }
+        for (ReplicadorSeguidor replicador : novos) {
+            threadPool.submit(replicador);
+        }
+        if (termo > 0) {
+            Log.info("Partição {}: eleito líder no termo {}, timestamps a partir de {}", id, termo,
+                    timestamp(termo, relogio.ultimo() + 1));
+        }
+    }
+
+    private static long timestamp(long termo, long hlc) {
+        if (termo > TERMO_MAXIMO) {
+            throw new IllegalStateException("termo " + termo + " não cabe nos timestamps");
+        }
+        return termo << RelogioHibrido.BITS | hlc;
     }
 
+    private static long termoDe(long timestamp) {
+        return timestamp >>> RelogioHibrido.BITS;
+    }
+
+    // Outro servidor lidera a partição em um termo maior: parar os fluxos de
+    // replicação e recusar os PUTs que ainda esperavam confirmação (o cliente não
+    // sabe se eles ficam). Chamado com o monitor da partição.
+    private void deixarLideranca(Particao particao) {
+        List<ReplicadorSeguidor> antigos;
+        synchronized (particao.logReplicacao) {
+            particao.souLider = false;
+            particao.ultimoTimestampReplicado = particao.ultimoTimestamp();
+            antigos = particao.replicadores;
+            particao.replicadores = List.of();
+        }
+        for (ReplicadorSeguidor replicador : antigos) {
+            replicador.parar();
+        }
+        for (Map.Entry<Long, PutPendente> item : particao.putsPendentes.entrySet()) {
+            concluirPut(particao, item.getKey(), item.getValue(), item.getValue().abandonar());
+        }
+        particao.contatoLiderNs = System.nanoTime();
+        Log.info("Partição {}: deixando a liderança; termo {}", particao.id, particao.termo);
+    }
+
+    // Carrega o snapshot e o WAL do disco antes de aceitar conexões, para que
+    // os timestamps continuem de onde pararam
+    private void recuperarDados() {
+        String diretorio = diretorioDados;
+        if (diretorio.isEmpty()) {
+            Log.info("Persistência desativada");
+            return;
+        }
+        try {
+            Persistencia p = new Persistencia(diretorio, Configuracao.politicaFsync(), Configuracao.intervaloFsyncMs(),
+                    metricas);
+            p.recuperar(armazenamento);
+            // Cada partição tem a sua sequência de timestamps
+            long[] maiores = new long[particoes.length];
+            armazenamento.paraCada((key, entrada) -> {
+                int id = topologia.particaoDe(key);
+                maiores[id] = Math.max(maiores[id], entrada.timestamp());
+            });
+            for (Particao particao : particoes) {
+                if (particao != null) {
+                    particao.termo = termoDe(maiores[particao.id]);
+                    particao.ultimoGerado = maiores[particao.id];
+                    relogio.atualizar(maiores[particao.id]);
+                    particao.ultimoTimestampReplicado = maiores[particao.id];
+                    particao.logReplicacao.reiniciar(maiores[particao.id]);
+                }
+            }
+            p.iniciar(armazenamento, Configuracao.intervaloSnapshotMs());
+            persistencia = p;
+        } catch (IOException e) {
+            Log.erro("Erro ao recuperar dados de {}: {}", diretorio, e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Depois de inicializar: sobe o servidor e atende nesta thread até encerrar
     public void executar() {
-        inicializar();
-        iniciarServidor();
+        try {
+            abrir();
+        } catch (IOException e) {
+            Log.erro("Erro ao abrir a porta {}: {}", minhaPorta, e.getMessage());
+            System.exit(1);
+        }
+        iniciarReplicacao();
+        atender();
+    }
+
+    // Recupera os dados e abre a porta, sem começar a replicação: no ClusterEmbutido
+    // todos os servidores abrem a porta antes de o líder procurar os seguidores
+    void abrir() throws IOException {
+        recuperarDados();
+        armazenamento.iniciarColeta(Configuracao.intervaloColetaMs());
+        registrarMedidores();
+        abrirPorta();
+    }
+
+    // Depois de abrir: replicação e atendimento em segundo plano (ClusterEmbutido)
+    void iniciarEmSegundoPlano() {
+        iniciarReplicacao();
+        Thread atendimento = new Thread(this::atender, "servidor-" + minhaPorta);
+        atendimento.setDaemon(true);
+        atendimento.start();
     }
 
+    // Verdadeiro quando todo seguidor das partições que este servidor lidera está em
+    // dia; antes disso, escritas MAIORIA e TODOS podem não ter as confirmações que pedem
+    boolean seguidoresEmDia() {
+        for (Particao particao : particoes) {
+            if (particao == null) {
+                continue;
+            }
+            synchronized (particao.logReplicacao) {
+                for (ReplicadorSeguidor replicador : particao.replicadores) {
+                    if (!replicador.isDisponivel()) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    // Para o servidor sem sair da JVM: fecha a porta e as conexões e para a
+    // replicação, as eleições e as threads auxiliares. O WAL não é fechado; com
+    // persistência, o servidor termina com o processo.
+    void encerrar() {
+        encerrado = true;
+        if (nio != null) {
+            nio.fechar();
+        }
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // Já fechado
+            }
+        }
+        for (Conexao conexao : conexoesAtivas) {
+            conexao.fechar();
+        }
+        if (eleicoes != null) {
+            eleicoes.shutdownNow();
+        }
+        for (Particao particao : particoes) {
+            if (particao != null) {
+                for (ReplicadorSeguidor replicador : particao.replicadores) {
+                    replicador.parar();
+                }
+            }
+        }
+        poolConexoes.fecharTodas();
+        filaEspera.encerrar();
+        armazenamento.pararColeta();
+        metricas.removerJmx();
+        trabalhadores.shutdownNow();
+        threadPool.shutdownNow();
+        Log.info("Servidor {} encerrado", meuEndereco);
+    }
+
+    // Valores lidos na hora de cada consulta às métricas
+    private void registrarMedidores() {
+        metricas.medidor("escrita.pendentes", () -> {
+            long total = 0;
+            for (Particao particao : particoes) {
+                if (particao != null) {
+                    total += particao.putsPendentes.size();
+                }
+            }
+            return total;
+        });
+        metricas.medidor("replicacao.log", () -> {
+            long total = 0;
+            for (Particao particao : particoes) {
+                if (particao != null) {
+                    total += particao.logReplicacao.tamanho();
+                }
+            }
+            return total;
+        });
+        metricas.medidor("get.aguardando", filaEspera::aguardando);
+        metricas.medidor("keys", armazenamento::tamanho);
+        metricas.medidor("expiracao.removidas", armazenamento::expiradasRemovidas);
+        metricas.medidor("expiracao.pendentes", armazenamento::expiracoesPendentes);
+        metricas.medidor("compressao.valores", Compressao::valoresComprimidos);
+        metricas.medidor("compressao.bytesEconomizados", Compressao::bytesEconomizados);
+        if (trabalhadores instanceof ThreadPoolExecutor pool) {
+            metricas.medidor("trabalhadores.ativos", pool::getActiveCount);
+            metricas.medidor("trabalhadores.fila", () -> pool.getQueue().size());
+        }
+        if (threadPool instanceof ThreadPoolExecutor pool) {
+            metricas.medidor("threads.auxiliares", pool::getPoolSize);
+        }
+        // Iniciar o JMX leva centenas de ms: fora do caminho até o servidor começar a ouvir,
+        // para não atrasar o contato do líder com os seguidores
+        threadPool.execute(() -> metricas.registrarJmx(meuEndereco));
+    }
+
+    // Sem argumentos, pergunta a configuração no terminal; veja inicializar(Map)
     public static void main(String[] args) {
-        Servidor servidor = new Servidor();
+        Servidor servidor = null;
+        try {
+            if (args.length == 0) {
+                servidor = new Servidor();
+                servidor.inicializar();
+            } else {
+                // Antes de criar o servidor: o construtor já lê parâmetros
+                Map<String, String> opcoes = Configuracao.carregar(args);
+                servidor = new Servidor();
+                servidor.inicializar(opcoes);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Configuração inválida: " + e.getMessage());
+            System.exit(2);
+        }
         servidor.executar();
     }
 }
\ No newline at end of file
@@ -0,0 +1,357 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// Front end não bloqueante: uma única thread com Selector aceita conexões,
+// lê e escreve quadros; as mensagens decodificadas são processadas por um
+// pool pequeno de threads de trabalho. As mensagens de uma mesma conexão
+// são processadas em ordem, uma de cada vez.
+class ServidorNIO {
+    private static final int TAMANHO_BUFFER_INICIAL = 64 * 1024;
+    // Mensagens recebidas e ainda não processadas por conexão; acima disso a conexão
+    // para de ser lida (o TCP segura o cliente) até a fila cair à metade
+    private static final int MAX_RECEBIDAS = Configuracao.inteiro("maxRecebidasConexao", 4096);
+    // Bytes de respostas esperando o socket por conexão; acima disso a conexão para de
+    // ser lida e as mensagens já recebidas param de ser processadas até cair à metade,
+    // para que um cliente que manda requisições sem ler as respostas não acumule todas
+    // elas na memória do servidor
+    private static final long MAX_ESCRITA_PENDENTE = Configuracao.longo("maxEscritaPendenteConexao", 8 << 20);
+
+    private final int porta;
+    private final Function<Canal, Consumer<Mensagem>> fabricaTratador;
+    private final ExecutorService trabalhadores;
+    private Selector selector;
+    private ServerSocketChannel servidor;
+    private volatile boolean fechado;
+    private final AtomicInteger abertas = new AtomicInteger();
+
+    public ServidorNIO(int porta, Function<Canal, Consumer<Mensagem>> fabricaTratador, ExecutorService trabalhadores) {
+        this.porta = porta;
+        this.fabricaTratador = fabricaTratador;
+        this.trabalhadores = trabalhadores;
+    }
+
+    // Abre a porta; as conexões esperam na fila do sistema até executar começar
+    public void abrir() throws IOException {
+        selector = Selector.open();
+        servidor = ServerSocketChannel.open();
+        servidor.bind(new InetSocketAddress(porta));
+        servidor.configureBlocking(false);
+        servidor.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    // Laço do seletor, até fechar; abre a porta se abrir não foi chamado
+    public void executar() throws IOException {
+        if (selector == null) {
+            abrir();
+        }
+        try (ServerSocketChannel servidor = this.servidor) {
+            while (!fechado) {
+                selector.select();
+                Iterator<SelectionKey> chaves = selector.selectedKeys().iterator();
+                while (chaves.hasNext()) {
+                    SelectionKey chave = chaves.next();
+                    chaves.remove();
+                    try {
+                        if (!chave.isValid()) {
+                            continue;
+                        }
+                        if (chave.isAcceptable()) {
+                            aceitar(servidor);
+                            continue;
+                        }
+                        CanalNIO canal = (CanalNIO) chave.attachment();
+                        if (chave.isReadable()) {
+                            canal.ler();
+                        }
+                        if (chave.isValid() && chave.isWritable()) {
+                            canal.escreverPendentes();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // Um quadro malformado (ou um erro nesta conexão) derruba só ela,
+                        // não o seletor com todas as outras
+                        Object anexo = chave.attachment();
+                        if (anexo instanceof CanalNIO canal) {
+                            if (e instanceof RuntimeException) {
+                                Log.aviso("Conexão com {}:{} encerrada: {}", canal.ipRemoto, canal.portaRemota,
+                                        e.toString());
+                            }
+                            canal.fechar();
+                        }
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey chave : new ArrayList<>(selector.keys())) {
+                if (chave.attachment() instanceof CanalNIO canal) {
+                    canal.fechar();
+                }
+            }
+            selector.close();
+        }
+    }
+
+    // Faz executar terminar, fechando a porta e todas as conexões
+    public void fechar() {
+        fechado = true;
+        selector.wakeup();
+    }
+
+    private void aceitar(ServerSocketChannel servidor) throws IOException {
+        SocketChannel socket = servidor.accept();
+        if (socket == null) {
+            return;
+        }
+        socket.configureBlocking(false);
+        socket.socket().setTcpNoDelay(true);
+        CanalNIO canal = new CanalNIO(socket);
+        canal.chave = socket.register(selector, SelectionKey.OP_READ, canal);
+        canal.tratador = fabricaTratador.apply(canal);
+        abertas.incrementAndGet();
+    }
+
+    public int conexoesAbertas() {
+        return abertas.get();
+    }
+
+    // Estado de uma conexão aceita pelo seletor
+    private class CanalNIO implements Canal {
+        private final SocketChannel socket;
+        private final String ipRemoto;
+        private final int portaRemota;
+        private SelectionKey chave;
+        private Consumer<Mensagem> tratador;
+        private ByteBuffer leitura = ByteBuffer.allocate(TAMANHO_BUFFER_INICIAL);
+        // Quadros que não couberam no buffer do socket; protegida por synchronized(escrita)
+        private final Queue<ByteBuffer> escrita = new ArrayDeque<>();
+        // Bytes ainda em 'escrita', e se eles passaram de MAX_ESCRITA_PENDENTE; alterados
+        // com synchronized(escrita)
+        private long bytesPendentes;
+        private volatile boolean escritaCheia;
+        // Mensagens recebidas aguardando processamento, em ordem de chegada
+        private final Queue<Mensagem> recebidas = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger numRecebidas = new AtomicInteger();
+        // Leitura suspensa porque a fila passou de MAX_RECEBIDAS; alterado com synchronized(escrita)
+        private volatile boolean leituraPausada;
+        private final AtomicBoolean processando = new AtomicBoolean(false);
+        private volatile boolean fechada;
+        // O outro lado anunciou que aceita valores comprimidos
+        private volatile boolean remotoAceitaComprimidos;
+
+        CanalNIO(SocketChannel socket) {
+            this.socket = socket;
+            InetSocketAddress remoto = (InetSocketAddress) socket.socket().getRemoteSocketAddress();
+            this.ipRemoto = remoto.getAddress().getHostAddress();
+            this.portaRemota = remoto.getPort();
+        }
+
+        // Chamado pela thread do seletor quando há bytes para ler
+        void ler() throws IOException {
+            int lidos = socket.read(leitura);
+            if (lidos < 0) {
+                fechar();
+                return;
+            }
+            leitura.flip();
+            while (leitura.remaining() >= 4) {
+                int tamanho = CodecMensagem.validarTamanho(leitura.getInt(leitura.position()));
+                if (leitura.remaining() < 4 + tamanho) {
+                    if (4 + tamanho > leitura.capacity()) {
+                        // Quadro maior que o buffer: aumentar preservando o que já chegou
+                        ByteBuffer maior = ByteBuffer.allocate(4 + tamanho);
+                        maior.put(leitura);
+                        maior.flip();
+                        leitura = maior;
+                    }
+                    break;
+                }
+                Mensagem mensagem = CodecMensagem.decodificar(leitura.array(), leitura.position() + 4, tamanho);
+                leitura.position(leitura.position() + 4 + tamanho);
+                if (mensagem.isAceitaComprimidos()) {
+                    remotoAceitaComprimidos = true;
+                }
+                recebidas.add(mensagem);
+                numRecebidas.incrementAndGet();
+            }
+            // Consumido o quadro grande, voltar ao tamanho inicial (se o que sobrou,
+            // até o fim do próximo quadro, couber nele) para não prender a memória
+            int necessario = leitura.remaining() < 4 ? 4 : 4 + leitura.getInt(leitura.position());
+            if (leitura.capacity() > TAMANHO_BUFFER_INICIAL && necessario <= TAMANHO_BUFFER_INICIAL) {
+                ByteBuffer menor = ByteBuffer.allocate(TAMANHO_BUFFER_INICIAL);
+                menor.put(leitura);
+                leitura = menor;
+            } else {
+                leitura.compact();
+            }
+            if (numRecebidas.get() >= MAX_RECEBIDAS) {
+                synchronized (escrita) {
+                    if (numRecebidas.get() >= MAX_RECEBIDAS) {
+                        leituraPausada = true;
+                        atualizarInteresse();
+                    }
+                }
+            }
+            agendarProcessamento();
+        }
+
+        // Retoma a leitura quando a fila de uma conexão pausada cai à metade
+        private void retomarSeCouber() {
+            if (!leituraPausada || numRecebidas.get() > MAX_RECEBIDAS / 2) {
+                return;
+            }
+            synchronized (escrita) {
+                if (!leituraPausada || numRecebidas.get() > MAX_RECEBIDAS / 2) {
+                    return;
+                }
+                leituraPausada = false;
+                atualizarInteresse();
+            }
+            selector.wakeup();
+        }
+
+        // Interesse do seletor conforme o estado; chamado com synchronized(escrita)
+        private void atualizarInteresse() {
+            int ops = interesseLeitura() | (escrita.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            try {
+                chave.interestOps(ops);
+            } catch (CancelledKeyException e) {
+                // Conexão fechada; não há mais o que ler nem escrever
+            }
+        }
+
+        // Chamado com synchronized(escrita)
+        private int interesseLeitura() {
+            return leituraPausada || escritaCheia ? 0 : SelectionKey.OP_READ;
+        }
+
+        private void agendarProcessamento() {
+            if (!recebidas.isEmpty() && !escritaCheia && processando.compareAndSet(false, true)) {
+                trabalhadores.execute(this::processar);
+            }
+        }
+
+        // Drena as mensagens desta conexão em uma thread de trabalho
+        private void processar() {
+            try {
+                Mensagem mensagem;
+                while (!escritaCheia && (mensagem = recebidas.poll()) != null) {
+                    numRecebidas.decrementAndGet();
+                    retomarSeCouber();
+                    tratador.accept(mensagem);
+                }
+            } finally {
+                processando.set(false);
+                // Mensagens que chegaram depois do último poll
+                agendarProcessamento();
+            }
+        }
+
+        @Override
+        public void enviar(Mensagem mensagem) throws IOException {
+            enviarQuadros(ByteBuffer.wrap(CodecMensagem.codificar(mensagem, remotoAceitaComprimidos)));
+        }
+
+        @Override
+        public void enviarTodas(List<Mensagem> mensagens) throws IOException {
+            enviarQuadros(ByteBuffer.wrap(CodecMensagem.codificarTodas(mensagens, remotoAceitaComprimidos)));
+        }
+
+        private void enviarQuadros(ByteBuffer quadro) throws IOException {
+            if (fechada) {
+                throw new IOException("Conexão com " + ipRemoto + ":" + portaRemota + " está fechada");
+            }
+            synchronized (escrita) {
+                if (escrita.isEmpty()) {
+                    // Caminho rápido: escrever direto da thread que gerou a resposta
+                    try {
+                        socket.write(quadro);
+                    } catch (IOException e) {
+                        fechar();
+                        throw e;
+                    }
+                    if (!quadro.hasRemaining()) {
+                        return;
+                    }
+                }
+                escrita.add(quadro);
+                bytesPendentes += quadro.remaining();
+                if (bytesPendentes > MAX_ESCRITA_PENDENTE) {
+                    escritaCheia = true;
+                }
+                // O restante sai quando o socket puder ser escrito
+                try {
+                    chave.interestOps(interesseLeitura() | SelectionKey.OP_WRITE);
+                } catch (CancelledKeyException e) {
+                    throw new IOException("Conexão com " + ipRemoto + ":" + portaRemota + " está fechada");
+                }
+            }
+            selector.wakeup();
+        }
+
+        // Chamado pela thread do seletor quando o socket aceita mais dados
+        void escreverPendentes() throws IOException {
+            synchronized (escrita) {
+                while (!escrita.isEmpty()) {
+                    ByteBuffer quadro = escrita.peek();
+                    int antes = quadro.remaining();
+                    socket.write(quadro);
+                    bytesPendentes -= antes - quadro.remaining();
+                    if (quadro.hasRemaining()) {
+                        break;
+                    }
+                    escrita.poll();
+                }
+                if (escritaCheia && bytesPendentes <= MAX_ESCRITA_PENDENTE / 2) {
+                    escritaCheia = false;
+                    agendarProcessamento();
+                }
+                atualizarInteresse();
+            }
+        }
+
+        @Override
+        public boolean isAberta() {
+            return !fechada;
+        }
+
+        @Override
+        public String getIPRemoto() {
+            return ipRemoto;
+        }
+
+        @Override
+        public int getPortaRemota() {
+            return portaRemota;
+        }
+
+        synchronized void fechar() {
+            if (fechada) {
+                return;
+            }
+            fechada = true;
+            abertas.decrementAndGet();
+            chave.cancel();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignorar erro de fechamento
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// Divisão do espaço de keys em partições. Cada key cai em um de SLOTS slots (hash
+// da key) e cada slot pertence a uma partição; cada partição tem um líder e um
+// conjunto de réplicas. Servidores e clientes montam a mesma topologia a partir
+// da mesma lista de membros, então todos sabem para onde mandar cada key.
+//
+// Com uma partição só, o líder é o primeiro membro da lista (o líder configurado).
+// Com mais de uma, os membros são ordenados e a partição p é liderada por
+// membros[p % N], com as réplicas nos membros seguintes: cada servidor lidera a
+// sua parte das escritas.
+//
+// Clientes não precisam conhecer essas regras: pedem a topologia a um servidor
+// (TOPOLOGIA), que a manda como a lista de réplicas de cada partição.
+class Topologia {
+    public static final int SLOTS = 1024;
+
+    private final List<String> membros;
+    private final int[] particaoDoSlot;
+    // Réplicas de cada partição; a primeira é o líder
+    private final List<List<String>> replicas;
+
+    public Topologia(List<String> membros, int numParticoes, int fatorReplicacao) {
+        this(distribuir(membros, numParticoes, fatorReplicacao));
+    }
+
+    // Topologia com as réplicas de cada partição já definidas (a primeira é o líder)
+    public Topologia(List<List<String>> replicas) {
+        if (replicas.isEmpty() || replicas.size() > SLOTS) {
+            throw new IllegalArgumentException("Número de partições inválido: " + replicas.size());
+        }
+        Set<String> todos = new LinkedHashSet<>();
+        this.replicas = new ArrayList<>(replicas.size());
+        for (List<String> conjunto : replicas) {
+            todos.addAll(conjunto);
+            this.replicas.add(Collections.unmodifiableList(new ArrayList<>(conjunto)));
+        }
+        this.membros = Collections.unmodifiableList(new ArrayList<>(todos));
+        this.particaoDoSlot = new int[SLOTS];
+        for (int slot = 0; slot < SLOTS; slot++) {
+            particaoDoSlot[slot] = slot % replicas.size();
+        }
+    }
+
+    private static List<List<String>> distribuir(List<String> membros, int numParticoes, int fatorReplicacao) {
+        if (numParticoes < 1 || numParticoes > SLOTS) {
+            throw new IllegalArgumentException("Número de partições inválido: " + numParticoes);
+        }
+        List<String> ordenados = new ArrayList<>(membros);
+        if (numParticoes > 1) {
+            Collections.sort(ordenados);
+        }
+        int fator = Math.max(1, Math.min(fatorReplicacao, ordenados.size()));
+        List<List<String>> replicas = new ArrayList<>(numParticoes);
+        for (int particao = 0; particao < numParticoes; particao++) {
+            List<String> conjunto = new ArrayList<>(fator);
+            for (int i = 0; i < fator; i++) {
+                conjunto.add(ordenados.get((particao + i) % ordenados.size()));
+            }
+            replicas.add(conjunto);
+        }
+        return replicas;
+    }
+
+    // Um registro por partição, na resposta TOPOLOGIA: as réplicas separadas por
+    // vírgula na key e o número da partição no timestamp
+    public List<Mensagem.Registro> paraRegistros() {
+        List<Mensagem.Registro> registros = new ArrayList<>(replicas.size());
+        for (int particao = 0; particao < replicas.size(); particao++) {
+            registros.add(new Mensagem.Registro(String.join(",", replicas.get(particao)), "", particao));
+        }
+        return registros;
+    }
+
+    public static Topologia deRegistros(List<Mensagem.Registro> registros) {
+        List<List<String>> replicas = new ArrayList<>(Collections.nCopies(registros.size(), List.<String>of()));
+        for (Mensagem.Registro registro : registros) {
+            replicas.set((int) registro.getTimestamp(), List.of(registro.getKey().split(",")));
+        }
+        return new Topologia(replicas);
+    }
+
+    public static String endereco(String ip, int porta) {
+        return ip + ":" + porta;
+    }
+
+    public static String ipDe(String endereco) {
+        return endereco.substring(0, endereco.lastIndexOf(':'));
+    }
+
+    public static int portaDe(String endereco) {
+        return Integer.parseInt(endereco.substring(endereco.lastIndexOf(':') + 1));
+    }
+
+    // Hash da key misturado (finalizador do MurmurHash3), para que keys parecidas
+    // como "k1", "k2"... se espalhem pelos slots
+    public static int slotDe(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % SLOTS;
+    }
+
+    public int particaoDe(String key) {
+        return particaoDoSlot[slotDe(key)];
+    }
+
+    public int numParticoes() {
+        return replicas.size();
+    }
+
+    public String liderDe(int particao) {
+        return replicas.get(particao).get(0);
+    }
+
+    public List<String> replicasDe(int particao) {
+        return replicas.get(particao);
+    }
+
+    public boolean hospeda(int particao, String endereco) {
+        return replicas.get(particao).contains(endereco);
+    }
+
+    public List<String> getMembros() {
+        return membros;
+    }
+}
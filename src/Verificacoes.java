@@ -0,0 +1,678 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Verificações de ponta a ponta dos caminhos mais arriscados, sem framework de
+// testes: cada caso monta o que precisa (um ClusterEmbutido, um diretório de WAL
+// temporário), exercita o caminho e confere o resultado. Um caso que falha não
+// interrompe os demais; no fim, o processo sai com status 1 se algum falhou.
+//
+// Uso: java Verificacoes [trecho do nome...]   (sem argumentos roda todos)
+//   -Dkv.log=INFO  mostra o log dos servidores (o padrão aqui é AVISO)
+//
+// Casos:
+//   config.opcoes      opções "--nome valor" por cima do arquivo de --config, e
+//                      listas de endereços
+//   cluster.embutido   cinco servidores em uma JVM atendendo logo depois de iniciar
+//   codec.idaEVolta    codificar e decodificar cada campo de PUT, MPUT e SCAN
+//   codec.malformados  quadros truncados, tamanhos negativos e bytes aleatórios só
+//                      podem dar IOException
+//   wal.recuperacao    snapshot mais segmentos: tudo volta, com prazos e sobrescritas
+//   wal.truncado       registro rasgado no fim do segmento: só ele se perde, e o WAL
+//                      continua aceitando escritas depois da recuperação
+//   wal.segmentoAntigo registro corrompido num segmento que não é o último: a
+//                      recuperação recusa e o arquivo fica intacto
+//   failover           derrubar um servidor no meio das escritas não perde nenhuma
+//   escrita.todos      com uma réplica fora do ar, TODOS dá ERRO e MAIORIA confirma
+//   espera.erro        um GET em espera é respondido mesmo quando a escrita que o
+//                      satisfaz recebe ERRO (o valor já está no líder)
+//   scan.paginas       SCAN com várias partições e réplicas parciais, em pedaços
+//                      pequenos e retomado de um cursor
+//   ttl                uma key com prazo some das leituras e do SCAN depois dele
+class Verificacoes {
+    interface Corpo {
+        void executar() throws Exception;
+    }
+
+    // 'propriedades' (sem o prefixo kv.) valem só durante o caso
+    private record Caso(String nome, Map<String, String> propriedades, Corpo corpo) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.getProperties().putIfAbsent("kv.log", "AVISO");
+        List<Caso> casos = new ArrayList<>();
+        casos.add(new Caso("config.opcoes", Map.of(), Verificacoes::configOpcoes));
+        casos.add(new Caso("cluster.embutido", Map.of(), Verificacoes::clusterEmbutido));
+        casos.add(new Caso("codec.idaEVolta", Map.of(), Verificacoes::codecIdaEVolta));
+        casos.add(new Caso("codec.malformados", Map.of(), Verificacoes::codecMalformados));
+        casos.add(new Caso("wal.recuperacao", Map.of(), Verificacoes::walRecuperacao));
+        casos.add(new Caso("wal.truncado", Map.of(), Verificacoes::walTruncado));
+        casos.add(new Caso("wal.segmentoAntigo", Map.of(), Verificacoes::walSegmentoAntigo));
+        casos.add(new Caso("failover", Map.of(), Verificacoes::failover));
+        casos.add(new Caso("escrita.todos", Map.of("tempoFailoverMs", "500"), Verificacoes::escritaTodos));
+        casos.add(new Caso("espera.erro", Map.of("particoes", "1"), Verificacoes::esperaEscritaRecusada));
+        casos.add(new Caso("scan.paginas",
+                Map.of("particoes", "3", "fatorReplicacao", "2", "indiceOrdenado", "true"),
+                Verificacoes::scanPaginas));
+        casos.add(new Caso("ttl", Map.of("indiceOrdenado", "true"), Verificacoes::ttl));
+
+        int falhas = 0;
+        for (Caso caso : casos) {
+            if (selecionado(caso.nome(), args) && !executar(caso)) {
+                falhas++;
+            }
+        }
+        System.out.println(falhas == 0 ? "todas as verificações passaram" : falhas + " verificação(ões) falharam");
+        System.exit(falhas == 0 ? 0 : 1);
+    }
+
+    private static boolean selecionado(String nome, String[] filtros) {
+        if (filtros.length == 0) {
+            return true;
+        }
+        for (String filtro : filtros) {
+            if (nome.contains(filtro)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean executar(Caso caso) {
+        Map<String, String> anteriores = new HashMap<>();
+        for (Map.Entry<String, String> propriedade : caso.propriedades().entrySet()) {
+            anteriores.put(propriedade.getKey(), System.getProperty("kv." + propriedade.getKey()));
+            System.setProperty("kv." + propriedade.getKey(), propriedade.getValue());
+        }
+        long inicio = System.nanoTime();
+        try {
+            caso.corpo().executar();
+            System.out.printf("%-20s ok (%d ms)%n", caso.nome(), (System.nanoTime() - inicio) / 1_000_000);
+            return true;
+        } catch (Throwable e) {
+            System.out.printf("%-20s FALHOU: %s%n", caso.nome(), e);
+            return false;
+        } finally {
+            for (Map.Entry<String, String> anterior : anteriores.entrySet()) {
+                if (anterior.getValue() == null) {
+                    System.clearProperty("kv." + anterior.getKey());
+                } else {
+                    System.setProperty("kv." + anterior.getKey(), anterior.getValue());
+                }
+            }
+        }
+    }
+
+    private static void exigir(boolean condicao, String descricao) {
+        if (!condicao) {
+            throw new IllegalStateException(descricao);
+        }
+    }
+
+    private static void exigirIgual(Object esperado, Object obtido, String descricao) {
+        exigir(esperado == null ? obtido == null : esperado.equals(obtido),
+                descricao + ": esperado " + esperado + ", obtido " + obtido);
+    }
+
+    // Configuração e cluster
+
+    private static void configOpcoes() throws Exception {
+        Path arquivo = Files.createTempFile("kv-verificacoes", ".properties");
+        try {
+            Files.writeString(arquivo, "porta=7000\nservidores=127.0.0.1:7000, :7001,10.0.0.3:7002\n",
+                    StandardCharsets.UTF_8);
+            Map<String, String> opcoes = Configuracao.opcoes(
+                    new String[] {"--config", arquivo.toString(), "--porta", "7001"});
+            exigirIgual("7001", opcoes.get("porta"), "linha de comando por cima do arquivo");
+            exigirIgual(List.of("127.0.0.1:7000", "127.0.0.1:7001", "10.0.0.3:7002"),
+                    Configuracao.enderecos(opcoes.get("servidores")), "endereços");
+            exigir(!opcoes.containsKey("config"), "--config não é uma opção do servidor");
+
+            // Os parâmetros também vêm das opções carregadas, não só de -Dkv.
+            Files.writeString(arquivo, "particoes=3\nfatorReplicacao=2\n", StandardCharsets.UTF_8);
+            Configuracao.carregar(new String[] {"--config", arquivo.toString(), "--fatorReplicacao", "1"});
+            exigirIgual(3, Configuracao.particoes(), "parâmetro do arquivo");
+            exigirIgual(1, Configuracao.fatorReplicacao(5), "parâmetro da linha de comando");
+        } finally {
+            Configuracao.carregar(new String[0]);
+            Files.deleteIfExists(arquivo);
+        }
+        try {
+            Configuracao.opcoes(new String[] {"--porta"});
+            throw new IllegalStateException("opção sem valor aceita");
+        } catch (IllegalArgumentException e) {
+            // Esperado
+        }
+    }
+
+    private static void clusterEmbutido() throws Exception {
+        long inicio = System.nanoTime();
+        try (ClusterEmbutido cluster = ClusterEmbutido.iniciar(5); ClienteKV cliente = cluster.cliente()) {
+            cliente.put("a", "1").join();
+            exigir(System.nanoTime() - inicio < 5_000_000_000L, "cluster demorou a atender");
+            exigirIgual(5, cluster.enderecos().size(), "servidores");
+            Map<String, String> valores = new LinkedHashMap<>();
+            for (int i = 0; i < 100; i++) {
+                valores.put("k" + i, "v" + i);
+            }
+            cliente.putTodos(valores, false).join();
+            Map<String, ClienteKV.Leitura> lidas = cliente.getTodos(valores.keySet()).join();
+            for (Map.Entry<String, String> valor : valores.entrySet()) {
+                exigirIgual(valor.getValue(), lidas.get(valor.getKey()).valor(), valor.getKey());
+            }
+            // Cada servidor tem tudo (um só grupo de réplicas por padrão)
+            for (String servidor : cluster.enderecos()) {
+                exigirIgual("101", cliente.estatisticas(servidor).join().get("keys"), "keys em " + servidor);
+            }
+        }
+    }
+
+    // Codec
+
+    private static void codecIdaEVolta() throws IOException {
+        Mensagem put = new Mensagem(Mensagem.TipoMensagem.PUT, "chave-ç", "valor-é", 1L << 50);
+        put.setIdRequisicao(42);
+        put.setNivelEscrita(Mensagem.NivelEscrita.MAIORIA);
+        put.setTtlMs(5_000);
+        put.setClienteIP("10.0.0.7");
+        put.setClientePorta(4321);
+        conferir(put, idaEVolta(put, false));
+
+        Mensagem mput = new Mensagem(Mensagem.TipoMensagem.MPUT);
+        List<Mensagem.Registro> registros = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            registros.add(new Mensagem.Registro("k" + i, i % 7 == 0 ? "" : "v" + i, 1000 + i, i % 3,
+                    i % 5 == 0 ? 0 : 99 + i));
+        }
+        mput.setRegistros(registros);
+        mput.setAtomica(true);
+        mput.setParticao(2);
+        mput.setTermo(7);
+        conferir(mput, idaEVolta(mput, false));
+
+        Mensagem scan = new Mensagem(Mensagem.TipoMensagem.SCAN, "a", "b");
+        scan.setCursor("a:123");
+        scan.setLimite(17);
+        scan.setComoEm(12345);
+        scan.setNivelLeitura(Mensagem.NivelLeitura.LIMITADA);
+        scan.setAtrasoMaximoMs(250);
+        conferir(scan, idaEVolta(scan, false));
+    }
+
+    private static Mensagem idaEVolta(Mensagem mensagem, boolean comprimidos) throws IOException {
+        byte[] quadro = CodecMensagem.codificar(mensagem, comprimidos);
+        int tamanho = CodecMensagem.validarTamanho(((quadro[0] & 0xFF) << 24) | ((quadro[1] & 0xFF) << 16)
+                | ((quadro[2] & 0xFF) << 8) | (quadro[3] & 0xFF));
+        exigirIgual(quadro.length - 4, tamanho, "prefixo de tamanho");
+        return CodecMensagem.decodificar(quadro, 4, tamanho);
+    }
+
+    private static void conferir(Mensagem esperada, Mensagem lida) {
+        exigirIgual(esperada.getTipo(), lida.getTipo(), "tipo");
+        exigirIgual(esperada.getIdRequisicao(), lida.getIdRequisicao(), "idRequisicao");
+        exigirIgual(esperada.getTimestamp(), lida.getTimestamp(), "timestamp");
+        exigirIgual(esperada.getKey(), lida.getKey(), "key");
+        exigirIgual(esperada.getValue(), lida.getValue(), "value");
+        exigirIgual(esperada.getClienteIP(), lida.getClienteIP(), "clienteIP");
+        exigirIgual(esperada.getClientePorta(), lida.getClientePorta(), "clientePorta");
+        exigirIgual(esperada.isAtomica(), lida.isAtomica(), "atomica");
+        exigirIgual(esperada.getNivelEscrita(), lida.getNivelEscrita(), "nivelEscrita");
+        exigirIgual(esperada.getNivelLeitura(), lida.getNivelLeitura(), "nivelLeitura");
+        exigirIgual(esperada.getAtrasoMaximoMs(), lida.getAtrasoMaximoMs(), "atrasoMaximoMs");
+        exigirIgual(esperada.getParticao(), lida.getParticao(), "particao");
+        exigirIgual(esperada.getTermo(), lida.getTermo(), "termo");
+        exigirIgual(esperada.getComoEm(), lida.getComoEm(), "comoEm");
+        exigirIgual(esperada.getTtlMs(), lida.getTtlMs(), "ttlMs");
+        exigirIgual(esperada.getCursor(), lida.getCursor(), "cursor");
+        exigirIgual(esperada.getLimite(), lida.getLimite(), "limite");
+        exigirIgual(esperada.getRegistros() == null, lida.getRegistros() == null, "presença dos registros");
+        if (esperada.getRegistros() != null) {
+            exigirIgual(esperada.getRegistros().size(), lida.getRegistros().size(), "quantidade de registros");
+            for (int i = 0; i < esperada.getRegistros().size(); i++) {
+                Mensagem.Registro a = esperada.getRegistros().get(i);
+                Mensagem.Registro b = lida.getRegistros().get(i);
+                exigir(a.getKey().equals(b.getKey()) && a.getValue().equals(b.getValue())
+                        && a.getTimestamp() == b.getTimestamp() && a.getGrupo() == b.getGrupo()
+                        && a.getExpiraEm() == b.getExpiraEm(), "registro " + i + " diferente");
+            }
+        }
+    }
+
+    private static void codecMalformados() throws IOException {
+        Mensagem mput = new Mensagem(Mensagem.TipoMensagem.MPUT);
+        mput.setRegistros(List.of(new Mensagem.Registro("a", "1", 10, 1, 20), new Mensagem.Registro("b", "2", 11)));
+        mput.setNivelEscrita(Mensagem.NivelEscrita.TODOS);
+        mput.setCursor("c");
+        byte[] quadro = CodecMensagem.codificar(mput);
+        byte[] corpo = Arrays.copyOfRange(quadro, 4, quadro.length);
+
+        // Todo prefixo estrito de um quadro válido está truncado
+        for (int tamanho = 0; tamanho < corpo.length; tamanho++) {
+            exigirIOException(corpo, tamanho, "prefixo de " + tamanho + " bytes");
+        }
+
+        // Tamanho de string e quantidade de registros negativos (varint de -1)
+        byte[] menosUm = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1};
+        exigirIOException(juntar(new byte[] {CodecMensagem.VERSAO, 0, 1, 0, 0}, menosUm, new byte[] {65}), -1,
+                "key de tamanho negativo");
+        exigirIOException(juntar(new byte[] {CodecMensagem.VERSAO, 0, 8, 0, 0}, menosUm), -1,
+                "quantidade negativa de registros");
+        exigirIOException(new byte[] {CodecMensagem.VERSAO, (byte) 0x7F, 0, 0, 0}, -1, "tipo desconhecido");
+
+        for (int tamanho : new int[] {-1, 0, 2, Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+            try {
+                CodecMensagem.validarTamanho(tamanho);
+                throw new IllegalStateException("tamanho de quadro " + tamanho + " aceito");
+            } catch (IOException e) {
+                // Esperado
+            }
+        }
+
+        // Bytes aleatórios depois de um cabeçalho válido: decodificar ou IOException, nada mais
+        Random aleatorio = new Random(42);
+        int tipos = Mensagem.TipoMensagem.values().length;
+        for (int i = 0; i < 50_000; i++) {
+            byte[] lixo = new byte[2 + aleatorio.nextInt(48)];
+            aleatorio.nextBytes(lixo);
+            lixo[0] = CodecMensagem.VERSAO;
+            lixo[1] = (byte) aleatorio.nextInt(tipos);
+            try {
+                CodecMensagem.decodificar(lixo, 0, lixo.length);
+            } catch (IOException e) {
+                // Esperado na maioria dos casos
+            } catch (RuntimeException e) {
+                throw new IllegalStateException("quadro aleatório " + i + " deu " + e, e);
+            }
+        }
+    }
+
+    // tamanho -1: o corpo inteiro
+    private static void exigirIOException(byte[] corpo, int tamanho, String descricao) {
+        try {
+            CodecMensagem.decodificar(corpo, 0, tamanho < 0 ? corpo.length : tamanho);
+        } catch (IOException e) {
+            return;
+        } catch (RuntimeException e) {
+            throw new IllegalStateException(descricao + ": " + e, e);
+        }
+        throw new IllegalStateException(descricao + ": quadro aceito");
+    }
+
+    private static byte[] juntar(byte[]... partes) {
+        int total = 0;
+        for (byte[] parte : partes) {
+            total += parte.length;
+        }
+        byte[] resultado = new byte[total];
+        int posicao = 0;
+        for (byte[] parte : partes) {
+            System.arraycopy(parte, 0, resultado, posicao, parte.length);
+            posicao += parte.length;
+        }
+        return resultado;
+    }
+
+    // WAL
+
+    private static void walRecuperacao() throws Exception {
+        Path diretorio = Files.createTempDirectory("kv-verificacoes");
+        try {
+            Armazenamento armazenamento = new Armazenamento();
+            Persistencia persistencia = iniciada(diretorio, armazenamento);
+            long prazo = System.currentTimeMillis() + 3_600_000;
+            List<CompletableFuture<Long>> gravacoes = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                if (i == 500) {
+                    // Metade antes do snapshot, metade só nos segmentos depois dele
+                    CompletableFuture.allOf(gravacoes.toArray(new CompletableFuture<?>[0])).join();
+                    persistencia.gravarSnapshot(armazenamento);
+                }
+                gravacoes.add(gravar(armazenamento, persistencia, "k" + i, "v" + i, i + 1, i % 10 == 0 ? prazo : 0));
+            }
+            gravacoes.add(gravar(armazenamento, persistencia, "k0", "sobrescrita", 2000, 0));
+            CompletableFuture.allOf(gravacoes.toArray(new CompletableFuture<?>[0])).join();
+
+            Armazenamento recuperado = new Armazenamento();
+            long maior = new Persistencia(diretorio.toString(), Configuracao.PoliticaFsync.SEMPRE, 10, new Metricas())
+                    .recuperar(recuperado);
+            exigirIgual(2000L, maior, "maior timestamp recuperado");
+            exigirIgual(1000, recuperado.tamanho(), "keys recuperadas");
+            exigirIgual("sobrescrita", recuperado.obter("k0").valor(), "k0");
+            for (int i = 1; i < 1000; i++) {
+                Armazenamento.Entrada entrada = recuperado.obter("k" + i);
+                exigir(entrada != null && entrada.valor().equals("v" + i) && entrada.timestamp() == i + 1
+                        && entrada.expiraEm() == (i % 10 == 0 ? prazo : 0), "k" + i + " recuperada como " + entrada);
+            }
+        } finally {
+            apagar(diretorio);
+        }
+    }
+
+    private static void walTruncado() throws Exception {
+        Path diretorio = Files.createTempDirectory("kv-verificacoes");
+        try {
+            Armazenamento armazenamento = new Armazenamento();
+            Persistencia persistencia = iniciada(diretorio, armazenamento);
+            List<CompletableFuture<Long>> gravacoes = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                gravacoes.add(gravar(armazenamento, persistencia, "k" + i, "v" + i, i + 1, 0));
+            }
+            CompletableFuture.allOf(gravacoes.toArray(new CompletableFuture<?>[0])).join();
+
+            // Queda no meio da gravação do último registro
+            Path segmento;
+            try (Stream<Path> arquivos = Files.list(diretorio)) {
+                segmento = arquivos.filter(p -> p.getFileName().toString().startsWith("wal-"))
+                        .max(Comparator.comparingLong(p -> p.toFile().length())).orElseThrow();
+            }
+            try (FileChannel canal = FileChannel.open(segmento, StandardOpenOption.WRITE)) {
+                canal.truncate(canal.size() - 3);
+            }
+
+            Armazenamento recuperado = new Armazenamento();
+            Persistencia depois = iniciada(diretorio, recuperado);
+            exigirIgual(99, recuperado.tamanho(), "keys antes do registro rasgado");
+            exigir(recuperado.obter("k99") == null, "registro rasgado não deveria voltar");
+            gravar(recuperado, depois, "k99", "de novo", 200, 0).join();
+
+            Armazenamento depoisDeGravar = new Armazenamento();
+            new Persistencia(diretorio.toString(), Configuracao.PoliticaFsync.SEMPRE, 10, new Metricas())
+                    .recuperar(depoisDeGravar);
+            exigirIgual(100, depoisDeGravar.tamanho(), "keys depois de gravar de novo");
+            exigirIgual("de novo", depoisDeGravar.obter("k99").valor(), "k99");
+            exigirIgual("v98", depoisDeGravar.obter("k98").valor(), "k98");
+        } finally {
+            apagar(diretorio);
+        }
+    }
+
+    private static void walSegmentoAntigo() throws Exception {
+        Path diretorio = Files.createTempDirectory("kv-verificacoes");
+        try {
+            // Cada recuperação abre um segmento novo: 50 registros em cada um
+            Armazenamento armazenamento = new Armazenamento();
+            Persistencia persistencia = iniciada(diretorio, armazenamento);
+            List<CompletableFuture<Long>> gravacoes = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                gravacoes.add(gravar(armazenamento, persistencia, "k" + i, "v" + i, i + 1, 0));
+            }
+            CompletableFuture.allOf(gravacoes.toArray(new CompletableFuture<?>[0])).join();
+            Persistencia segunda = iniciada(diretorio, new Armazenamento());
+            gravacoes.clear();
+            for (int i = 50; i < 100; i++) {
+                gravacoes.add(gravar(armazenamento, segunda, "k" + i, "v" + i, i + 1, 0));
+            }
+            CompletableFuture.allOf(gravacoes.toArray(new CompletableFuture<?>[0])).join();
+
+            // Um byte trocado no meio do primeiro segmento
+            Path primeiro = diretorio.resolve("wal-0.log");
+            long tamanho = Files.size(primeiro);
+            try (FileChannel canal = FileChannel.open(primeiro, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer b = ByteBuffer.allocate(1);
+                canal.read(b, tamanho / 2);
+                b.put(0, (byte) (b.get(0) ^ 0x5A)).rewind();
+                canal.write(b, tamanho / 2);
+            }
+
+            try {
+                new Persistencia(diretorio.toString(), Configuracao.PoliticaFsync.SEMPRE, 10, new Metricas())
+                        .recuperar(new Armazenamento());
+                throw new IllegalStateException("a recuperação deveria recusar o segmento corrompido");
+            } catch (IOException esperado) {
+                // esperado
+            }
+            exigirIgual(tamanho, Files.size(primeiro), "tamanho do segmento corrompido");
+        } finally {
+            apagar(diretorio);
+        }
+    }
+
+    private static Persistencia iniciada(Path diretorio, Armazenamento armazenamento) throws IOException {
+        Persistencia persistencia = new Persistencia(diretorio.toString(), Configuracao.PoliticaFsync.SEMPRE, 10,
+                new Metricas());
+        persistencia.recuperar(armazenamento);
+        // Sem snapshots automáticos durante o caso
+        persistencia.iniciar(armazenamento, 3_600_000);
+        return persistencia;
+    }
+
+    // Como o servidor: primeiro o armazenamento, depois o WAL
+    private static CompletableFuture<Long> gravar(Armazenamento armazenamento, Persistencia persistencia,
+            String key, String valor, long timestamp, long expiraEm) {
+        armazenamento.aplicar(key, valor, timestamp, expiraEm);
+        return persistencia.registrar(new Mensagem.Registro(key, valor, timestamp, 0, expiraEm));
+    }
+
+    private static void apagar(Path diretorio) throws IOException {
+        try (Stream<Path> caminhos = Files.walk(diretorio)) {
+            for (Path caminho : caminhos.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(caminho);
+            }
+        }
+    }
+
+    // Failover
+
+    private static void failover() throws Exception {
+        try (ClusterEmbutido cluster = ClusterEmbutido.iniciar(3); ClienteKV cliente = cluster.cliente()) {
+            Map<String, String> esperados = new LinkedHashMap<>();
+            for (int i = 0; i < 200; i++) {
+                esperados.put("antes" + i, "v" + i);
+                cliente.put("antes" + i, "v" + i).join();
+            }
+            // O primeiro servidor é o líder inicial; as escritas seguintes esperam a eleição
+            cluster.parar(0);
+            for (int i = 0; i < 200; i++) {
+                esperados.put("depois" + i, "v" + i);
+                cliente.put("depois" + i, "v" + i).join();
+            }
+            Map<String, ClienteKV.Leitura> lidas = cliente.getTodos(esperados.keySet()).join();
+            for (Map.Entry<String, String> esperado : esperados.entrySet()) {
+                ClienteKV.Leitura leitura = lidas.get(esperado.getKey());
+                exigirIgual(esperado.getValue(), leitura == null ? null : leitura.valor(), esperado.getKey());
+            }
+        }
+    }
+
+    private static void escritaTodos() throws Exception {
+        try (ClusterEmbutido cluster = ClusterEmbutido.iniciar(3); ClienteKV cliente = cluster.cliente()) {
+            cliente.put("a", "1", Mensagem.NivelEscrita.TODOS).join();
+            cluster.parar(2);
+            try {
+                cliente.put("b", "2", Mensagem.NivelEscrita.TODOS).join();
+                throw new IllegalStateException("TODOS confirmado com uma réplica fora do ar");
+            } catch (CompletionException e) {
+                exigir(e.getCause() instanceof ClienteKV.ErroServidor, "ERRO do servidor: " + e.getCause());
+            }
+            exigirIgual("3", cliente.put("c", "3", Mensagem.NivelEscrita.MAIORIA)
+                    .thenCompose(escrita -> cliente.get("c")).join().valor(), "MAIORIA com duas réplicas");
+        }
+    }
+
+    // Um líder de verdade com um seguidor falso, que passa a recusar os lotes: a
+    // escrita TODOS recebe ERRO, mas fica aplicada no líder
+    private static void esperaEscritaRecusada() throws Exception {
+        int porta;
+        try (ServerSocket livre = new ServerSocket(0)) {
+            porta = livre.getLocalPort();
+        }
+        ExecutorService threads = Executors.newCachedThreadPool();
+        Servidor lider = new Servidor();
+        try (SeguidorFalso seguidor = new SeguidorFalso(threads)) {
+            String endereco = Topologia.endereco("127.0.0.1", porta);
+            lider.configurar("127.0.0.1", porta, endereco, List.of(endereco, seguidor.endereco()), "");
+            lider.abrir();
+            lider.iniciarEmSegundoPlano();
+            long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!lider.seguidoresEmDia()) {
+                exigir(System.nanoTime() < limite, "seguidor falso não entrou em dia");
+                Thread.sleep(5);
+            }
+
+            Conexao leitor = Conexao.conectar("127.0.0.1", porta);
+            try (ClienteKV cliente = new ClienteKV(new String[] {"127.0.0.1"}, new int[] {porta})) {
+                long antes = cliente.put("k", "v0", Mensagem.NivelEscrita.TODOS).join().timestamp();
+                leitor.iniciar(mensagem -> { }, threads);
+                CompletableFuture<Void> aguardando = new CompletableFuture<>();
+                CompletableFuture<Mensagem> resposta = leitor.requisitar(
+                        new Mensagem(Mensagem.TipoMensagem.GET, "k", antes + 1), () -> aguardando.complete(null));
+                aguardando.get(5, TimeUnit.SECONDS);
+                // O WAIT_FOR_RESPONSE sai antes de a espera ser registrada
+                limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (!"1".equals(cliente.estatisticas(endereco).join().get("get.aguardando"))) {
+                    exigir(System.nanoTime() < limite, "GET não ficou em espera");
+                    Thread.sleep(5);
+                }
+
+                seguidor.recusar = true;
+                try {
+                    cliente.put("k", "v1", Mensagem.NivelEscrita.TODOS).join();
+                    throw new IllegalStateException("escrita TODOS confirmada sem o seguidor");
+                } catch (CompletionException e) {
+                    exigir(e.getCause() instanceof ClienteKV.ErroServidor, "ERRO do servidor: " + e.getCause());
+                }
+                // Bem antes de esperaMaximaMs
+                exigirIgual("v1", resposta.get(5, TimeUnit.SECONDS).getValue(), "GET em espera");
+            } finally {
+                leitor.fechar();
+            }
+        } finally {
+            lider.encerrar();
+            threads.shutdownNow();
+        }
+    }
+
+    // Responde como um seguidor da partição 0: confirma cada lote até 'recusar' ser
+    // ligado; daí em diante os lotes com registros recebem ERRO e as confirmações
+    // param no último registro aceito
+    private static final class SeguidorFalso implements AutoCloseable {
+        private final ServerSocket socket;
+        volatile boolean recusar;
+        private volatile long aplicado;
+
+        SeguidorFalso(ExecutorService threads) throws IOException {
+            socket = new ServerSocket(0);
+            threads.execute(() -> {
+                try {
+                    while (true) {
+                        Conexao conexao = new Conexao(socket.accept());
+                        conexao.iniciar(mensagem -> responder(conexao, mensagem), threads);
+                    }
+                } catch (IOException e) {
+                    // Fechado
+                }
+            });
+        }
+
+        String endereco() {
+            return Topologia.endereco("127.0.0.1", socket.getLocalPort());
+        }
+
+        private void responder(Conexao conexao, Mensagem mensagem) {
+            Mensagem resposta;
+            List<Mensagem.Registro> registros = mensagem.getRegistros() != null ? mensagem.getRegistros() : List.of();
+            if (mensagem.getTipo() == Mensagem.TipoMensagem.SYNC) {
+                resposta = new Mensagem(Mensagem.TipoMensagem.SYNC_OK);
+                resposta.setTimestamp(aplicado);
+            } else if (recusar && !registros.isEmpty()) {
+                resposta = new Mensagem(Mensagem.TipoMensagem.ERRO, null, "lote recusado");
+            } else {
+                for (Mensagem.Registro registro : registros) {
+                    aplicado = Math.max(aplicado, registro.getTimestamp());
+                }
+                resposta = new Mensagem(Mensagem.TipoMensagem.REPLICATION_OK);
+                resposta.setTimestamp(aplicado);
+            }
+            resposta.setIdRequisicao(mensagem.getIdRequisicao());
+            try {
+                conexao.enviar(resposta);
+            } catch (IOException e) {
+                // O líder reconecta
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    // SCAN
+
+    private static void scanPaginas() throws Exception {
+        try (ClusterEmbutido cluster = ClusterEmbutido.iniciar(3); ClienteKV cliente = cluster.cliente()) {
+            Map<String, String> valores = new LinkedHashMap<>();
+            for (int i = 0; i < 2500; i++) {
+                valores.put(String.format("item:%05d", i), "v" + i);
+            }
+            valores.put("antes", "fora");
+            valores.put("item;", "fora");
+            cliente.putTodos(valores, false).join();
+
+            // Pedaços de 7 keys: muitos pedidos por partição, juntados em ordem
+            int lidos = 0;
+            String anterior = "";
+            ClienteKV.Varredura varredura = cliente.varrer("item:", ClienteKV.fimDoPrefixo("item:"), null, 7);
+            while (varredura.hasNext()) {
+                ClienteKV.Item item = varredura.next();
+                exigir(item.key().compareTo(anterior) > 0, "fora de ordem: " + anterior + " antes de " + item.key());
+                exigirIgual(valores.get(item.key()), item.valor(), item.key());
+                anterior = item.key();
+                lidos++;
+            }
+            exigirIgual(2500, lidos, "keys do prefixo");
+
+            // Parar no meio e retomar do cursor em outra varredura
+            ClienteKV.Varredura primeira = cliente.varrerPrefixo("item:");
+            for (int i = 0; i < 1000; i++) {
+                primeira.next();
+            }
+            exigirIgual("item:00999", primeira.cursor(), "cursor");
+            ClienteKV.Varredura retomada = cliente.varrer("item:", ClienteKV.fimDoPrefixo("item:"),
+                    primeira.cursor(), 50);
+            exigirIgual("item:01000", retomada.next().key(), "primeira key retomada");
+            int restantes = 1;
+            while (retomada.hasNext()) {
+                retomada.next();
+                restantes++;
+            }
+            exigirIgual(1500, restantes, "keys depois do cursor");
+        }
+    }
+
+    // TTL
+
+    private static void ttl() throws Exception {
+        try (ClusterEmbutido cluster = ClusterEmbutido.iniciar(3); ClienteKV cliente = cluster.cliente()) {
+            cliente.put("t:curta", "some", 300).join();
+            cliente.put("t:longa", "fica").join();
+            exigirIgual("some", cliente.get("t:curta").join().valor(), "t:curta dentro do prazo");
+            Thread.sleep(800);
+            exigirIgual(null, cliente.get("t:curta").join().valor(), "t:curta depois do prazo");
+            exigirIgual("fica", cliente.get("t:longa").join().valor(), "t:longa");
+            List<String> keys = new ArrayList<>();
+            cliente.varrerPrefixo("t:").forEachRemaining(item -> keys.add(item.key()));
+            exigirIgual(List.of("t:longa"), keys, "SCAN depois do prazo");
+        }
+    }
+}